@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.util.UUID;
+
+/**
+ * An AdmissionPolicy decides on a read miss whether an OnDiskPage is loaded into the cache. If a page is not
+ * admitted, only the newest record of the requested key is read from disk.
+ */
+public interface AdmissionPolicy {
+
+  /**
+   * Loads every page which is read. This is the default.
+   */
+  AdmissionPolicy ALWAYS = new AdmissionPolicy() {
+    @Override
+    public boolean admit(UUID pid) {
+      return true;
+    }
+  };
+
+  /**
+   * Never loads a page on a read. Only writes bring pages into the cache.
+   */
+  AdmissionPolicy NEVER = new AdmissionPolicy() {
+    @Override
+    public boolean admit(UUID pid) {
+      return false;
+    }
+  };
+
+  /**
+   * Called by the CacheManager while holding its lock.
+   */
+  boolean admit(UUID pid);
+
+}
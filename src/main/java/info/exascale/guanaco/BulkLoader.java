@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * BulkLoader fills an empty database from key/value pairs in ascending key order. Every pair is written as a
+ * consolidated page record into a large buffer, which is appended to the file in one write. The pages and the index
+ * entries are installed as the buffers are written, so no InMemoryPages or deltas are created. Values above the
+ * threshold go to the cold segment of the ValueLog like the ones of a put, and the record holds a ValuePointer.
+ * <p>
+ * Snapshots taken during a bulk load may or may not see the loaded pairs.
+ */
+public class BulkLoader implements Closeable {
+
+  private static final int bufferSize = 1 << 20;
+
+  private final StorageManager storageManager;
+  private final CacheManager cacheManager;
+  private final IIndex index;
+  private final SnapshotManager snapshotManager;
+  private final ValueLog valueLog;
+  private final int valueThreshold;
+
+  private final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+  private final List<Entry> entries = new ArrayList<>();
+
+  private ByteArray lastKey = null;
+  private boolean hasValuePointers = false;
+  private boolean isClosed = false;
+
+  BulkLoader(StorageManager storageManager, CacheManager cacheManager, IIndex index, SnapshotManager snapshotManager,
+      ValueLog valueLog, int valueThreshold) {
+    if (storageManager == null) throw new IllegalArgumentException();
+    if (cacheManager == null) throw new IllegalArgumentException();
+    if (index == null) throw new IllegalArgumentException();
+    if (snapshotManager == null) throw new IllegalArgumentException();
+    if (valueLog == null) throw new IllegalArgumentException();
+    if (index.size() > 0) throw new IllegalStateException("Bulk loading requires an empty database");
+
+    this.storageManager = storageManager;
+    this.cacheManager = cacheManager;
+    this.index = index;
+    this.snapshotManager = snapshotManager;
+    this.valueLog = valueLog;
+    this.valueThreshold = valueThreshold;
+  }
+
+  /**
+   * Adds a pair. The keys must be strictly ascending.
+   */
+  public void add(ByteArray key, ByteArray value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+    if (isClosed) throw new IllegalStateException();
+    if (lastKey != null && lastKey.compareTo(key) >= 0) {
+      throw new IllegalArgumentException("Keys must be added in strictly ascending order");
+    }
+    lastKey = key;
+
+    if (value.length() > valueThreshold) {
+      // Lets keep large values out of the pages, so page loads stay cheap
+      value = valueLog.append(key, value);
+    }
+
+    long sequence = snapshotManager.nextSequence();
+    int size = storageManager.getPageRecordSize(key, value, sequence);
+    if (size > buffer.remaining()) {
+      write();
+    }
+
+    UUID pid = Page.getDefaultPid(key);
+    if (size > buffer.capacity()) {
+      // The record doesn't fit into our buffer, write it on its own
+      ByteBuffer recordBuffer = ByteBuffer.allocate(size);
+      int offset = storageManager.encodePageRecord(recordBuffer, pid, key, value, sequence);
+      entries.add(new Entry(pid, key, sequence, offset, value));
+      recordBuffer.flip();
+      install(storageManager.append(recordBuffer));
+    } else {
+      int start = buffer.position();
+      int offset = storageManager.encodePageRecord(buffer, pid, key, value, sequence);
+      entries.add(new Entry(pid, key, sequence, start + offset, value));
+      hasValuePointers |= value instanceof ValuePointer;
+    }
+  }
+
+  /**
+   * Writes the remaining pairs and forces them to the device.
+   */
+  @Override
+  public void close() throws IOException {
+    if (isClosed) {
+      return;
+    }
+
+    write();
+    storageManager.sync();
+    isClosed = true;
+  }
+
+  private void write() throws IOException {
+    if (hasValuePointers) {
+      // The values must be durable before the records refer to them
+      valueLog.sync();
+      hasValuePointers = false;
+    }
+
+    buffer.flip();
+    long start = storageManager.append(buffer);
+    buffer.clear();
+
+    install(start);
+  }
+
+  private void install(long start) {
+    for (Entry entry : entries) {
+      OnDiskPage page = cacheManager.createOnDiskPage(entry.pid);
+      page.add(new OnDiskPageRecord(
+          start + entry.offset, entry.valueLength, entry.pid, entry.key, entry.sequence, entry.hasValuePointer));
+      index.add(entry.key, page);
+    }
+    entries.clear();
+  }
+
+  private static final class Entry {
+
+    private final UUID pid;
+    private final ByteArray key;
+    private final long sequence;
+    private final int offset;
+    private final int valueLength;
+    private final boolean hasValuePointer;
+
+    private Entry(UUID pid, ByteArray key, long sequence, int offset, ByteArray value) {
+      this.pid = pid;
+      this.key = key;
+      this.sequence = sequence;
+      this.offset = offset;
+      this.valueLength = value.length();
+      this.hasValuePointer = value instanceof ValuePointer;
+    }
+
+  }
+
+}
@@ -16,28 +16,124 @@
 package info.exascale.guanaco;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+/**
+ * The CacheManager owns the MappingTable. Reads of InMemoryPages don't lock. Everything which installs pages is
+ * synchronized, so the warm-up task can prefetch pages while foreground requests continue. Reads from the
+ * StorageManager run outside the lock, so cache misses of many threads proceed in parallel.
+ */
 public class CacheManager {
 
+  private static final int UPDATE_COUNTERS = 1 << 16;
+
+  // How many updates are counted before all counters are halved
+  private static final int AGING_INTERVAL = UPDATE_COUNTERS * 8;
+
+  // How many pages a flush worker takes at a time
+  private static final int FLUSH_BATCH_SIZE = 64;
+
   private final StorageManager storageManager;
   private final MappingTable table = new MappingTable();
+  private final int hotPageCount;
+  private final AdmissionPolicy admissionPolicy;
+  private final Comparator<ByteArray> flushOrder;
+
+  // Updates are counted per pid hash like the reads of the FrequencyAdmissionPolicy, but without the lock
+  private final AtomicIntegerArray updateCounters = new AtomicIntegerArray(UPDATE_COUNTERS);
+  private final int hotUpdateThreshold;
+  private final AtomicInteger updates = new AtomicInteger();
 
   public CacheManager(StorageManager storageManager) {
+    this(storageManager, new GuanacoOptions());
+  }
+
+  public CacheManager(StorageManager storageManager, GuanacoOptions options) {
     if (storageManager == null) throw new IllegalArgumentException();
+    if (options == null) throw new IllegalArgumentException();
 
     this.storageManager = storageManager;
+    this.hotPageCount = options.getHotPageCount();
+    this.admissionPolicy = options.getAdmissionPolicy();
+    this.hotUpdateThreshold = options.getHotUpdateThreshold();
+    this.flushOrder = options.getFlushOrder();
+  }
+
+  /**
+   * Counts an update of an existing page. All counters are halved periodically, so old updates are forgotten.
+   */
+  public void recordUpdate(UUID pid) {
+    if (pid == null) throw new IllegalArgumentException();
+
+    int index = getUpdateCounter(pid);
+    if (updateCounters.get(index) < Integer.MAX_VALUE) {
+      updateCounters.incrementAndGet(index);
+    }
+
+    // Exactly one update reaches the interval, so only that writer ages the counters while the others go on
+    if (updates.incrementAndGet() == AGING_INTERVAL) {
+      updates.addAndGet(-AGING_INTERVAL);
+      age();
+    }
+  }
+
+  private void age() {
+    // A counter updated during the halving keeps its count until the next pass, so no increment is lost
+    for (int i = 0; i < UPDATE_COUNTERS; ++i) {
+      int count = updateCounters.get(i);
+      if (count > 0) {
+        updateCounters.compareAndSet(i, count, count >>> 1);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the page has been updated often recently. Colliding pages share a counter, which can only make
+   * a cold page look hot.
+   */
+  public boolean isHot(UUID pid) {
+    if (pid == null) throw new IllegalArgumentException();
+
+    return updateCounters.get(getUpdateCounter(pid)) >= hotUpdateThreshold;
   }
 
-  public InMemoryPage createInMemoryPage() {
-    InMemoryPage page = new InMemoryPage();
+  private static int getUpdateCounter(UUID pid) {
+    int hash = pid.hashCode();
+    return (hash ^ (hash >>> 16)) & (UPDATE_COUNTERS - 1);
+  }
+
+  /**
+   * Creates a page for the key. It gets the default pid of the key unless a retired page still holds it, so the
+   * pid stays the same after reopening a v2 file.
+   */
+  public synchronized InMemoryPage createInMemoryPage(ByteArray key) {
+    if (key == null) throw new IllegalArgumentException();
+
+    UUID pid = Page.getDefaultPid(key);
+    InMemoryPage page = table.get(pid) == null ? new InMemoryPage(pid) : new InMemoryPage();
+    page.touch();
     table.put(page);
 
     return page;
   }
 
-  public OnDiskPage createOnDiskPage(UUID pid) {
+  public synchronized OnDiskPage createOnDiskPage(UUID pid) {
     if (pid == null) throw new IllegalArgumentException();
 
     OnDiskPage page = new OnDiskPage(pid);
@@ -46,22 +142,171 @@ public class CacheManager {
     return page;
   }
 
+  /**
+   * Returns the InMemoryPage, loading it if necessary. Returns null if the page has been reclaimed.
+   */
   public InMemoryPage getInMemoryPage(UUID pid) throws IOException {
     if (pid == null) throw new IllegalArgumentException();
 
     Page page = table.get(pid);
+    if (page == null) {
+      return null;
+    }
+    if (page.getOnDiskPage(this) != null) {
+      page = load(pid);
+      if (page == null) {
+        return null;
+      }
+    }
+    InMemoryPage inMemoryPage = page.getInMemoryPage(this);
+    inMemoryPage.touch();
+
+    return inMemoryPage;
+  }
+
+  private InMemoryPage load(UUID pid) throws IOException {
+    Page page = table.get(pid);
+    if (page == null) {
+      return null;
+    }
+    OnDiskPage onDiskPage = page.getOnDiskPage(this);
+    if (onDiskPage == null) {
+      return page.getInMemoryPage(this);
+    }
+
+    // Read the page without holding the lock, two threads might read the same page
+    InMemoryPage inMemoryPage = storageManager.read(onDiskPage);
 
-    return page.getInMemoryPage(this);
+    synchronized (this) {
+      // Look again, another thread might have loaded or reclaimed the page in the meantime
+      page = table.get(pid);
+      if (page == onDiskPage) {
+        table.put(inMemoryPage);
+        return inMemoryPage;
+      } else if (page == null) {
+        return null;
+      } else {
+        return page.getInMemoryPage(this);
+      }
+    }
   }
 
-  public InMemoryPage getInMemoryPage(OnDiskPage onDiskPage) throws IOException {
+  public synchronized InMemoryPage getInMemoryPage(OnDiskPage onDiskPage) throws IOException {
     InMemoryPage page = storageManager.read(onDiskPage);
     table.put(page);
 
     return page;
   }
 
-  public OnDiskPage getOnDiskPage(UUID pid) {
+  /**
+   * Reads the newest value of the key at or below the given sequence number. If the page is on disk and the
+   * AdmissionPolicy does not admit it, only the newest record of the key is read and the page stays on disk.
+   */
+  public ByteArray get(UUID pid, ByteArray key, long sequence) throws IOException {
+    if (pid == null) throw new IllegalArgumentException();
+    if (key == null) throw new IllegalArgumentException();
+
+    Page page = table.get(pid);
+    if (page == null) {
+      // The page has been reclaimed, so the key is deleted
+      return null;
+    }
+    if (page.getOnDiskPage(this) == null) {
+      InMemoryPage inMemoryPage = page.getInMemoryPage(this);
+      inMemoryPage.touch();
+
+      return get(inMemoryPage, key, sequence);
+    }
+
+    return getOnDisk(pid, key, sequence);
+  }
+
+  private ByteArray getOnDisk(UUID pid, ByteArray key, long sequence) throws IOException {
+    // An OnDiskPage only holds records written before the database was opened, so they are visible to every snapshot
+    OnDiskPage onDiskPage;
+    synchronized (this) {
+      onDiskPage = getOnDiskPage(pid);
+      if (onDiskPage != null && admissionPolicy.admit(pid)) {
+        onDiskPage = null;
+      }
+    }
+    if (onDiskPage != null) {
+      return storageManager.read(onDiskPage, key);
+    }
+
+    InMemoryPage inMemoryPage = getInMemoryPage(pid);
+    if (inMemoryPage == null) {
+      return null;
+    }
+
+    return get(inMemoryPage, key, sequence);
+  }
+
+  private static ByteArray get(InMemoryPage page, ByteArray key, long sequence) {
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.DELTA_APPLY);
+    try {
+      return page.get(key, sequence);
+    } finally {
+      OperationTrace.exit(previous);
+    }
+  }
+
+  /**
+   * Returns a read-only view of the newest value of the key. A page on disk is neither loaded nor consulted with the
+   * AdmissionPolicy, the value is a view of the memory-mapped file. Values in the ValueLog are read into the heap.
+   */
+  public ByteBuffer getBuffer(UUID pid, ByteArray key, ValueLog valueLog) throws IOException {
+    if (pid == null) throw new IllegalArgumentException();
+    if (key == null) throw new IllegalArgumentException();
+    if (valueLog == null) throw new IllegalArgumentException();
+
+    Page page = table.get(pid);
+    if (page == null) {
+      // The page has been reclaimed, so the key is deleted
+      return null;
+    }
+
+    ByteArray value;
+    OnDiskPage onDiskPage = page.getOnDiskPage(this);
+    if (onDiskPage == null) {
+      InMemoryPage inMemoryPage = page.getInMemoryPage(this);
+      inMemoryPage.touch();
+      value = get(inMemoryPage, key, Long.MAX_VALUE);
+    } else {
+      // The records of an OnDiskPage never change, so we don't mind if the page is loaded in the meantime
+      OnDiskRecord record = onDiskPage.getRecord(key);
+      if (record == null || record.isTombstone()) {
+        return null;
+      } else if (!record.hasValuePointer()) {
+        return storageManager.map(record);
+      }
+      value = storageManager.read(record);
+    }
+
+    if (value == null) {
+      return null;
+    } else if (value instanceof ValuePointer) {
+      value = valueLog.get((ValuePointer) value);
+    }
+
+    return ByteBuffer.wrap(value.get()).asReadOnlyBuffer();
+  }
+
+  /**
+   * Reads the value of a single record without installing its page.
+   */
+  public ByteArray read(OnDiskRecord record) throws IOException {
+    return storageManager.read(record);
+  }
+
+  /**
+   * Returns all pages. The iterator does not lock and reflects the MappingTable at some point during the iteration.
+   */
+  public Iterator<Page> getPages() {
+    return table.iterator();
+  }
+
+  public synchronized OnDiskPage getOnDiskPage(UUID pid) {
     if (pid == null) throw new IllegalArgumentException();
 
     Page page = table.get(pid);
@@ -72,12 +317,425 @@ public class CacheManager {
     }
   }
 
-  public void flush() throws IOException {
+  public boolean isInMemory(UUID pid) {
+    if (pid == null) throw new IllegalArgumentException();
+
+    Page page = table.get(pid);
+
+    return page != null && page.getOnDiskPage(this) == null;
+  }
+
+  /**
+   * Returns the pids of the most recently used InMemoryPages, most recent first.
+   */
+  public synchronized List<UUID> getHotPages() throws IOException {
+    List<InMemoryPage> pages = new ArrayList<>();
     Iterator<Page> iterator = table.iterator();
     while (iterator.hasNext()) {
       Page page = iterator.next();
+      if (page.getOnDiskPage(this) == null) {
+        pages.add(page.getInMemoryPage(this));
+      }
+    }
+
+    Collections.sort(pages, new Comparator<InMemoryPage>() {
+      @Override
+      public int compare(InMemoryPage o1, InMemoryPage o2) {
+        return Long.compare(o2.getLastAccess(), o1.getLastAccess());
+      }
+    });
+
+    List<UUID> pids = new ArrayList<>();
+    for (InMemoryPage page : pages.subList(0, Math.min(hotPageCount, pages.size()))) {
+      pids.add(page.getPid());
+    }
+
+    return pids;
+  }
+
+  /**
+   * Returns the given pids which are still on disk, sorted by their file offset.
+   */
+  public synchronized List<OnDiskPage> getOnDiskPages(List<UUID> pids) {
+    if (pids == null) throw new IllegalArgumentException();
+
+    List<OnDiskPage> pages = new ArrayList<>();
+    for (UUID pid : pids) {
+      OnDiskPage page = getOnDiskPage(pid);
+      if (page != null) {
+        pages.add(page);
+      }
+    }
+
+    Collections.sort(pages, new Comparator<OnDiskPage>() {
+      @Override
+      public int compare(OnDiskPage o1, OnDiskPage o2) {
+        return Long.compare(o1.getPosition(), o2.getPosition());
+      }
+    });
+
+    return pages;
+  }
+
+  /**
+   * Loads the page into memory unless a foreground request has already done so. The page is read without holding
+   * the lock, as a throttled prefetch must not block cache misses.
+   */
+  public void prefetch(OnDiskPage onDiskPage) throws IOException {
+    if (onDiskPage == null) throw new IllegalArgumentException();
+
+    if (table.get(onDiskPage.getPid()) == onDiskPage) {
+      InMemoryPage page = load(onDiskPage.getPid());
+      if (page != null) {
+        page.touch();
+      }
+    }
+  }
+
+  /**
+   * Drops the page from the MappingTable.
+   */
+  public synchronized void remove(UUID pid) {
+    if (pid == null) throw new IllegalArgumentException();
+
+    table.remove(pid);
+  }
+
+  /**
+   * Drops the page from the MappingTable unless another page has taken its pid.
+   */
+  public synchronized void remove(Page page) {
+    if (page == null) throw new IllegalArgumentException();
+
+    table.remove(page);
+  }
+
+  /**
+   * Writes all dirty pages and drops the versions which are no longer visible to any snapshot. Pages whose keys
+   * are all durably deleted are retired and returned. The caller removes their keys from the index first and then
+   * the pages with remove(Page). While a retired page is in the MappingTable, a new page for one of its keys gets a
+   * random pid, so removing the keys by pid can't hit the new page.
+   */
+  public List<Page> flush(SnapshotManager snapshotManager) throws IOException {
+    return flush(snapshotManager, null);
+  }
+
+  /**
+   * Flushes like flush(SnapshotManager), but lets the workers take the snapshots of the pages and write them in the
+   * background, in parallel if the file allows it. The records are only durable once the caller syncs the
+   * StorageManager, which covers all ranges the workers have written.
+   */
+  public List<Page> flush(SnapshotManager snapshotManager, ExecutorService workers) throws IOException {
+    if (flushOrder != null) {
+      writeInOrder(workers);
+    }
+
+    // Pages are written without holding the lock, as a throttled flush must not block cache misses. A page loaded
+    // in the meantime holds nothing but flushed records and writes which are still in the log.
+    List<Page> retired = new ArrayList<>();
+    Iterator<Page> iterator = table.iterator();
+    if (workers == null) {
+      flush(iterator, snapshotManager, retired);
+    } else {
+      List<Future<List<Page>>> futures = new ArrayList<>();
+      if (storageManager.isParallelWritable()) {
+        while (iterator.hasNext()) {
+          futures.add(workers.submit(new FlushTask(nextBatch(iterator), snapshotManager)));
+        }
+      } else {
+        // The file takes one write at a time, so a single worker writes all pages
+        futures.add(workers.submit(new FlushTask(iterator, snapshotManager)));
+      }
+      for (List<Page> pages : awaitAll(futures)) {
+        retired.addAll(pages);
+      }
+    }
+
+    return retired;
+  }
+
+  private void flush(Iterator<Page> pages, SnapshotManager snapshotManager, List<Page> retired) throws IOException {
+    while (pages.hasNext()) {
+      Page page = pages.next();
       page.flush(storageManager);
+      page.prune(snapshotManager);
+      if (page.retire(snapshotManager)) {
+        retired.add(page);
+      }
+    }
+  }
+
+  /**
+   * Writes the dirty pages sorted by the flush order. A batch of consecutive pages is written as a single range, so
+   * the pages end up next to each other in the file. The regular pass of the flush then only prunes and retires
+   * them.
+   */
+  private void writeInOrder(ExecutorService workers) throws IOException {
+    List<Map.Entry<ByteArray, InMemoryPage>> dirty = new ArrayList<>();
+    Iterator<Page> iterator = table.iterator();
+    while (iterator.hasNext()) {
+      Page page = iterator.next();
+      if (page.getOnDiskPage(this) == null) {
+        InMemoryPage inMemoryPage = page.getInMemoryPage(this);
+        Collection<ByteArray> keys = inMemoryPage.getKeys();
+        if (inMemoryPage.isDirty() && !keys.isEmpty()) {
+          dirty.add(new AbstractMap.SimpleImmutableEntry<>(Collections.min(keys, flushOrder), inMemoryPage));
+        }
+      }
+    }
+
+    Collections.sort(dirty, new Comparator<Map.Entry<ByteArray, InMemoryPage>>() {
+      @Override
+      public int compare(Map.Entry<ByteArray, InMemoryPage> o1, Map.Entry<ByteArray, InMemoryPage> o2) {
+        return flushOrder.compare(o1.getKey(), o2.getKey());
+      }
+    });
+
+    List<InMemoryPage> pages = new ArrayList<>(dirty.size());
+    for (Map.Entry<ByteArray, InMemoryPage> entry : dirty) {
+      pages.add(entry.getValue());
+    }
+
+    List<List<InMemoryPage>> batches = new ArrayList<>();
+    Iterator<InMemoryPage> pageIterator = pages.iterator();
+    while (pageIterator.hasNext()) {
+      batches.add(nextBatch(pageIterator));
+    }
+
+    if (workers == null) {
+      for (List<InMemoryPage> batch : batches) {
+        write(batch, null, 0);
+      }
+    } else if (storageManager.isParallelWritable()) {
+      // Lets encode and write the batches in parallel, but reserve their ranges in the flush order
+      ReservationOrder order = new ReservationOrder();
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < batches.size(); ++i) {
+        futures.add(workers.submit(new WriteTask(Collections.singletonList(batches.get(i)), order, i)));
+      }
+      awaitAll(futures);
+    } else {
+      await(workers.submit(new WriteTask(batches, null, 0)));
+    }
+  }
+
+  /**
+   * Writes the pages as a single range. If there is an order, the range is reserved on the turn of the ticket.
+   */
+  private void write(List<InMemoryPage> pages, ReservationOrder order, int ticket) throws IOException {
+    StorageManager.RecordWriter writer = storageManager.getWriter();
+    List<List<InMemoryRecord>> snapshots = new ArrayList<>(pages.size());
+    long start;
+    try {
+      for (InMemoryPage page : pages) {
+        List<InMemoryRecord> snapshot = page.getDirtyRecords();
+        for (InMemoryRecord record : snapshot) {
+          record.write(writer);
+        }
+        snapshots.add(snapshot);
+      }
+
+      if (order != null) {
+        order.await(ticket);
+      }
+      start = storageManager.reserve(writer);
+    } catch (IOException e) {
+      abortFlush(pages);
+      throw e;
+    } finally {
+      // Even a failed batch passes its turn, so the later ones are not stuck
+      if (order != null) {
+        order.pass(ticket);
+      }
+    }
+
+    try {
+      storageManager.write(writer, start);
+    } catch (IOException e) {
+      abortFlush(pages);
+      throw e;
+    }
+
+    for (int i = 0; i < pages.size(); ++i) {
+      pages.get(i).completeFlush(snapshots.get(i));
+    }
+  }
+
+  private static void abortFlush(List<InMemoryPage> pages) {
+    for (InMemoryPage page : pages) {
+      page.abortFlush();
+    }
+  }
+
+  private static <T> List<T> nextBatch(Iterator<T> iterator) {
+    List<T> batch = new ArrayList<>(FLUSH_BATCH_SIZE);
+    while (iterator.hasNext() && batch.size() < FLUSH_BATCH_SIZE) {
+      batch.add(iterator.next());
+    }
+
+    return batch;
+  }
+
+  /**
+   * Waits for all workers, so no write is running when we return, and throws the first failure.
+   */
+  private static <T> List<T> awaitAll(List<Future<T>> futures) throws IOException {
+    List<T> results = new ArrayList<>(futures.size());
+    IOException exception = null;
+    for (Future<T> future : futures) {
+      try {
+        results.add(await(future));
+      } catch (IOException e) {
+        if (exception == null) {
+          exception = e;
+        }
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+
+    return results;
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    }
+  }
+
+  /**
+   * Runs on a worker thread in the I/O class of the thread which started the flush.
+   */
+  private abstract class WorkerTask<T> implements Callable<T> {
+
+    private final IoScheduler.IoClass ioClass = storageManager.getIoScheduler().getCurrentClass();
+
+    @Override
+    public T call() throws IOException {
+      IoScheduler ioScheduler = storageManager.getIoScheduler();
+      IoScheduler.IoClass previous = ioScheduler.enter(ioClass);
+      try {
+        return run();
+      } finally {
+        ioScheduler.exit(previous);
+      }
+    }
+
+    protected abstract T run() throws IOException;
+
+  }
+
+  /**
+   * Flushes, prunes and retires a batch of pages.
+   */
+  private final class FlushTask extends WorkerTask<List<Page>> {
+
+    private final Iterator<Page> pages;
+    private final SnapshotManager snapshotManager;
+
+    private FlushTask(List<Page> pages, SnapshotManager snapshotManager) {
+      this(pages.iterator(), snapshotManager);
+    }
+
+    private FlushTask(Iterator<Page> pages, SnapshotManager snapshotManager) {
+      this.pages = pages;
+      this.snapshotManager = snapshotManager;
     }
+
+    @Override
+    protected List<Page> run() throws IOException {
+      List<Page> retired = new ArrayList<>();
+      flush(pages, snapshotManager, retired);
+
+      return retired;
+    }
+
+  }
+
+  /**
+   * Writes batches of dirty pages, each as a single range.
+   */
+  private final class WriteTask extends WorkerTask<Void> {
+
+    private final List<List<InMemoryPage>> batches;
+    private final ReservationOrder order;
+    private final int ticket;
+
+    private WriteTask(List<List<InMemoryPage>> batches, ReservationOrder order, int ticket) {
+      this.batches = batches;
+      this.order = order;
+      this.ticket = ticket;
+    }
+
+    @Override
+    protected Void run() throws IOException {
+      for (List<InMemoryPage> batch : batches) {
+        write(batch, order, ticket);
+      }
+
+      return null;
+    }
+
+  }
+
+  /**
+   * Hands out the turns to reserve a range by ticket, so the batches of an ordered flush end up in the file in the
+   * order they were submitted, no matter which worker finishes encoding first.
+   */
+  private static final class ReservationOrder {
+
+    private int next = 0;
+
+    /**
+     * Waits for the turn of the ticket.
+     */
+    synchronized void await(int ticket) throws InterruptedIOException {
+      while (next != ticket) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+    }
+
+    /**
+     * Waits for the turn of the ticket and hands it on to the next one.
+     */
+    synchronized void pass(int ticket) {
+      boolean isInterrupted = false;
+      while (next != ticket) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // The later tickets would wait forever if we gave up our turn
+          isInterrupted = true;
+        }
+      }
+      ++next;
+      notifyAll();
+
+      if (isInterrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
   }
 
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheWarmer persists the pids of the hot pages on close and prefetches them in the background on the next open.
+ * The hot page list is stored next to the database as "<database>.hot".
+ */
+public class CacheWarmer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CacheWarmer.class);
+
+  private static final String suffix = ".hot";
+
+  private final File file;
+  private final CacheManager cacheManager;
+  private final IoScheduler ioScheduler;
+
+  private ExecutorService executor = null;
+  private Future<?> future = null;
+
+  // Interrupting the warm-up would close the FileChannel under a running read, so we ask it to stop instead
+  private volatile boolean isStopped = false;
+
+  public CacheWarmer(File database, CacheManager cacheManager) {
+    this(database, cacheManager, new IoScheduler());
+  }
+
+  public CacheWarmer(File database, CacheManager cacheManager, IoScheduler ioScheduler) {
+    if (database == null) throw new IllegalArgumentException();
+    if (cacheManager == null) throw new IllegalArgumentException();
+    if (ioScheduler == null) throw new IllegalArgumentException();
+
+    this.file = getFile(database);
+    this.cacheManager = cacheManager;
+    this.ioScheduler = ioScheduler;
+  }
+
+  public static File getFile(File database) {
+    if (database == null) throw new IllegalArgumentException();
+
+    return new File(database.getPath() + suffix);
+  }
+
+  /**
+   * Starts prefetching the pages of the persisted hot page list.
+   */
+  public synchronized void start() throws IOException {
+    if (executor != null) throw new IllegalStateException();
+
+    final List<UUID> pids = read();
+    if (pids.isEmpty()) {
+      return;
+    }
+
+    executor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("guanaco-warm-up-%d").setDaemon(true).build());
+    future = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        List<OnDiskPage> pages = cacheManager.getOnDiskPages(pids);
+        IoScheduler.IoClass previous = ioScheduler.enter(IoScheduler.IoClass.PREFETCH);
+        try {
+          for (OnDiskPage page : pages) {
+            if (isStopped) {
+              return;
+            }
+            cacheManager.prefetch(page);
+          }
+          LOG.debug("Prefetched {} hot pages", pages.size());
+        } catch (IOException e) {
+          LOG.warn("Cannot prefetch hot pages", e);
+        } finally {
+          ioScheduler.exit(previous);
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits until the warm-up has finished.
+   */
+  public void await() throws InterruptedException {
+    Future<?> f;
+    synchronized (this) {
+      f = future;
+    }
+
+    if (f != null) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        LOG.warn("Warm-up failed", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Stops a running warm-up. Pages which have already been prefetched stay in the cache.
+   */
+  public synchronized void stop() throws IOException {
+    if (executor != null) {
+      isStopped = true;
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          throw new IOException("Cannot stop the warm-up");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /**
+   * Saves the pids of the most recently used pages.
+   */
+  public void save() throws IOException {
+    List<UUID> pids = cacheManager.getHotPages();
+    if (pids.isEmpty()) {
+      if (file.exists() && !file.delete()) {
+        throw new IOException(String.format("Cannot delete hot page list %s", file));
+      }
+      return;
+    }
+
+    try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      output.writeInt(pids.size());
+      for (UUID pid : pids) {
+        output.writeLong(pid.getMostSignificantBits());
+        output.writeLong(pid.getLeastSignificantBits());
+      }
+    }
+  }
+
+  private List<UUID> read() throws IOException {
+    List<UUID> pids = new ArrayList<>();
+
+    if (file.isFile()) {
+      try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        int size = input.readInt();
+        for (int i = 0; i < size; ++i) {
+          long mostSignificantBits = input.readLong();
+          long leastSignificantBits = input.readLong();
+          pids.add(new UUID(mostSignificantBits, leastSignificantBits));
+        }
+      } catch (EOFException e) {
+        // The list is only a hint. Prefetch what we have.
+        LOG.warn("Hot page list {} is truncated", file);
+      }
+    }
+
+    return pids;
+  }
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reports how much of a database file is live data and how much could be reclaimed by a compaction. The file is
+ * decoded from the end with the StorageManager's recovery reader, so the newest record of a key comes first and
+ * every record after it is superseded.
+ * <p>
+ * The file is opened read-only, so it can be analyzed while a database has it open. Torn records a crash has left
+ * at the end are reported, they are dropped the next time the database is opened.
+ * <p>
+ * Memory stays constant: the keys seen so far are kept in a Bloom filter of a fixed size, so a few live records are
+ * counted as dead, and the per-page statistics are kept for a hash sample of the pages only. The report shows the
+ * false positive rate the filter has reached, which grows once the file holds more keys than the filter is sized for.
+ * <p>
+ * Usage: DatabaseAnalyzer <database>
+ */
+public class DatabaseAnalyzer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DatabaseAnalyzer.class);
+
+  // About 19 MB of filter, which keeps the false positive rate at 1% for up to 16M keys
+  private static final int BLOOM_FILTER_KEYS = 1 << 24;
+  private static final double BLOOM_FILTER_FPP = 0.01;
+  private static final int MAX_SAMPLED_PAGES = 1 << 16;
+
+  private long totalBytes = 0;
+  private long paddingBytes = 0;
+  private long tornBytes = 0;
+  private long records = 0;
+  private long liveRecords = 0;
+  private long liveBytes = 0;
+  private long supersededRecords = 0;
+  private long supersededBytes = 0;
+  private long tombstones = 0;
+  private long tombstoneBytes = 0;
+  private double keyFilterFpp = 0;
+
+  // A page is sampled if the low bits of its pid hash are zero
+  private int sampleMask = 0;
+  private final Map<UUID, PageStatistics> sampledPages = new HashMap<>();
+
+  private static class PageStatistics {
+    private int records = 0;
+    private int deltas = 0;
+    private int liveRecords = 0;
+  }
+
+  public static void main(String[] args) {
+    if (args.length != 1) {
+      LOG.error("Usage: DatabaseAnalyzer <database>");
+      return;
+    }
+
+    File file = new File(args[0]);
+    if (!file.isFile()) {
+      LOG.error(String.format("%s is not a file", file));
+      return;
+    }
+
+    try {
+      DatabaseAnalyzer analyzer = new DatabaseAnalyzer();
+      analyzer.analyze(file);
+      LOG.info(analyzer.getReport());
+    } catch (IOException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+    }
+  }
+
+  public void analyze(File file) throws IOException {
+    try (StorageManager storageManager = StorageManager.openReadOnly(file)) {
+      BloomFilter<byte[]> keys = BloomFilter.create(Funnels.byteArrayFunnel(), BLOOM_FILTER_KEYS, BLOOM_FILTER_FPP);
+
+      long end = storageManager.getRecordsEnd();
+      tornBytes = storageManager.length() - end;
+      totalBytes = end - storageManager.getStart();
+
+      // The reader skips the padding of failed writes, whatever it doesn't return is padding
+      long recordBytes = 0;
+      StorageManager.RecordReader reader = storageManager.reader(0, end);
+      while (reader.hasNext()) {
+        OnDiskRecord record = reader.next();
+        long size = reader.getRecordSize();
+
+        ++records;
+        recordBytes += size;
+
+        boolean isLive = false;
+        if (keys.mightContain(record.getKey().get())) {
+          // A newer record of the key comes later in the file
+          ++supersededRecords;
+          supersededBytes += size;
+        } else {
+          keys.put(record.getKey().get());
+          if (record instanceof OnDiskDeleteRecord) {
+            ++tombstones;
+            tombstoneBytes += size;
+          } else {
+            isLive = true;
+            ++liveRecords;
+            liveBytes += size;
+          }
+        }
+
+        sample(record, isLive);
+      }
+      paddingBytes = totalBytes - recordBytes;
+      keyFilterFpp = keys.expectedFpp();
+    }
+  }
+
+  private void sample(OnDiskRecord record, boolean isLive) {
+    if ((record.getPid().hashCode() & sampleMask) != 0) {
+      return;
+    }
+
+    PageStatistics statistics = sampledPages.get(record.getPid());
+    if (statistics == null) {
+      statistics = new PageStatistics();
+      sampledPages.put(record.getPid(), statistics);
+
+      if (sampledPages.size() > MAX_SAMPLED_PAGES) {
+        // Lets halve the sample
+        sampleMask = (sampleMask << 1) | 1;
+        Iterator<UUID> iterator = sampledPages.keySet().iterator();
+        while (iterator.hasNext()) {
+          if ((iterator.next().hashCode() & sampleMask) != 0) {
+            iterator.remove();
+          }
+        }
+        if (!sampledPages.containsKey(record.getPid())) {
+          return;
+        }
+      }
+    }
+
+    ++statistics.records;
+    if (!(record instanceof OnDiskPageRecord)) {
+      ++statistics.deltas;
+    }
+    if (isLive) {
+      ++statistics.liveRecords;
+    }
+  }
+
+  public String getReport() {
+    StringBuilder report = new StringBuilder();
+
+    report.append(String.format("%nFile: %d bytes in %d records%n", totalBytes, records));
+    report.append(String.format("Padding of failed writes: %d bytes%n", paddingBytes));
+    if (tornBytes > 0) {
+      report.append(String.format("Torn records at the end: %d bytes, dropped on the next open%n", tornBytes));
+    }
+    report.append(String.format("Live: %d bytes in %d records%n", liveBytes, liveRecords));
+    report.append(String.format("Superseded: %d bytes in %d records%n", supersededBytes, supersededRecords));
+    report.append(String.format("Newest tombstones: %d bytes in %d records%n", tombstoneBytes, tombstones));
+    report.append(String.format("Live records counted as superseded: about %.2f%%%n", 100.0 * keyFilterFpp));
+    report.append(String.format(
+        "Space amplification: %.2f%n", liveBytes > 0 ? (double) totalBytes / liveBytes : 0.0));
+    report.append(String.format(
+        "Records read on recovery per live key: %.2f%n", liveRecords > 0 ? (double) records / liveRecords : 0.0));
+    report.append(String.format(
+        "Projected compaction gain: %d bytes (%.1f%%)%n",
+        totalBytes - liveBytes, totalBytes > 0 ? 100.0 * (totalBytes - liveBytes) / totalBytes : 0.0));
+
+    long[] recordsPerPage = new long[64];
+    long[] deltasPerPage = new long[64];
+    long[] deadPerPage = new long[64];
+    for (PageStatistics statistics : sampledPages.values()) {
+      ++recordsPerPage[getBucket(statistics.records)];
+      ++deltasPerPage[getBucket(statistics.deltas)];
+      ++deadPerPage[getBucket(statistics.records - statistics.liveRecords)];
+    }
+
+    report.append(String.format("Pages: %d sampled, 1 in %d%n", sampledPages.size(), sampleMask + 1));
+    appendHistogram(report, "Records per page", recordsPerPage);
+    appendHistogram(report, "Delta chain length per page", deltasPerPage);
+    appendHistogram(report, "Dead records per page", deadPerPage);
+
+    return report.toString();
+  }
+
+  /**
+   * Returns the size of all records and padding, without the header and a torn end.
+   */
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public long getPaddingBytes() {
+    return paddingBytes;
+  }
+
+  public long getTornBytes() {
+    return tornBytes;
+  }
+
+  public long getRecords() {
+    return records;
+  }
+
+  public long getLiveRecords() {
+    return liveRecords;
+  }
+
+  /**
+   * Returns the power of two bucket of the count: 0, 1, 2, 3-4, 5-8 and so on.
+   */
+  private static int getBucket(long count) {
+    return count <= 1 ? (int) count : 65 - Long.numberOfLeadingZeros(count - 1);
+  }
+
+  private static void appendHistogram(StringBuilder report, String title, long[] buckets) {
+    report.append(String.format("%s:%n", title));
+    for (int i = 0; i < buckets.length; ++i) {
+      if (buckets[i] > 0) {
+        long low = i <= 1 ? i : (1L << (i - 2)) + 1;
+        long high = i <= 1 ? i : 1L << (i - 1);
+        if (low == high) {
+          report.append(String.format("  %d: %d%n", low, buckets[i]));
+        } else {
+          report.append(String.format("  %d-%d: %d%n", low, high, buckets[i]));
+        }
+      }
+    }
+  }
+
+}
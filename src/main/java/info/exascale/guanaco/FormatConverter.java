@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * FormatConverter rewrites a database file of the original layout (version 1) or of version 2 in the version 3
+ * format. Only the newest record of every live key is kept, as a page record with its original sequence number, so
+ * the database is compacted as well. Records of the original layout get their end offset as sequence number. The
+ * ValueLog is left as it is, value pointers are copied unchanged.
+ * <p>
+ * The database must be closed and its WriteAheadLog must be empty.
+ */
+public class FormatConverter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FormatConverter.class);
+
+  private static final int bufferSize = 1 << 20;
+
+  private FormatConverter() {
+  }
+
+  /**
+   * Converts the database in place. Returns false if it already is in the version 3 format.
+   */
+  public static boolean convert(File database) throws IOException {
+    if (database == null) throw new IllegalArgumentException();
+    if (!database.isFile()) throw new IOException(String.format("%s does not exist", database));
+
+    File log = WriteAheadLog.getFile(database);
+    if (log.exists() || new File(log.getPath() + ".old").exists()) {
+      throw new IOException(String.format("Open and close %s before converting it", database));
+    }
+
+    File target = new File(database.getPath() + ".v3");
+    int version;
+    try (StorageManager source = new StorageManager(database)) {
+      version = source.getVersion();
+      if (version == StorageManager.VERSION_3) {
+        return false;
+      }
+
+      if (target.exists() && !target.delete()) {
+        throw new IOException(String.format("Cannot delete %s", target));
+      }
+      try (StorageManager destination = new StorageManager(target)) {
+        copy(source, destination);
+        destination.sync();
+      }
+    }
+
+    Files.move(target.toPath(), database.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    // The hot pages are listed by pid, and the pids of a version 1 file have changed
+    File hot = CacheWarmer.getFile(database);
+    if (version == StorageManager.VERSION_1 && hot.exists() && !hot.delete()) {
+      throw new IOException(String.format("Cannot delete %s", hot));
+    }
+
+    return true;
+  }
+
+  private static void copy(StorageManager source, StorageManager destination) throws IOException {
+    Set<ByteArray> keys = new HashSet<>();
+    ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+    long records = 0;
+    long written = 0;
+
+    // Lets walk the file backwards, so the first record of a key is its newest one
+    StorageManager.RecordReader reader = source.reader();
+    while (reader.hasNext()) {
+      OnDiskRecord record = reader.next();
+      ++records;
+      if (!keys.add(record.getKey()) || record.isTombstone()) {
+        continue;
+      }
+
+      ByteArray key = record.getKey();
+      ByteArray value = source.read(record);
+      int size = destination.getPageRecordSize(key, value, record.getSequence());
+      if (size > buffer.remaining()) {
+        buffer.flip();
+        destination.append(buffer);
+        buffer.clear();
+        if (size > buffer.capacity()) {
+          buffer = ByteBuffer.allocate(size);
+        }
+      }
+      destination.encodePageRecord(buffer, Page.getDefaultPid(key), key, value, record.getSequence());
+      ++written;
+    }
+    buffer.flip();
+    destination.append(buffer);
+
+    LOG.info("Converted {} records into {} page records", records, written);
+  }
+
+  public static void main(String[] args) {
+    if (args.length != 1) {
+      LOG.error("Usage: FormatConverter <database>");
+      return;
+    }
+
+    try {
+      if (!convert(new File(args[0]))) {
+        LOG.info("{} is already in the current format", args[0]);
+      }
+    } catch (IOException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.util.UUID;
+
+/**
+ * Admits a page once it has been read threshold times. The reads are counted in a fixed-size table of counters
+ * indexed by the hash of the pid, so memory does not grow with the number of pages. Colliding pages share a
+ * counter, which can only admit a page early. All counters are halved periodically, so old reads are forgotten.
+ */
+public class FrequencyAdmissionPolicy implements AdmissionPolicy {
+
+  private static final int defaultSize = 1 << 16;
+
+  private final int threshold;
+  private final int[] counters;
+  private final int agingPeriod;
+
+  private int reads = 0;
+
+  public FrequencyAdmissionPolicy(int threshold) {
+    this(threshold, defaultSize);
+  }
+
+  public FrequencyAdmissionPolicy(int threshold, int size) {
+    if (threshold < 1) throw new IllegalArgumentException();
+    if (size < 1 || Integer.bitCount(size) != 1) throw new IllegalArgumentException();
+
+    this.threshold = threshold;
+    this.counters = new int[size];
+    this.agingPeriod = size * 8;
+  }
+
+  @Override
+  public boolean admit(UUID pid) {
+    if (pid == null) throw new IllegalArgumentException();
+
+    int hash = pid.hashCode();
+    int index = (hash ^ (hash >>> 16)) & (counters.length - 1);
+    if (counters[index] < Integer.MAX_VALUE) {
+      ++counters[index];
+    }
+    boolean admit = counters[index] >= threshold;
+
+    if (++reads >= agingPeriod) {
+      age();
+    }
+
+    return admit;
+  }
+
+  private void age() {
+    reads = 0;
+    for (int i = 0; i < counters.length; ++i) {
+      counters[i] >>>= 1;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("FrequencyAdmissionPolicy[threshold=%d, counters=%d]", threshold, counters.length);
+  }
+
+}
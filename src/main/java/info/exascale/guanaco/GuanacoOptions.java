@@ -0,0 +1,284 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.util.Comparator;
+
+/**
+ * Tuning knobs for a GuanacoStorageEngine. The defaults are safe for general use.
+ */
+public class GuanacoOptions {
+
+  /**
+   * Flushes the dirty pages in ascending key order.
+   */
+  public static final Comparator<ByteArray> FLUSH_BY_KEY = new Comparator<ByteArray>() {
+    @Override
+    public int compare(ByteArray key1, ByteArray key2) {
+      return key1.compareTo(key2);
+    }
+  };
+
+  private int hotPageCount = 4096;
+  private AdmissionPolicy admissionPolicy = AdmissionPolicy.ALWAYS;
+  private int iteratorBufferSize = 1024;
+  private boolean syncWrites = false;
+  private long checkpointSize = 64 << 20;
+  private int valueThreshold = Integer.MAX_VALUE;
+  private long valueLogSegmentSize = 64 << 20;
+  private double valueLogGarbageRatio = 0.5;
+  private int hotUpdateThreshold = 4;
+  private int flushThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+  private Comparator<ByteArray> flushOrder = null;
+  private long slowOperationThreshold = 0;
+  private long flushIoRate = 0;
+  private long backgroundIoRate = 64 << 20;
+  private long readLatencyTarget = 10000;
+  private MergeOperator mergeOperator = null;
+
+  public int getHotPageCount() {
+    return hotPageCount;
+  }
+
+  /**
+   * Sets how many of the most recently used pages are remembered on close() and prefetched on the next open.
+   * A value of 0 disables the cache warm-up.
+   */
+  public GuanacoOptions setHotPageCount(int hotPageCount) {
+    if (hotPageCount < 0) throw new IllegalArgumentException();
+
+    this.hotPageCount = hotPageCount;
+    return this;
+  }
+
+  public AdmissionPolicy getAdmissionPolicy() {
+    return admissionPolicy;
+  }
+
+  /**
+   * Sets the policy which decides whether a read miss loads the whole page into the cache or only reads the
+   * requested key.
+   */
+  public GuanacoOptions setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+    if (admissionPolicy == null) throw new IllegalArgumentException();
+
+    this.admissionPolicy = admissionPolicy;
+    return this;
+  }
+
+  public int getIteratorBufferSize() {
+    return iteratorBufferSize;
+  }
+
+  /**
+   * Sets how many entries an iterator reads ahead.
+   */
+  public GuanacoOptions setIteratorBufferSize(int iteratorBufferSize) {
+    if (iteratorBufferSize < 1) throw new IllegalArgumentException();
+
+    this.iteratorBufferSize = iteratorBufferSize;
+    return this;
+  }
+
+  public boolean getSyncWrites() {
+    return syncWrites;
+  }
+
+  /**
+   * Sets whether put() and delete() wait until the write is on stable storage. Without it, a write survives a crash
+   * of the process but not of the machine.
+   */
+  public GuanacoOptions setSyncWrites(boolean syncWrites) {
+    this.syncWrites = syncWrites;
+    return this;
+  }
+
+  public long getCheckpointSize() {
+    return checkpointSize;
+  }
+
+  /**
+   * Sets the size of the log in bytes at which dirty pages are flushed in the background and the log is truncated.
+   */
+  public GuanacoOptions setCheckpointSize(long checkpointSize) {
+    if (checkpointSize < 1) throw new IllegalArgumentException();
+
+    this.checkpointSize = checkpointSize;
+    return this;
+  }
+
+  public int getValueThreshold() {
+    return valueThreshold;
+  }
+
+  /**
+   * Sets the size in bytes above which put() stores a value in the value log and only a pointer in the page. By
+   * default all values are stored in the pages.
+   */
+  public GuanacoOptions setValueThreshold(int valueThreshold) {
+    if (valueThreshold < 0) throw new IllegalArgumentException();
+
+    this.valueThreshold = valueThreshold;
+    return this;
+  }
+
+  public long getValueLogSegmentSize() {
+    return valueLogSegmentSize;
+  }
+
+  /**
+   * Sets the size in bytes at which the value log starts a new segment.
+   */
+  public GuanacoOptions setValueLogSegmentSize(long valueLogSegmentSize) {
+    if (valueLogSegmentSize < 1) throw new IllegalArgumentException();
+
+    this.valueLogSegmentSize = valueLogSegmentSize;
+    return this;
+  }
+
+  public double getValueLogGarbageRatio() {
+    return valueLogGarbageRatio;
+  }
+
+  /**
+   * Sets the fraction of dead bytes at which a sealed value log segment is rewritten and deleted.
+   */
+  public GuanacoOptions setValueLogGarbageRatio(double valueLogGarbageRatio) {
+    if (valueLogGarbageRatio < 0 || valueLogGarbageRatio > 1) throw new IllegalArgumentException();
+
+    this.valueLogGarbageRatio = valueLogGarbageRatio;
+    return this;
+  }
+
+  public int getHotUpdateThreshold() {
+    return hotUpdateThreshold;
+  }
+
+  /**
+   * Sets how many recent updates make a page hot. Large values of hot pages go to their own value log segments,
+   * which die quickly, so the garbage collector rarely has to copy the values of cold pages.
+   */
+  public GuanacoOptions setHotUpdateThreshold(int hotUpdateThreshold) {
+    if (hotUpdateThreshold < 1) throw new IllegalArgumentException();
+
+    this.hotUpdateThreshold = hotUpdateThreshold;
+    return this;
+  }
+
+  public int getFlushThreads() {
+    return flushThreads;
+  }
+
+  /**
+   * Sets how many threads serialize and write dirty pages during a flush. Each thread writes its own range of the
+   * file, so a flush keeps several writes in flight. A value of 1 still writes in the background, one page at a time.
+   */
+  public GuanacoOptions setFlushThreads(int flushThreads) {
+    if (flushThreads < 1) throw new IllegalArgumentException();
+
+    this.flushThreads = flushThreads;
+    return this;
+  }
+
+  public Comparator<ByteArray> getFlushOrder() {
+    return flushOrder;
+  }
+
+  /**
+   * Sets the order in which a flush writes the dirty pages by their keys, so pages which are read together end up
+   * next to each other in the file. Use FLUSH_BY_KEY for the key order or a comparator of a clustering key, like a
+   * key prefix, for another grouping. A value of null writes the pages in no particular order, which is the default.
+   */
+  public GuanacoOptions setFlushOrder(Comparator<ByteArray> flushOrder) {
+    this.flushOrder = flushOrder;
+    return this;
+  }
+
+  public long getSlowOperationThreshold() {
+    return slowOperationThreshold;
+  }
+
+  /**
+   * Sets the time in milliseconds above which a get, put or delete is logged with the time spent in each phase.
+   * A value of 0 disables the tracing.
+   */
+  public GuanacoOptions setSlowOperationThreshold(long slowOperationThreshold) {
+    if (slowOperationThreshold < 0) throw new IllegalArgumentException();
+
+    this.slowOperationThreshold = slowOperationThreshold;
+    return this;
+  }
+
+  public long getFlushIoRate() {
+    return flushIoRate;
+  }
+
+  /**
+   * Sets the bytes per second a flush may write. A value of 0 disables the limit. A limited flush lets the log grow
+   * while it falls behind.
+   */
+  public GuanacoOptions setFlushIoRate(long flushIoRate) {
+    if (flushIoRate < 0) throw new IllegalArgumentException();
+
+    this.flushIoRate = flushIoRate;
+    return this;
+  }
+
+  public long getBackgroundIoRate() {
+    return backgroundIoRate;
+  }
+
+  /**
+   * Sets the bytes per second each of the value log garbage collection and the cache warm-up may transfer. A value
+   * of 0 disables the limit.
+   */
+  public GuanacoOptions setBackgroundIoRate(long backgroundIoRate) {
+    if (backgroundIoRate < 0) throw new IllegalArgumentException();
+
+    this.backgroundIoRate = backgroundIoRate;
+    return this;
+  }
+
+  public long getReadLatencyTarget() {
+    return readLatencyTarget;
+  }
+
+  /**
+   * Sets the average foreground read latency in microseconds above which background I/O is slowed down. A value of
+   * 0 disables the adaptation.
+   */
+  public GuanacoOptions setReadLatencyTarget(long readLatencyTarget) {
+    if (readLatencyTarget < 0) throw new IllegalArgumentException();
+
+    this.readLatencyTarget = readLatencyTarget;
+    return this;
+  }
+
+  public MergeOperator getMergeOperator() {
+    return mergeOperator;
+  }
+
+  /**
+   * Sets the operator which folds the operands of merge(). Without an operator merge() is not supported.
+   */
+  public GuanacoOptions setMergeOperator(MergeOperator mergeOperator) {
+    if (mergeOperator == null) throw new IllegalArgumentException();
+
+    this.mergeOperator = mergeOperator;
+    return this;
+  }
+
+}
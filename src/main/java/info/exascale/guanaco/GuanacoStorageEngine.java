@@ -15,17 +15,60 @@
  */
 package info.exascale.guanaco;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GuanacoStorageEngine implements Closeable {
 
+  private static final Logger LOG = LoggerFactory.getLogger(GuanacoStorageEngine.class);
+
   private static final String defaultFilename = "guanaco.db";
 
   private final IIndex index;
+  private final SnapshotManager snapshotManager = new SnapshotManager();
   private final CacheManager cacheManager;
   private final StorageManager storageManager;
+  private final CacheWarmer cacheWarmer;
+  private final WriteAheadLog log;
+  private final ValueLog valueLog;
+  private final SlowOperationLog slowOperationLog;
+  private final IoScheduler ioScheduler;
+  private final int iteratorBufferSize;
+  private final boolean syncWrites;
+  private final long checkpointSize;
+  private final int valueThreshold;
+  private final double valueLogGarbageRatio;
+  private final MergeOperator mergeOperator;
+
+  // Pages are flushed lazily by a background checkpoint once the log has grown large enough
+  private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("guanaco-checkpoint-%d").setDaemon(true).build());
+  private final AtomicBoolean isCheckpointPending = new AtomicBoolean(false);
+
+  // Threads which write the snapshots of the dirty pages, so the flushing thread only waits for them
+  private final ExecutorService flushWorkers;
 
   public static GuanacoStorageEngine createDatabase() throws IOException {
     return createDatabase(defaultFilename);
@@ -38,6 +81,28 @@ public class GuanacoStorageEngine implements Closeable {
   }
 
   public static GuanacoStorageEngine createDatabase(File file) throws IOException {
+    return createDatabase(file, new GuanacoOptions());
+  }
+
+  public static GuanacoStorageEngine createDatabase(String filename, GuanacoOptions options) throws IOException {
+    if (filename == null) throw new IllegalArgumentException();
+
+    return createDatabase(new File(filename), options);
+  }
+
+  public static GuanacoStorageEngine createDatabase(File file, GuanacoOptions options) throws IOException {
+    if (file == null) throw new IllegalArgumentException();
+    if (options == null) throw new IllegalArgumentException();
+
+    deleteDatabase(file);
+
+    return new GuanacoStorageEngine(file, options);
+  }
+
+  /**
+   * Deletes the database file together with its logs and its hot page list.
+   */
+  public static void deleteDatabase(File file) throws IOException {
     if (file == null) throw new IllegalArgumentException();
 
     if (file.exists()) {
@@ -50,7 +115,13 @@ public class GuanacoStorageEngine implements Closeable {
       }
     }
 
-    return new GuanacoStorageEngine(file);
+    File hotPages = CacheWarmer.getFile(file);
+    if (hotPages.exists() && !hotPages.delete()) {
+      throw new IOException(String.format("Cannot delete hot page list %s", hotPages));
+    }
+
+    WriteAheadLog.delete(file);
+    ValueLog.delete(file);
   }
 
   public static GuanacoStorageEngine openDatabase() throws IOException {
@@ -64,21 +135,66 @@ public class GuanacoStorageEngine implements Closeable {
   }
 
   public static GuanacoStorageEngine openDatabase(File file) throws IOException {
+    return openDatabase(file, new GuanacoOptions());
+  }
+
+  public static GuanacoStorageEngine openDatabase(String filename, GuanacoOptions options) throws IOException {
+    if (filename == null) throw new IllegalArgumentException();
+
+    return openDatabase(new File(filename), options);
+  }
+
+  public static GuanacoStorageEngine openDatabase(File file, GuanacoOptions options) throws IOException {
     if (file == null) throw new IllegalArgumentException();
+    if (options == null) throw new IllegalArgumentException();
+
+    // The original layout has no sequence numbers and can't be appended to, so lets convert it first
+    if (file.isFile() && file.length() > 0 && StorageManager.getVersion(file) == StorageManager.VERSION_1) {
+      LOG.info("Converting {} to the current file format", file);
+      FormatConverter.convert(file);
+    }
 
-    return new GuanacoStorageEngine(file);
+    return new GuanacoStorageEngine(file, options);
   }
 
-  private GuanacoStorageEngine(File file) throws IOException {
+  private GuanacoStorageEngine(File file, GuanacoOptions options) throws IOException {
     if (file == null) throw new IllegalArgumentException();
+    if (options == null) throw new IllegalArgumentException();
 
-    storageManager = new StorageManager(file);
-    cacheManager = new CacheManager(storageManager);
-    index = new HashMapIndex(cacheManager);
+    ioScheduler = new IoScheduler(
+        options.getFlushIoRate(), options.getBackgroundIoRate(), options.getReadLatencyTarget());
+    storageManager = new StorageManager(file, ioScheduler);
+    cacheManager = new CacheManager(storageManager, options);
+    log = new WriteAheadLog(file);
+    valueLog = new ValueLog(file, options.getValueLogSegmentSize(), ioScheduler);
+    index = new HashMapIndex(cacheManager, snapshotManager, log, options.getMergeOperator());
+    cacheWarmer = new CacheWarmer(file, cacheManager, ioScheduler);
+    slowOperationLog = new SlowOperationLog(options.getSlowOperationThreshold());
+    iteratorBufferSize = options.getIteratorBufferSize();
+    syncWrites = options.getSyncWrites();
+    checkpointSize = options.getCheckpointSize();
+    valueThreshold = options.getValueThreshold();
+    valueLogGarbageRatio = options.getValueLogGarbageRatio();
+    mergeOperator = options.getMergeOperator();
+    flushWorkers = Executors.newFixedThreadPool(options.getFlushThreads(),
+        new ThreadFactoryBuilder().setNameFormat("guanaco-flush-%d").setDaemon(true).build());
 
     try {
-      storageManager.initialize(cacheManager, index);
-    } catch (IOException e) {
+      snapshotManager.advance(storageManager.initialize(cacheManager, index));
+
+      // Lets replay the log on top of the pages and persist the result, so we can start with an empty log
+      replayLog();
+      flushPages();
+      storageManager.sync();
+      log.open();
+
+      cacheWarmer.start();
+    } catch (IOException | RuntimeException e) {
+      checkpointer.shutdownNow();
+      flushWorkers.shutdown();
+      slowOperationLog.close();
+      log.close();
+      valueLog.close();
       storageManager.close();
       throw e;
     }
@@ -87,30 +203,633 @@ public class GuanacoStorageEngine implements Closeable {
   public ByteArray get(ByteArray key) throws IOException {
     if (key == null) throw new IllegalArgumentException();
 
-    return index.get(key);
+    OperationTrace trace = slowOperationLog.begin();
+    long epoch = valueLog.enter();
+    try {
+      return resolve(index.get(key));
+    } finally {
+      valueLog.exit(epoch);
+      slowOperationLog.end(trace, "get");
+    }
+  }
+
+  /**
+   * Reads the value of the key as it was when the snapshot was taken.
+   */
+  public ByteArray get(ByteArray key, Snapshot snapshot) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (snapshot == null) throw new IllegalArgumentException();
+    if (snapshot.isClosed()) throw new IllegalStateException();
+
+    OperationTrace trace = slowOperationLog.begin();
+    long epoch = valueLog.enter();
+    try {
+      return resolve(index.get(key, snapshot.getSequence()));
+    } finally {
+      valueLog.exit(epoch);
+      slowOperationLog.end(trace, "get");
+    }
+  }
+
+  /**
+   * Returns a channel which reads the value of the key or null if the key does not exist. A value stored with
+   * putStream() is read straight from the file in chunks. Use ValueChannel.transferTo() to copy it without
+   * passing it through the heap.
+   */
+  public ReadableByteChannel getStream(ByteArray key) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+
+    long epoch = valueLog.enter();
+    ValueChannel channel = null;
+    try {
+      ByteArray value = index.get(key);
+      if (value == null) {
+        return null;
+      } else if (value instanceof ValuePointer) {
+        // The channel exits the epoch when it is closed, so the segment stays until the caller is done
+        channel = valueLog.read((ValuePointer) value, epoch);
+        return channel;
+      } else {
+        return Channels.newChannel(new ByteArrayInputStream(value.get()));
+      }
+    } finally {
+      if (channel == null) {
+        valueLog.exit(epoch);
+      }
+    }
+  }
+
+  /**
+   * Returns a read-only view of the value of the key or null if the key does not exist. A value on disk is served
+   * from a memory-mapped region of the database file without loading its page into the cache, so the OS page
+   * cache does the caching. Neither an in-memory nor a mapped value is copied.
+   * <p>
+   * The view is a snapshot of the value, later writes don't change it. The file is append-only, so the view stays
+   * valid even after the database has been closed. The mapping is released when the last view of it has been
+   * garbage collected.
+   */
+  public ByteBuffer getBuffer(ByteArray key) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+
+    OperationTrace trace = slowOperationLog.begin();
+    try {
+      OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.INDEX);
+      UUID pid = index.getPid(key);
+      OperationTrace.exit(previous);
+      if (pid == null) {
+        return null;
+      }
+
+      previous = OperationTrace.enter(OperationTrace.Phase.PAGE_RESOLVE);
+      long epoch = valueLog.enter();
+      try {
+        return cacheManager.getBuffer(pid, key, valueLog);
+      } finally {
+        valueLog.exit(epoch);
+        OperationTrace.exit(previous);
+      }
+    } finally {
+      slowOperationLog.end(trace, "get");
+    }
+  }
+
+  private ByteArray resolve(ByteArray value) throws IOException {
+    if (value instanceof ValuePointer) {
+      return valueLog.get((ValuePointer) value);
+    }
+
+    return value;
+  }
+
+  /**
+   * Returns a consistent view of the database. Close the snapshot when done, as it keeps old versions in memory.
+   */
+  public Snapshot snapshot() {
+    return snapshotManager.snapshot();
+  }
+
+  /**
+   * Returns an iterator over all live key/value pairs as of now. Pages are not loaded into the cache. Close the
+   * iterator if it is not read to the end.
+   */
+  public StorageIterator iterator() {
+    return new StorageIterator(cacheManager, valueLog, snapshotManager.snapshot(), iteratorBufferSize);
+  }
+
+  /**
+   * Returns a BulkLoader which fills this database from pairs in ascending key order. The database must be empty
+   * and there must be no other writes until the loader is closed.
+   */
+  public BulkLoader bulkLoader() {
+    return new BulkLoader(storageManager, cacheManager, index, snapshotManager, valueLog, valueThreshold);
+  }
+
+  /**
+   * Returns a ReplicationServer which ships every write to this database file to ReplicationFollowers. Close the
+   * server before the database.
+   */
+  public ReplicationServer replicationServer() {
+    return new ReplicationServer(storageManager, valueLog);
+  }
+
+  /**
+   * Fills this empty database from pairs in ascending key order.
+   */
+  public void bulkLoad(Iterator<Map.Entry<ByteArray, ByteArray>> entries) throws IOException {
+    if (entries == null) throw new IllegalArgumentException();
+
+    try (BulkLoader loader = bulkLoader()) {
+      while (entries.hasNext()) {
+        Map.Entry<ByteArray, ByteArray> entry = entries.next();
+        loader.add(entry.getKey(), entry.getValue());
+      }
+    }
   }
 
   public void put(ByteArray key, ByteArray value) throws IOException {
     if (key == null) throw new IllegalArgumentException();
     if (value == null) throw new IllegalArgumentException();
 
-    index.put(key, value);
+    OperationTrace trace = slowOperationLog.begin();
+    try {
+      index.put(key, separate(key, value));
+      commit();
+    } finally {
+      slowOperationLog.end(trace, "put");
+    }
+  }
+
+  /**
+   * Puts the value only if the key does not exist. Returns whether it did.
+   */
+  public boolean putIfAbsent(ByteArray key, ByteArray value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    OperationTrace trace = slowOperationLog.begin();
+    try {
+      if (value.length() > valueThreshold && index.get(key) != null) {
+        // Don't leave a large value behind as garbage in the value log
+        return false;
+      }
+
+      boolean isPut = index.putIfAbsent(key, separate(key, value));
+      if (isPut) {
+        commit();
+      }
+
+      return isPut;
+    } finally {
+      slowOperationLog.end(trace, "putIfAbsent");
+    }
+  }
+
+  /**
+   * Puts the value only if the key currently has the expected value. Returns whether it did.
+   */
+  public boolean replace(ByteArray key, ByteArray expected, ByteArray value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (expected == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    OperationTrace trace = slowOperationLog.begin();
+    long epoch = valueLog.enter();
+    try {
+      if (value.length() > valueThreshold && !matches(index.get(key), expected)) {
+        // Don't leave a large value behind as garbage in the value log
+        return false;
+      }
+
+      ByteArray newValue = separate(key, value);
+      while (true) {
+        if (index.replace(key, expected, newValue)) {
+          commit();
+          return true;
+        }
+
+        ByteArray current = index.get(key);
+        if (!(current instanceof ValuePointer) || !matches(current, expected)) {
+          return false;
+        }
+        if (index.replace(key, current, newValue)) {
+          commit();
+          return true;
+        }
+      }
+    } finally {
+      valueLog.exit(epoch);
+      slowOperationLog.end(trace, "replace");
+    }
+  }
+
+  /**
+   * Returns whether the current value equals the expected one. The current value might be in the value log, then we
+   * have to compare its content.
+   */
+  private boolean matches(ByteArray current, ByteArray expected) throws IOException {
+    if (current instanceof ValuePointer) {
+      return valueLog.get((ValuePointer) current).equals(expected);
+    }
+
+    return expected.equals(current);
+  }
+
+  /**
+   * Adds an operand which the MergeOperator folds into the value of the key. The value is not read, so the cost is a
+   * small log append. Throws IllegalStateException if the options have no MergeOperator.
+   */
+  public void merge(ByteArray key, ByteArray operand) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (operand == null) throw new IllegalArgumentException();
+    if (mergeOperator == null) throw new IllegalStateException("No merge operator");
+
+    OperationTrace trace = slowOperationLog.begin();
+    long epoch = valueLog.enter();
+    try {
+      fold(key, operand);
+      commit();
+    } finally {
+      valueLog.exit(epoch);
+      slowOperationLog.end(trace, "merge");
+    }
+  }
+
+  private void fold(ByteArray key, ByteArray operand) throws IOException {
+    while (!index.merge(key, operand)) {
+      // The value is in the value log, so we have to read it and fold the operand here
+      ByteArray current = index.get(key);
+      if (current instanceof ValuePointer) {
+        ByteArray value = mergeOperator.merge(
+            key, valueLog.get((ValuePointer) current), Collections.singletonList(operand));
+        if (value == null) {
+          throw new IllegalStateException("The merge operator returned null");
+        }
+        if (index.replace(key, current, separate(key, value))) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies the logged writes which have not reached the page store. A crash after a flush but before the log is
+   * deleted leaves writes in the log which the pages already hold. Replaying a merge operand twice would fold it
+   * twice, so a record is skipped if the newest record of its key on disk or in the replay so far has the same or a
+   * newer sequence number.
+   */
+  private void replayLog() throws IOException {
+    log.replay(new WriteAheadLog.Replayer() {
+
+      // The sequence number of the newest applied write by key
+      private final Map<ByteArray, Long> replayed = new HashMap<>();
+
+      @Override
+      public void put(ByteArray key, ByteArray value, long sequence) throws IOException {
+        if (begin(key, sequence)) {
+          index.put(key, value);
+        }
+      }
+
+      @Override
+      public void merge(ByteArray key, ByteArray operand, long sequence) throws IOException {
+        if (begin(key, sequence)) {
+          if (mergeOperator == null) {
+            throw new IOException("The log contains merge operands, but the options have no merge operator");
+          }
+          fold(key, operand);
+        }
+      }
+
+      @Override
+      public void delete(ByteArray key, long sequence) throws IOException {
+        if (begin(key, sequence)) {
+          index.delete(key);
+        }
+      }
+
+      private boolean begin(ByteArray key, long sequence) {
+        Long newest = replayed.get(key);
+        if (newest == null) {
+          UUID pid = index.getPid(key);
+          OnDiskPage page = pid != null ? cacheManager.getOnDiskPage(pid) : null;
+          OnDiskRecord record = page != null ? page.getRecord(key) : null;
+          newest = record != null ? record.getSequence() : 0;
+        }
+        if (newest >= sequence) {
+          return false;
+        }
+        replayed.put(key, sequence);
+
+        // The replayed write gets a newer sequence number than the logged one, so a crash before the log is deleted
+        // does not replay it again
+        snapshotManager.advance(sequence);
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Moves a value above the threshold to the value log and returns the pointer which is stored in its place.
+   */
+  private ByteArray separate(ByteArray key, ByteArray value) throws IOException {
+    if (value.length() <= valueThreshold) {
+      return value;
+    }
+
+    // Lets keep large values out of the pages, so flushes and page loads stay cheap
+    ValuePointer pointer = valueLog.append(key, value, isHot(key));
+    if (syncWrites) {
+      syncValueLog();
+    }
+
+    return pointer;
+  }
+
+  /**
+   * Returns whether the page of the key is hot, so its large values go to the hot segment of the value log.
+   */
+  private boolean isHot(ByteArray key) {
+    UUID pid = index.getPid(key);
+    return pid != null && cacheManager.isHot(pid);
+  }
+
+  /**
+   * Puts the value read from the stream until its end. The value goes to the ValueLog in chunks, so it may be larger
+   * than the heap.
+   */
+  public void putStream(ByteArray key, InputStream value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    putStream(key, Channels.newChannel(value));
+  }
+
+  /**
+   * Puts the value read from the channel until its end. A FileChannel is copied without passing through the heap.
+   */
+  public void putStream(ByteArray key, ReadableByteChannel value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    OperationTrace trace = slowOperationLog.begin();
+    try {
+      ValuePointer pointer = valueLog.append(key, value, isHot(key));
+      if (syncWrites) {
+        // The value must be durable before the log refers to it
+        syncValueLog();
+      }
+
+      index.put(key, pointer);
+      commit();
+    } finally {
+      slowOperationLog.end(trace, "put");
+    }
   }
 
   public void delete(ByteArray key) throws IOException {
     if (key == null) throw new IllegalArgumentException();
 
-    index.delete(key);
+    OperationTrace trace = slowOperationLog.begin();
+    try {
+      index.delete(key);
+      commit();
+    } finally {
+      slowOperationLog.end(trace, "delete");
+    }
   }
 
-  public void flush() throws IOException {
-    cacheManager.flush();
+  /**
+   * Deletes the keys with a single commit and returns how many of them existed.
+   */
+  public int delete(List<ByteArray> keys) throws IOException {
+    if (keys == null) throw new IllegalArgumentException();
+    for (ByteArray key : keys) {
+      if (key == null) throw new IllegalArgumentException();
+    }
+
+    OperationTrace trace = slowOperationLog.begin();
+    try {
+      int deleted = 0;
+      for (ByteArray key : keys) {
+        if (index.getAndDelete(key) != null) {
+          ++deleted;
+        }
+      }
+      if (deleted > 0) {
+        commit();
+      }
+
+      return deleted;
+    } finally {
+      slowOperationLog.end(trace, "delete");
+    }
+  }
+
+  /**
+   * Applies the puts and deletes of the batch in order. They share a single commit, so with synchronous writes the
+   * whole batch costs one sync of the log.
+   */
+  public void write(WriteBatch batch) throws IOException {
+    if (batch == null) throw new IllegalArgumentException();
+
+    OperationTrace trace = slowOperationLog.begin();
+    try {
+      for (int i = 0; i < batch.size(); ++i) {
+        ByteArray key = batch.getKey(i);
+        ByteArray value = batch.getValue(i);
+        if (value != null) {
+          index.put(key, separate(key, value));
+        } else {
+          index.delete(key);
+        }
+      }
+      commit();
+    } finally {
+      slowOperationLog.end(trace, "write");
+    }
+  }
+
+  /**
+   * Deletes the key and returns its value or null if the key did not exist.
+   */
+  public ByteArray getAndDelete(ByteArray key) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+
+    OperationTrace trace = slowOperationLog.begin();
+    long epoch = valueLog.enter();
+    try {
+      ByteArray value = index.getAndDelete(key);
+      if (value == null) {
+        // Nothing was removed, so there is nothing to commit
+        return null;
+      }
+      commit();
+
+      return resolve(value);
+    } finally {
+      valueLog.exit(epoch);
+      slowOperationLog.end(trace, "getAndDelete");
+    }
+  }
+
+  private void syncValueLog() throws IOException {
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.FLUSH_WAIT);
+    try {
+      valueLog.sync();
+    } finally {
+      OperationTrace.exit(previous);
+    }
+  }
+
+  private void commit() throws IOException {
+    if (syncWrites) {
+      OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.FLUSH_WAIT);
+      try {
+        log.sync();
+      } finally {
+        OperationTrace.exit(previous);
+      }
+    }
+
+    if (log.size() >= checkpointSize && isCheckpointPending.compareAndSet(false, true)) {
+      checkpointer.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            flush();
+            collectValueLog();
+          } catch (IOException | RuntimeException e) {
+            LOG.warn("Checkpoint failed", e);
+          } finally {
+            isCheckpointPending.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Writes all dirty pages and truncates the log.
+   */
+  public synchronized void flush() throws IOException {
+    IoScheduler.IoClass previous = ioScheduler.enter(IoScheduler.IoClass.FLUSH);
+    try {
+      // Every write in the old log is installed once the running writes have finished
+      log.rotate();
+      snapshotManager.awaitWrites();
+
+      flushPages();
+      valueLog.sync();
+      storageManager.sync();
+      log.deleteOldLog();
+    } finally {
+      ioScheduler.exit(previous);
+    }
+  }
+
+  /**
+   * Reclaims the space of overwritten and deleted values in the value log. Every sealed segment with enough garbage
+   * has its live values copied to the cold segment and is deleted. While a snapshot is open the segments are kept,
+   * as the snapshot might still read them, and a later run deletes them.
+   */
+  public synchronized void collectValueLog() throws IOException {
+    IoScheduler.IoClass previous = ioScheduler.enter(IoScheduler.IoClass.COMPACTION);
+    try {
+      collectValueLogSegments();
+    } finally {
+      ioScheduler.exit(previous);
+    }
+  }
+
+  private void collectValueLogSegments() throws IOException {
+    List<Integer> collected = new ArrayList<>();
+
+    for (int segment : valueLog.getSealedSegments()) {
+      // A value is live if its key still points to it
+      List<Map.Entry<ByteArray, ValuePointer>> live = new ArrayList<>();
+      long liveSize = 0;
+      for (Map.Entry<ByteArray, ValuePointer> entry : valueLog.getEntries(segment)) {
+        if (entry.getValue().equals(index.get(entry.getKey()))) {
+          live.add(entry);
+          liveSize += entry.getValue().getSize();
+        }
+      }
+
+      long size = valueLog.getSize(segment);
+      if (size > 0 && 1 - (double) liveSize / size < valueLogGarbageRatio) {
+        continue;
+      }
+
+      for (Map.Entry<ByteArray, ValuePointer> entry : live) {
+        // If the key has been written in the meantime, the copy is garbage already
+        index.replace(entry.getKey(), entry.getValue(), valueLog.copy(entry.getKey(), entry.getValue()));
+      }
+      collected.add(segment);
+    }
+
+    if (collected.isEmpty()) {
+      return;
+    }
+
+    // The new pointers must be durable before the old values are gone
+    flush();
+
+    if (snapshotManager.getOldestSequence() == Long.MAX_VALUE) {
+      for (int segment : collected) {
+        valueLog.delete(segment);
+      }
+      LOG.info("Collected {} value log segments", collected.size());
+    }
+  }
+
+  private void flushPages() throws IOException {
+    // Lets drop the keys of all pages which hold nothing but durable tombstones. The page goes last, as until then
+    // no new page can take its pid.
+    for (Page page : cacheManager.flush(snapshotManager, flushWorkers)) {
+      for (ByteArray key : page.getKeys()) {
+        index.remove(key, page.getPid());
+      }
+      cacheManager.remove(page);
+    }
   }
 
   @Override
   public void close() throws IOException {
-    flush();
-    storageManager.close();
+    try {
+      cacheWarmer.stop();
+      checkpointer.shutdown();
+      try {
+        if (!checkpointer.awaitTermination(1, TimeUnit.MINUTES)) {
+          throw new IOException("Cannot stop the checkpoint");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      flush();
+      cacheWarmer.save();
+    } finally {
+      flushWorkers.shutdown();
+      try {
+        slowOperationLog.close();
+        log.close();
+        valueLog.close();
+      } finally {
+        storageManager.close();
+      }
+    }
+  }
+
+  void awaitWarmUp() throws InterruptedException {
+    cacheWarmer.await();
+  }
+
+  CacheManager getCacheManager() {
+    return cacheManager;
+  }
+
+  IIndex getIndex() {
+    return index;
   }
 
 }
@@ -16,9 +16,9 @@
 package info.exascale.guanaco;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * HashMapIndex maps a key to a pid. For now this is just a one-to-one mapping.
@@ -27,62 +27,266 @@ import java.util.UUID;
 public class HashMapIndex implements IIndex {
 
   private final CacheManager cacheManager;
-  private final Map<ByteArray, UUID> map = new HashMap<>();
+  private final SnapshotManager snapshotManager;
+  private final WriteAheadLog log;
+  private final MergeOperator mergeOperator;
+  private final ConcurrentMap<ByteArray, UUID> map = new ConcurrentHashMap<>();
 
-  public HashMapIndex(CacheManager cacheManager) {
+  public HashMapIndex(CacheManager cacheManager, SnapshotManager snapshotManager, WriteAheadLog log) {
+    this(cacheManager, snapshotManager, log, null);
+  }
+
+  /**
+   * Creates an index which folds merge operands with the given operator. The operator may be null if merges are not
+   * used.
+   */
+  public HashMapIndex(
+      CacheManager cacheManager, SnapshotManager snapshotManager, WriteAheadLog log, MergeOperator mergeOperator) {
     if (cacheManager == null) throw new IllegalArgumentException();
+    if (snapshotManager == null) throw new IllegalArgumentException();
+    if (log == null) throw new IllegalArgumentException();
 
     this.cacheManager = cacheManager;
+    this.snapshotManager = snapshotManager;
+    this.log = log;
+    this.mergeOperator = mergeOperator;
   }
 
   @Override
   public ByteArray get(ByteArray key) throws IOException {
+    return get(key, Long.MAX_VALUE);
+  }
+
+  @Override
+  public ByteArray get(ByteArray key, long sequence) throws IOException {
     if (key == null) throw new IllegalArgumentException();
 
     ByteArray value = null;
 
     // Get the page for the key
-    UUID pid = map.get(key);
+    UUID pid = lookup(key);
     if (pid != null) {
-      // We have found the page. Lets get the InMemoryPage from the CacheManager.
-      InMemoryPage page = cacheManager.getInMemoryPage(pid);
-      value = page.get(key);
+      // We have found the page. Lets read the value through the CacheManager.
+      OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.PAGE_RESOLVE);
+      try {
+        value = cacheManager.get(pid, key, sequence);
+      } finally {
+        OperationTrace.exit(previous);
+      }
     }
 
     return value;
   }
 
+  @Override
+  public UUID getPid(ByteArray key) {
+    if (key == null) throw new IllegalArgumentException();
+
+    return map.get(key);
+  }
+
   @Override
   public void put(ByteArray key, ByteArray value) throws IOException {
     if (key == null) throw new IllegalArgumentException();
     if (value == null) throw new IllegalArgumentException();
 
-    InMemoryPage page;
+    while (true) {
+      // Get the page for the key
+      UUID pid = lookup(key);
+      InMemoryPage page = getPage(key, pid);
+
+      boolean isPut;
+      OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.DELTA_APPLY);
+      try {
+        isPut = page != null && page.put(key, value, snapshotManager, log);
+      } finally {
+        OperationTrace.exit(previous);
+      }
+      if (isPut) {
+        return;
+      }
+
+      // The page has been reclaimed. Lets drop the stale mapping and try again.
+      if (pid != null) {
+        map.remove(key, pid);
+      }
+    }
+  }
+
+  @Override
+  public boolean putIfAbsent(ByteArray key, ByteArray value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    while (true) {
+      // Get the page for the key
+      UUID pid = lookup(key);
+      InMemoryPage page = getPage(key, pid);
+
+      if (page != null) {
+        OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.DELTA_APPLY);
+        try {
+          if (page.putIfAbsent(key, value, snapshotManager, log)) {
+            return true;
+          } else if (!page.isRetired()) {
+            // The key exists
+            return false;
+          }
+        } finally {
+          OperationTrace.exit(previous);
+        }
+      }
+
+      // The page has been reclaimed. Lets drop the stale mapping and try again.
+      if (pid != null) {
+        map.remove(key, pid);
+      }
+    }
+  }
+
+  @Override
+  public boolean replace(ByteArray key, ByteArray expected, ByteArray value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (expected == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
 
     // Get the page for the key
-    UUID pid = map.get(key);
+    UUID pid = lookup(key);
     if (pid == null) {
-      // We have no page for this key. Lets create one and install it in our map.
-      page = cacheManager.createInMemoryPage();
-      map.put(key, page.getPid());
-    } else {
-      // We have found the page. Lets get the InMemoryPage from the CacheManager.
-      page = cacheManager.getInMemoryPage(pid);
+      return false;
+    }
+
+    // A reclaimed page holds no value, so there is nothing to replace
+    InMemoryPage page = getPage(key, pid);
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.DELTA_APPLY);
+    try {
+      return page != null && page.replace(key, expected, value, snapshotManager, log);
+    } finally {
+      OperationTrace.exit(previous);
     }
-    page.put(key, value);
   }
 
   @Override
-  public void delete(ByteArray key) throws IOException {
+  public boolean merge(ByteArray key, ByteArray operand) throws IOException {
     if (key == null) throw new IllegalArgumentException();
+    if (operand == null) throw new IllegalArgumentException();
+    if (mergeOperator == null) throw new IllegalStateException("No merge operator");
 
-    // Get the page for the key
+    while (true) {
+      // Get the page for the key
+      UUID pid = lookup(key);
+      InMemoryPage page = getPage(key, pid);
+
+      if (page != null) {
+        OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.DELTA_APPLY);
+        try {
+          if (page.merge(key, operand, mergeOperator, snapshotManager, log)) {
+            return true;
+          } else if (!page.isRetired()) {
+            // The value is in the ValueLog
+            return false;
+          }
+        } finally {
+          OperationTrace.exit(previous);
+        }
+      }
+
+      // The page has been reclaimed. Lets drop the stale mapping and try again.
+      if (pid != null) {
+        map.remove(key, pid);
+      }
+    }
+  }
+
+  /**
+   * Looks up the pid of the key.
+   */
+  private UUID lookup(ByteArray key) {
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.INDEX);
+    try {
+      return map.get(key);
+    } finally {
+      OperationTrace.exit(previous);
+    }
+  }
+
+  /**
+   * Returns the InMemoryPage of the pid or creates a page for the key if there is no pid. Returns null if the page
+   * has been reclaimed.
+   */
+  private InMemoryPage getPage(ByteArray key, UUID pid) throws IOException {
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.PAGE_RESOLVE);
+    try {
+      if (pid == null) {
+        return createPage(key);
+      } else {
+        // We have found the page. Lets get the InMemoryPage from the CacheManager.
+        cacheManager.recordUpdate(pid);
+        return cacheManager.getInMemoryPage(pid);
+      }
+    } finally {
+      OperationTrace.exit(previous);
+    }
+  }
+
+  private synchronized InMemoryPage createPage(ByteArray key) throws IOException {
+    // Look again, another writer might have created the page in the meantime
     UUID pid = map.get(key);
     if (pid != null) {
-      // We have found the page. Lets get the InMemoryPage from the CacheManager.
       InMemoryPage page = cacheManager.getInMemoryPage(pid);
-      page.delete(key);
+      if (page != null && !page.isRetired()) {
+        return page;
+      }
     }
+
+    // We have no page for this key. Lets create one and install it in our map.
+    InMemoryPage page = cacheManager.createInMemoryPage(key);
+    map.put(key, page.getPid());
+
+    return page;
+  }
+
+  @Override
+  public void delete(ByteArray key) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+
+    getAndDelete(key, false);
+  }
+
+  @Override
+  public ByteArray getAndDelete(ByteArray key) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+
+    return getAndDelete(key, true);
+  }
+
+  private ByteArray getAndDelete(ByteArray key, boolean isGet) throws IOException {
+    // Get the page for the key
+    UUID pid = lookup(key);
+    if (pid == null) {
+      return null;
+    }
+
+    ByteArray value = null;
+    InMemoryPage page = getPage(key, pid);
+    if (page != null) {
+      OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.DELTA_APPLY);
+      try {
+        if (isGet) {
+          value = page.getAndDelete(key, snapshotManager, log);
+        } else {
+          page.delete(key, snapshotManager, log);
+        }
+      } finally {
+        OperationTrace.exit(previous);
+      }
+    }
+    if (page == null || page.isRetired()) {
+      // The page has been reclaimed, so the key is already deleted
+      map.remove(key, pid);
+    }
+
+    return value;
   }
 
   @Override
@@ -93,4 +297,17 @@ public class HashMapIndex implements IIndex {
     map.put(key, page.getPid());
   }
 
+  @Override
+  public void remove(ByteArray key, UUID pid) {
+    if (key == null) throw new IllegalArgumentException();
+    if (pid == null) throw new IllegalArgumentException();
+
+    map.remove(key, pid);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
 }
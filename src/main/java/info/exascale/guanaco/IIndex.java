@@ -16,15 +16,51 @@
 package info.exascale.guanaco;
 
 import java.io.IOException;
+import java.util.UUID;
 
 public interface IIndex {
 
   ByteArray get(ByteArray key) throws IOException;
 
+  ByteArray get(ByteArray key, long sequence) throws IOException;
+
+  /**
+   * Returns the pid of the page which holds the key or null if there is none.
+   */
+  UUID getPid(ByteArray key);
+
   void put(ByteArray key, ByteArray value) throws IOException;
 
+  /**
+   * Puts the value only if the key does not exist. Returns whether it did.
+   */
+  boolean putIfAbsent(ByteArray key, ByteArray value) throws IOException;
+
+  /**
+   * Puts the value only if the key currently maps to the expected value. Returns whether it did.
+   */
+  boolean replace(ByteArray key, ByteArray expected, ByteArray value) throws IOException;
+
+  /**
+   * Adds a merge operand to the key. Returns false if the value of the key is in the ValueLog, in which case the
+   * caller has to fold the operand itself.
+   */
+  boolean merge(ByteArray key, ByteArray operand) throws IOException;
+
   void delete(ByteArray key) throws IOException;
 
+  /**
+   * Deletes the key and returns its value or null if the key did not exist.
+   */
+  ByteArray getAndDelete(ByteArray key) throws IOException;
+
   void add(ByteArray key, OnDiskPage page);
 
+  /**
+   * Removes the key if it still maps to the given page.
+   */
+  void remove(ByteArray key, UUID pid);
+
+  int size();
+
 }
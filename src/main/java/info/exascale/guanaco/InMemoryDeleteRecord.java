@@ -15,13 +15,12 @@
  */
 package info.exascale.guanaco;
 
-import java.io.IOException;
 import java.util.UUID;
 
 public class InMemoryDeleteRecord extends InMemoryRecord {
 
-  public InMemoryDeleteRecord(UUID pageId, ByteArray key) {
-    super(pageId, key);
+  public InMemoryDeleteRecord(UUID pageId, ByteArray key, long sequence) {
+    super(pageId, key, sequence);
   }
 
   @Override
@@ -30,8 +29,18 @@ public class InMemoryDeleteRecord extends InMemoryRecord {
   }
 
   @Override
-  public void write(StorageManager storageManager) throws IOException {
-    storageManager.write(this);
+  public boolean isTombstone() {
+    return true;
+  }
+
+  @Override
+  public ByteArray getValue() {
+    return null;
+  }
+
+  @Override
+  public void write(StorageManager.RecordWriter writer) {
+    writer.write(this);
   }
 
 }
@@ -15,15 +15,14 @@
  */
 package info.exascale.guanaco;
 
-import java.io.IOException;
 import java.util.UUID;
 
 public class InMemoryInsertRecord extends InMemoryRecord {
 
-  private ByteArray value = null;
+  private volatile ByteArray value = null;
 
-  public InMemoryInsertRecord(UUID pageId, ByteArray key, ByteArray value) {
-    super(pageId, key);
+  public InMemoryInsertRecord(UUID pageId, ByteArray key, ByteArray value, long sequence) {
+    super(pageId, key, sequence);
     this.value = value;
   }
 
@@ -33,10 +32,25 @@ public class InMemoryInsertRecord extends InMemoryRecord {
   }
 
   @Override
-  public void write(StorageManager storageManager) throws IOException {
-    storageManager.write(this);
+  public boolean update(ByteArray value, long sequence) {
+    if (value == null) throw new IllegalArgumentException();
+
+    if (!isUpdatable()) {
+      return false;
+    }
+
+    this.value = value;
+    setSequence(sequence);
+
+    return true;
   }
 
+  @Override
+  public void write(StorageManager.RecordWriter writer) {
+    writer.write(this);
+  }
+
+  @Override
   public ByteArray getValue() {
     return value;
   }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An InMemoryMergeRecord carries a merge operand. Its value is the fold of all operands in the chain down to the
+ * nearest record with a full value. The fold is cached once the record is consolidated, which happens every
+ * MAX_OPERANDS merges and before the record is flushed, so on disk it is a plain modify record.
+ */
+public class InMemoryMergeRecord extends InMemoryRecord {
+
+  // How many operands a read folds at most
+  public static final int MAX_OPERANDS = 16;
+
+  private final ByteArray operand;
+  private final MergeOperator mergeOperator;
+
+  // The number of unconsolidated operands up to and including this one
+  private final int depth;
+
+  private volatile ByteArray value = null;
+
+  public InMemoryMergeRecord(
+      UUID pageId, ByteArray key, ByteArray operand, MergeOperator mergeOperator, int depth, long sequence) {
+    super(pageId, key, sequence);
+    if (operand == null) throw new IllegalArgumentException();
+    if (mergeOperator == null) throw new IllegalArgumentException();
+    if (depth < 1) throw new IllegalArgumentException();
+
+    this.operand = operand;
+    this.mergeOperator = mergeOperator;
+    this.depth = depth;
+  }
+
+  @Override
+  public ByteArray get(InMemoryPage page) {
+    ByteArray folded = value;
+    if (folded != null) {
+      return folded;
+    }
+
+    // Collect the operands, newest first, until we reach a full value
+    List<ByteArray> operands = new ArrayList<>(depth);
+    ByteArray base = null;
+    InMemoryRecord record = this;
+    while (record != null) {
+      if (record instanceof InMemoryMergeRecord) {
+        InMemoryMergeRecord mergeRecord = (InMemoryMergeRecord) record;
+        base = mergeRecord.value;
+        if (base != null) {
+          break;
+        }
+        operands.add(mergeRecord.operand);
+        record = record.getPrevious();
+        if (record == null) {
+          // The chain started on top of the page records
+          base = page.getPageRecordValue(getKey());
+        }
+      } else {
+        base = record.getValue();
+        break;
+      }
+    }
+
+    Collections.reverse(operands);
+    ByteArray result = mergeOperator.merge(getKey(), base, operands);
+    if (result == null) {
+      throw new IllegalStateException("The merge operator returned null");
+    }
+
+    return result;
+  }
+
+  /**
+   * Folds the operands and caches the result, so older versions are not needed anymore to read this record.
+   */
+  public void consolidate(InMemoryPage page) {
+    if (value == null) {
+      value = get(page);
+    }
+  }
+
+  public boolean isConsolidated() {
+    return value != null;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  public ByteArray getOperand() {
+    return operand;
+  }
+
+  @Override
+  protected boolean hasValue() {
+    return value != null;
+  }
+
+  @Override
+  public void write(StorageManager.RecordWriter writer) {
+    writer.write(this);
+  }
+
+  /**
+   * Returns the folded value or null if the record has not been consolidated yet.
+   */
+  @Override
+  public ByteArray getValue() {
+    return value;
+  }
+
+}
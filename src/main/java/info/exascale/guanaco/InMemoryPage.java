@@ -16,15 +16,34 @@
 package info.exascale.guanaco;
 
 import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * An InMemoryPage keeps the page records and a chain of deltas per key, newest first. Reads don't lock, writes
+ * lock the page. A flush only locks the page while taking a snapshot of the dirty records.
+ */
 public class InMemoryPage extends Page {
 
-  private HashMap<ByteArray, InMemoryPageRecord> records = new HashMap<>();
-  private HashMap<ByteArray, InMemoryRecord> deltas = new HashMap<>();
+  private final Map<ByteArray, InMemoryPageRecord> records = new ConcurrentHashMap<>();
+  private final Map<ByteArray, InMemoryRecord> deltas = new ConcurrentHashMap<>();
+
+  // Only a hint for the cache warm-up, so we don't pay for a volatile write on every read
+  private long lastAccess = 0;
+
+  // A retired page holds only durable tombstones and is about to be dropped from the MappingTable
+  private volatile boolean isRetired = false;
+
+  // Whether a delta has been installed since the last flush snapshot, so clean pages are skipped for free
+  private boolean isDirty = false;
 
   public InMemoryPage() {
     super();
@@ -44,19 +63,112 @@ public class InMemoryPage extends Page {
     return null;
   }
 
+  /**
+   * Writes the dirty records. The page is only locked while taking a snapshot of them, so writers keep adding deltas
+   * while the snapshot is written.
+   */
   @Override
   public void flush(StorageManager storageManager) throws IOException {
-    storageManager.write(this);
+    List<InMemoryRecord> snapshot = getDirtyRecords();
+    if (snapshot.isEmpty()) {
+      return;
+    }
+
+    try {
+      storageManager.write(snapshot);
+    } catch (IOException e) {
+      abortFlush();
+      throw e;
+    }
+
+    completeFlush(snapshot);
+  }
+
+  public synchronized boolean isDirty() {
+    return isDirty;
+  }
+
+  /**
+   * Marks the page dirty again after the snapshot could not be written.
+   */
+  synchronized void abortFlush() {
+    // Lets try again on the next flush
+    isDirty = true;
+  }
+
+  /**
+   * Marks the snapshot flushed once it has been written.
+   */
+  void completeFlush(List<InMemoryRecord> snapshot) {
+    for (InMemoryRecord record : snapshot) {
+      record.setFlushed();
+    }
+  }
+
+  /**
+   * Takes a snapshot of the dirty records for a flush. Pass it to completeFlush() or call abortFlush() after
+   * writing it.
+   */
+  synchronized List<InMemoryRecord> getDirtyRecords() {
+    if (!isDirty) {
+      return Collections.emptyList();
+    }
+    isDirty = false;
+
+    List<InMemoryRecord> snapshot = new ArrayList<>();
+    for (InMemoryPageRecord record : records.values()) {
+      if (!record.isFlushed()) {
+        snapshot.add(record);
+      }
+    }
+    for (InMemoryRecord record : deltas.values()) {
+      if (!record.isFlushed()) {
+        if (record instanceof InMemoryMergeRecord) {
+          // Lets fold the operands, so the flush writes a single full value
+          ((InMemoryMergeRecord) record).consolidate(this);
+        }
+        snapshot.add(record);
+      }
+    }
+
+    for (InMemoryRecord record : snapshot) {
+      // Lets consider the snapshot on disk already, so a delete during the write is not elided
+      record.setOnDisk(true);
+      record.freeze();
+    }
+
+    return snapshot;
+  }
+
+  public long getLastAccess() {
+    return lastAccess;
+  }
+
+  public void touch() {
+    lastAccess = System.nanoTime();
   }
 
   public ByteArray get(ByteArray key) {
+    return get(key, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns the newest value of the key at or below the given sequence number.
+   */
+  public ByteArray get(ByteArray key, long sequence) {
     if (key == null) throw new IllegalArgumentException();
 
     // Look up the key in the deltas first
     InMemoryRecord record = deltas.get(key);
+    if (record != null) {
+      record = record.getVersion(sequence);
+    }
     if (record == null) {
       // We haven't found it there, check the records
       record = records.get(key);
+      if (record != null && record.getSequence() > sequence) {
+        record = null;
+      }
     }
 
     if (record != null) {
@@ -67,66 +179,309 @@ public class InMemoryPage extends Page {
     }
   }
 
-  public void put(ByteArray key, ByteArray value) {
+  /**
+   * Returns the value of the page record of the key or null if there is none.
+   */
+  public ByteArray getPageRecordValue(ByteArray key) {
+    if (key == null) throw new IllegalArgumentException();
+
+    InMemoryPageRecord record = records.get(key);
+    return record != null ? record.getValue() : null;
+  }
+
+  /**
+   * Adds all keys with a value at or below the given sequence number to the entries.
+   */
+  public void getEntries(long sequence, Collection<Map.Entry<ByteArray, ByteArray>> entries) {
+    if (entries == null) throw new IllegalArgumentException();
+
+    for (ByteArray key : deltas.keySet()) {
+      ByteArray value = get(key, sequence);
+      if (value != null) {
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+      }
+    }
+
+    for (ByteArray key : records.keySet()) {
+      if (!deltas.containsKey(key)) {
+        ByteArray value = get(key, sequence);
+        if (value != null) {
+          entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+        }
+      }
+    }
+  }
+
+  /**
+   * Puts the value. Returns false if the page is retired, in which case the caller has to install a new page.
+   */
+  public synchronized boolean put(ByteArray key, ByteArray value, SnapshotManager snapshotManager, WriteAheadLog log)
+      throws IOException {
     if (key == null) throw new IllegalArgumentException();
     if (value == null) throw new IllegalArgumentException();
+    if (snapshotManager == null) throw new IllegalArgumentException();
+    if (log == null) throw new IllegalArgumentException();
 
-    // Check whether we have already a record
-    InMemoryRecord record = records.get(key);
-    if (record != null) {
-      // Insert a modify record
-      deltas.put(key, new InMemoryModifyRecord(getPid(), key, value));
-    } else {
-      // We found no record
-      deltas.put(key, new InMemoryInsertRecord(getPid(), key, value));
+    if (isRetired) {
+      return false;
     }
+
+    write(key, value, snapshotManager, log);
+
+    return true;
   }
 
-  public void delete(ByteArray key) {
+  /**
+   * Puts the value only if the key does not exist. Returns false otherwise, or if the page is retired.
+   */
+  public synchronized boolean putIfAbsent(
+      ByteArray key, ByteArray value, SnapshotManager snapshotManager, WriteAheadLog log) throws IOException {
     if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+    if (snapshotManager == null) throw new IllegalArgumentException();
+    if (log == null) throw new IllegalArgumentException();
 
-    // Check the deltas first if a record exists
-    InMemoryRecord record = deltas.get(key);
-    if (record == null) {
-      // Check the records
-      record = records.get(key);
+    if (isRetired || get(key) != null) {
+      return false;
     }
 
-    if (record != null) {
-      deltas.put(key, new InMemoryDeleteRecord(getPid(), key));
+    write(key, value, snapshotManager, log);
+
+    return true;
+  }
+
+  /**
+   * Puts the value only if the newest value of the key equals the expected one. Returns false otherwise, or if the
+   * page is retired.
+   */
+  public synchronized boolean replace(
+      ByteArray key, ByteArray expected, ByteArray value, SnapshotManager snapshotManager, WriteAheadLog log)
+      throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (expected == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+    if (snapshotManager == null) throw new IllegalArgumentException();
+    if (log == null) throw new IllegalArgumentException();
+
+    if (isRetired) {
+      return false;
+    }
+
+    // A ValuePointer must not match a plain value with the same bytes
+    ByteArray current = get(key);
+    if (current == null || current.getClass() != expected.getClass() || !current.equals(expected)) {
+      return false;
     }
+
+    write(key, value, snapshotManager, log);
+
+    return true;
   }
 
-  public Collection<InMemoryPageRecord> getPageRecords() {
-    Collection<InMemoryPageRecord> collection = new ArrayList<>();
+  private void write(ByteArray key, ByteArray value, SnapshotManager snapshotManager, WriteAheadLog log)
+      throws IOException {
+    // A write waits here while a flush drains the running writes
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.FLUSH_WAIT);
+    long sequence = snapshotManager.beginWrite();
+    OperationTrace.exit(previous);
+    try {
+      log.appendPut(key, value, sequence);
 
-    for (InMemoryPageRecord record : records.values()) {
-      if (!record.isFlushed()) {
-        collection.add(record);
+      // Without snapshots nobody can see the old version, so lets overwrite an unflushed delta in place
+      InMemoryRecord head = deltas.get(key);
+      if (head != null && snapshotManager.getOldestSequence() == Long.MAX_VALUE && head.update(value, sequence)) {
+        return;
+      }
+
+      // Check whether we have already a record
+      if (records.get(key) != null) {
+        // Insert a modify record
+        install(new InMemoryModifyRecord(getPid(), key, value, sequence), snapshotManager);
+      } else {
+        // We found no record
+        install(new InMemoryInsertRecord(getPid(), key, value, sequence), snapshotManager);
       }
+    } finally {
+      snapshotManager.endWrite();
+    }
+  }
+
+  /**
+   * Adds a merge operand to the key. Returns false if the page is retired or if the value of the key is in the
+   * ValueLog, in which case the caller has to fold the operand itself.
+   */
+  public synchronized boolean merge(
+      ByteArray key, ByteArray operand, MergeOperator mergeOperator, SnapshotManager snapshotManager,
+      WriteAheadLog log) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (operand == null) throw new IllegalArgumentException();
+    if (mergeOperator == null) throw new IllegalArgumentException();
+    if (snapshotManager == null) throw new IllegalArgumentException();
+    if (log == null) throw new IllegalArgumentException();
+
+    if (isRetired) {
+      return false;
     }
 
-    return collection;
+    // An unconsolidated operand has already checked its base, so we don't fold here
+    InMemoryRecord head = deltas.get(key);
+    int depth = 1;
+    if (head instanceof InMemoryMergeRecord && !((InMemoryMergeRecord) head).isConsolidated()) {
+      depth = ((InMemoryMergeRecord) head).getDepth() + 1;
+    } else if (get(key) instanceof ValuePointer) {
+      return false;
+    }
+
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.FLUSH_WAIT);
+    long sequence = snapshotManager.beginWrite();
+    OperationTrace.exit(previous);
+    try {
+      log.appendMerge(key, operand, sequence);
+      InMemoryMergeRecord record = new InMemoryMergeRecord(getPid(), key, operand, mergeOperator, depth, sequence);
+      install(record, snapshotManager);
+      if (depth >= InMemoryMergeRecord.MAX_OPERANDS) {
+        // Lets bound the work of a read and let the older versions go
+        record.consolidate(this);
+      }
+    } finally {
+      snapshotManager.endWrite();
+    }
+
+    return true;
   }
 
-  public Collection<InMemoryRecord> getDeltasToFlush() {
-    Collection<InMemoryRecord> collection = new ArrayList<>();
+  /**
+   * Deletes the key. Returns false if the page is retired, in which case the key is already gone.
+   */
+  public synchronized boolean delete(ByteArray key, SnapshotManager snapshotManager, WriteAheadLog log)
+      throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (snapshotManager == null) throw new IllegalArgumentException();
+    if (log == null) throw new IllegalArgumentException();
 
-    for (InMemoryRecord record : deltas.values()) {
-      if (!record.isFlushed()) {
-        collection.add(record);
+    if (isRetired) {
+      return false;
+    }
+
+    if (get(key) != null) {
+      remove(key, snapshotManager, log);
+    }
+
+    return true;
+  }
+
+  /**
+   * Deletes the key and returns its newest value or null if the key did not exist or the page is retired.
+   */
+  public synchronized ByteArray getAndDelete(ByteArray key, SnapshotManager snapshotManager, WriteAheadLog log)
+      throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (snapshotManager == null) throw new IllegalArgumentException();
+    if (log == null) throw new IllegalArgumentException();
+
+    if (isRetired) {
+      return null;
+    }
+
+    ByteArray value = get(key);
+    if (value != null) {
+      remove(key, snapshotManager, log);
+    }
+
+    return value;
+  }
+
+  private void remove(ByteArray key, SnapshotManager snapshotManager, WriteAheadLog log) throws IOException {
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.FLUSH_WAIT);
+    long sequence = snapshotManager.beginWrite();
+    OperationTrace.exit(previous);
+    try {
+      log.appendDelete(key, sequence);
+      InMemoryRecord deleteRecord = new InMemoryDeleteRecord(getPid(), key, sequence);
+      install(deleteRecord, snapshotManager);
+      if (!deleteRecord.isOnDisk()) {
+        // No version of the key has reached the disk. There is nothing to shadow, so we never write the tombstone.
+        deleteRecord.skipFlush();
       }
+    } finally {
+      snapshotManager.endWrite();
     }
+  }
+
+  private void install(InMemoryRecord record, SnapshotManager snapshotManager) {
+    InMemoryRecord previous = deltas.get(record.getKey());
+    if (previous != null) {
+      record.setOnDisk(previous.isOnDisk());
+    } else {
+      InMemoryPageRecord pageRecord = records.get(record.getKey());
+      record.setOnDisk(pageRecord != null && pageRecord.isOnDisk());
+    }
+    record.setPrevious(previous);
+    record.prune(snapshotManager.getOldestSequence());
+    deltas.put(record.getKey(), record);
+    isDirty = true;
+  }
+
+  @Override
+  public synchronized void prune(SnapshotManager snapshotManager) {
+    // Like a write we take the snapshot lock while holding the page, so a snapshot is either visible here or
+    // taken after the prune
+    long oldestSequence = snapshotManager.beginPrune();
+    try {
+      for (InMemoryRecord record : deltas.values()) {
+        record.prune(oldestSequence);
+      }
+    } finally {
+      snapshotManager.endPrune();
+    }
+  }
+
+  @Override
+  public synchronized boolean retire(SnapshotManager snapshotManager) {
+    if (deltas.isEmpty()) {
+      return false;
+    }
+
+    long oldestSequence = snapshotManager.beginPrune();
+    try {
+      for (ByteArray key : getKeys()) {
+        InMemoryRecord record = deltas.get(key);
+        if (record == null
+            || !record.isTombstone()
+            || !record.isFlushed()
+            || record.getSequence() > oldestSequence) {
+          return false;
+        }
+      }
+    } finally {
+      snapshotManager.endPrune();
+    }
+
+    isRetired = true;
+
+    return true;
+  }
+
+  public boolean isRetired() {
+    return isRetired;
+  }
+
+  @Override
+  public Collection<ByteArray> getKeys() {
+    Set<ByteArray> keys = new HashSet<>(records.keySet());
+    keys.addAll(deltas.keySet());
 
-    return collection;
+    return keys;
   }
 
-  public void add(InMemoryPageRecord record) {
+  public synchronized void add(InMemoryPageRecord record) {
     records.put(record.getKey(), record);
+    isDirty |= !record.isFlushed();
   }
 
-  public void add(InMemoryRecord inMemoryRecord) {
+  public synchronized void add(InMemoryRecord inMemoryRecord) {
     deltas.put(inMemoryRecord.getKey(), inMemoryRecord);
+    isDirty |= !inMemoryRecord.isFlushed();
   }
 
 }
@@ -15,15 +15,14 @@
  */
 package info.exascale.guanaco;
 
-import java.io.IOException;
 import java.util.UUID;
 
 public class InMemoryPageRecord extends InMemoryRecord {
 
   private ByteArray value = null;
 
-  public InMemoryPageRecord(UUID pageId, ByteArray key, ByteArray value) {
-    super(pageId, key);
+  public InMemoryPageRecord(UUID pageId, ByteArray key, ByteArray value, long sequence) {
+    super(pageId, key, sequence);
     this.value = value;
   }
 
@@ -33,10 +32,11 @@ public class InMemoryPageRecord extends InMemoryRecord {
   }
 
   @Override
-  public void write(StorageManager storageManager) throws IOException {
-    storageManager.write(this);
+  public void write(StorageManager.RecordWriter writer) {
+    writer.write(this);
   }
 
+  @Override
   public ByteArray getValue() {
     return value;
   }
@@ -15,24 +15,62 @@
  */
 package info.exascale.guanaco;
 
-import java.io.IOException;
 import java.util.UUID;
 
 public abstract class InMemoryRecord {
 
   private final UUID pid;
   private final ByteArray key;
+  private volatile long sequence;
 
-  private boolean isFlushed = false;
+  // The next older version of the key, kept as long as a snapshot might read it
+  private volatile InMemoryRecord previous = null;
 
-  protected InMemoryRecord(UUID pid, ByteArray key) {
+  private volatile boolean isFlushed = false;
+
+  // Whether some version of this key is on disk. A tombstone is only written if there is something to shadow.
+  private volatile boolean isOnDisk = false;
+
+  // A frozen record is part of a flush snapshot and must not be updated in place anymore
+  private volatile boolean isFrozen = false;
+
+  protected InMemoryRecord(UUID pid, ByteArray key, long sequence) {
     this.pid = pid;
     this.key = key;
+    this.sequence = sequence;
   }
 
   public abstract ByteArray get(InMemoryPage page);
 
-  public abstract void write(StorageManager storageManager) throws IOException;
+  /**
+   * Returns the value of this record or null if the record does not carry a value.
+   */
+  public abstract ByteArray getValue();
+
+  public abstract void write(StorageManager.RecordWriter writer);
+
+  public boolean isTombstone() {
+    return false;
+  }
+
+  /**
+   * Replaces the value and the sequence number in place. This is only allowed if no snapshot can see the old
+   * version. Returns false if the record cannot be updated, in which case a new version has to be installed.
+   */
+  public boolean update(ByteArray value, long sequence) {
+    return false;
+  }
+
+  /**
+   * Returns whether the record may still be updated in place.
+   */
+  protected boolean isUpdatable() {
+    return !isFlushed && !isFrozen;
+  }
+
+  protected void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
 
   public UUID getPid() {
     return pid;
@@ -42,12 +80,77 @@ public abstract class InMemoryRecord {
     return key;
   }
 
+  public long getSequence() {
+    return sequence;
+  }
+
+  public InMemoryRecord getPrevious() {
+    return previous;
+  }
+
+  public void setPrevious(InMemoryRecord previous) {
+    this.previous = previous;
+  }
+
+  /**
+   * Returns the newest version in this chain which is visible at the given sequence number or null.
+   */
+  public InMemoryRecord getVersion(long sequence) {
+    InMemoryRecord record = this;
+    while (record != null && record.sequence > sequence) {
+      record = record.previous;
+    }
+
+    return record;
+  }
+
+  /**
+   * Returns whether the record can be read without the older versions.
+   */
+  protected boolean hasValue() {
+    return true;
+  }
+
+  /**
+   * Drops all versions which are not visible to any snapshot. The newest version at or below the oldest live
+   * snapshot is the last one we have to keep, together with the versions a merge operand is folded onto.
+   */
+  public void prune(long oldestSequence) {
+    InMemoryRecord record = getVersion(oldestSequence);
+    while (record != null && !record.hasValue()) {
+      record = record.previous;
+    }
+    if (record != null) {
+      record.previous = null;
+    }
+  }
+
   public boolean isFlushed() {
     return isFlushed;
   }
 
   public void setFlushed() {
     isFlushed = true;
+    isOnDisk = true;
+  }
+
+  /**
+   * Marks the record as not needing a flush without claiming it is on disk.
+   */
+  public void skipFlush() {
+    isFlushed = true;
+  }
+
+  public boolean isOnDisk() {
+    return isOnDisk;
+  }
+
+  public void setOnDisk(boolean isOnDisk) {
+    this.isOnDisk = isOnDisk;
+  }
+
+  public void freeze() {
+    isFrozen = true;
   }
 
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The IoScheduler arbitrates the disk between foreground reads and background work. Every thread does its I/O in an
+ * IoClass, which is FOREGROUND unless the thread has entered another one.
+ * <ul>
+ * <li>Foreground reads never wait. Their latency is averaged to detect a busy disk.</li>
+ * <li>Background classes have a token bucket each which limits their bytes per second.</li>
+ * <li>While a background class with a higher priority is running, lower ones wait for it.</li>
+ * <li>While the foreground read latency is above the target, the background rates are halved, down to 1/64 of
+ * the configured rate. Once it is below the target again, they recover step by step.</li>
+ * </ul>
+ */
+public class IoScheduler {
+
+  /**
+   * The classes of I/O ordered by priority, highest first.
+   */
+  public enum IoClass {
+    FOREGROUND,
+    FLUSH,
+    COMPACTION,
+    PREFETCH
+  }
+
+  private static final IoClass[] ioClasses = IoClass.values();
+
+  private static final long adjustInterval = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final double minFactor = 1.0 / 64;
+  private static final double recoveryStep = 1.0 / 16;
+
+  private final TokenBucket[] buckets = new TokenBucket[ioClasses.length];
+  private final long latencyTarget;
+
+  // Number of threads per class which are doing background work
+  private final int[] running = new int[ioClasses.length];
+
+  private final ThreadLocal<IoClass> currentClass = new ThreadLocal<IoClass>() {
+    @Override
+    protected IoClass initialValue() {
+      return IoClass.FOREGROUND;
+    }
+  };
+
+  // Moving average of the foreground read latency. Updates may race, an approximation is good enough.
+  private volatile long foregroundLatency = 0;
+  private volatile long lastForegroundRead = 0;
+
+  private double factor = 1.0;
+  private long nextAdjustTime = System.nanoTime();
+
+  /**
+   * Creates a scheduler which does not limit anything.
+   */
+  public IoScheduler() {
+    this(0, 0, 0);
+  }
+
+  /**
+   * Creates a scheduler with the rates in bytes per second and the foreground latency target in microseconds.
+   * A value of 0 disables the limit.
+   */
+  public IoScheduler(long flushRate, long backgroundRate, long latencyTarget) {
+    if (flushRate < 0) throw new IllegalArgumentException();
+    if (backgroundRate < 0) throw new IllegalArgumentException();
+    if (latencyTarget < 0) throw new IllegalArgumentException();
+
+    buckets[IoClass.FLUSH.ordinal()] = new TokenBucket(flushRate);
+    buckets[IoClass.COMPACTION.ordinal()] = new TokenBucket(backgroundRate);
+    buckets[IoClass.PREFETCH.ordinal()] = new TokenBucket(backgroundRate);
+    this.latencyTarget = TimeUnit.MICROSECONDS.toNanos(latencyTarget);
+  }
+
+  /**
+   * Makes the current thread do its I/O in the class. Pass the result to exit() when done.
+   */
+  public IoClass enter(IoClass ioClass) {
+    if (ioClass == null) throw new IllegalArgumentException();
+
+    IoClass previous = currentClass.get();
+    currentClass.set(ioClass);
+    synchronized (this) {
+      ++running[ioClass.ordinal()];
+    }
+
+    return previous;
+  }
+
+  public void exit(IoClass previous) {
+    if (previous == null) throw new IllegalArgumentException();
+
+    IoClass ioClass = currentClass.get();
+    currentClass.set(previous);
+    synchronized (this) {
+      --running[ioClass.ordinal()];
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns the class of the current thread, so work handed to another thread can enter it.
+   */
+  public IoClass getCurrentClass() {
+    return currentClass.get();
+  }
+
+  public boolean isForeground() {
+    return currentClass.get() == IoClass.FOREGROUND;
+  }
+
+  /**
+   * Records the latency of a foreground read in nanoseconds.
+   */
+  public void completeRead(long latency) {
+    long average = foregroundLatency;
+    foregroundLatency = average + (latency - average) / 8;
+    lastForegroundRead = System.nanoTime();
+  }
+
+  /**
+   * Waits until the current thread may transfer the bytes. Foreground I/O passes at once.
+   */
+  public void acquire(long bytes) throws IOException {
+    IoClass ioClass = currentClass.get();
+    if (ioClass == IoClass.FOREGROUND) {
+      return;
+    }
+
+    try {
+      long delay;
+      synchronized (this) {
+        // Lets give way to the more important background work
+        while (isPreempted(ioClass)) {
+          wait();
+        }
+
+        adjust();
+        delay = buckets[ioClass.ordinal()].take(bytes, factor);
+      }
+
+      if (delay > 0) {
+        TimeUnit.NANOSECONDS.sleep(delay);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private boolean isPreempted(IoClass ioClass) {
+    for (int i = IoClass.FLUSH.ordinal(); i < ioClass.ordinal(); ++i) {
+      if (running[i] > 0) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Backs off multiplicatively while the foreground suffers and recovers additively otherwise.
+   */
+  private void adjust() {
+    if (latencyTarget == 0) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    if (now - nextAdjustTime < 0) {
+      return;
+    }
+    nextAdjustTime = now + adjustInterval;
+
+    // Without recent foreground reads there is nobody to protect
+    boolean isSuffering = now - lastForegroundRead < adjustInterval && foregroundLatency > latencyTarget;
+    if (isSuffering) {
+      factor = Math.max(factor / 2, minFactor);
+    } else {
+      factor = Math.min(factor + recoveryStep, 1.0);
+    }
+  }
+
+  /**
+   * Returns the factor which is currently applied to the background rates.
+   */
+  public synchronized double getFactor() {
+    return factor;
+  }
+
+  /**
+   * A token bucket which holds at most one second worth of bytes. A transfer larger than the bucket drives it into
+   * debt, so big writes pass without splitting and the following ones wait.
+   */
+  private static class TokenBucket {
+
+    private final long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    private TokenBucket(long rate) {
+      this.rate = rate;
+      this.tokens = rate;
+    }
+
+    /**
+     * Takes the bytes and returns the nanoseconds to wait until they are paid off.
+     */
+    private long take(long bytes, double factor) {
+      if (rate == 0) {
+        return 0;
+      }
+
+      double currentRate = rate * factor;
+      long now = System.nanoTime();
+      tokens = Math.min(tokens + currentRate * (now - lastRefill) / 1e9, currentRate);
+      lastRefill = now;
+
+      tokens -= bytes;
+      if (tokens >= 0) {
+        return 0;
+      }
+
+      return (long) (-tokens / currentRate * 1e9);
+    }
+
+  }
+
+}
@@ -15,17 +15,18 @@
  */
 package info.exascale.guanaco;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Our mapping table. As described for the Bw-Tree, this maps a logical "page identifier" or PID to a page.
+ * Lookups don't lock, so readers can resolve InMemoryPages while pages are being installed.
  */
 public class MappingTable {
 
-  private final Map<UUID, Page> map = new HashMap<>();
+  private final ConcurrentMap<UUID, Page> map = new ConcurrentHashMap<>();
 
   public Page get(UUID pid) {
     if (pid == null) throw new IllegalArgumentException();
@@ -39,6 +40,21 @@ public class MappingTable {
     map.put(page.getPid(), page);
   }
 
+  public void remove(UUID pid) {
+    if (pid == null) throw new IllegalArgumentException();
+
+    map.remove(pid);
+  }
+
+  /**
+   * Removes the page only if it still is the one mapped to its pid.
+   */
+  public void remove(Page page) {
+    if (page == null) throw new IllegalArgumentException();
+
+    map.remove(page.getPid(), page);
+  }
+
   public Iterator<Page> iterator() {
     return map.values().iterator();
   }
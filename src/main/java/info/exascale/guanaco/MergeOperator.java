@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.util.List;
+
+/**
+ * A MergeOperator folds operands into the value of a key, so a read-modify-write like incrementing a counter is a
+ * single merge() without reading the value first. The operands are kept as deltas and folded on read and on flush.
+ * <p>
+ * The operator must be deterministic and must be the same every time the database is opened, as the log replays
+ * the operands through it.
+ */
+public interface MergeOperator {
+
+  /**
+   * Returns the value after applying the operands, oldest first, to the value. The value is null if the key does not
+   * exist. The result must not be null.
+   */
+  ByteArray merge(ByteArray key, ByteArray value, List<ByteArray> operands);
+
+}
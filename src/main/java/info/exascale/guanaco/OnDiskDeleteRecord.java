@@ -20,8 +20,13 @@ import java.util.UUID;
 
 public class OnDiskDeleteRecord extends OnDiskRecord {
 
-  public OnDiskDeleteRecord(long position, UUID pageId, ByteArray key) {
-    super(position, pageId, key);
+  public OnDiskDeleteRecord(long position, UUID pageId, ByteArray key, long sequence) {
+    super(position, pageId, key, sequence);
+  }
+
+  @Override
+  public boolean isTombstone() {
+    return true;
   }
 
   @Override
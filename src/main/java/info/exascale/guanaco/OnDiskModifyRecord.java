@@ -20,8 +20,13 @@ import java.util.UUID;
 
 public class OnDiskModifyRecord extends OnDiskRecord {
 
-  public OnDiskModifyRecord(long position, UUID pid, ByteArray key) {
-    super(position, pid, key);
+  public OnDiskModifyRecord(long position, int valueLength, UUID pid, ByteArray key, long sequence) {
+    super(position, valueLength, pid, key, sequence, false);
+  }
+
+  public OnDiskModifyRecord(
+      long position, int valueLength, UUID pid, ByteArray key, long sequence, boolean hasValuePointer) {
+    super(position, valueLength, pid, key, sequence, hasValuePointer);
   }
 
   @Override
@@ -16,8 +16,11 @@
 package info.exascale.guanaco;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
 
 public class OnDiskPage extends Page {
@@ -25,6 +28,8 @@ public class OnDiskPage extends Page {
   private HashMap<ByteArray, OnDiskPageRecord> records = new HashMap<>();
   private HashMap<ByteArray, OnDiskRecord> deltas = new HashMap<>();
 
+  private long position = Long.MAX_VALUE;
+
   public OnDiskPage(UUID pid) {
     super(pid);
   }
@@ -44,6 +49,75 @@ public class OnDiskPage extends Page {
     // Do nothing
   }
 
+  @Override
+  public void prune(SnapshotManager snapshotManager) {
+    // Do nothing
+  }
+
+  @Override
+  public boolean retire(SnapshotManager snapshotManager) {
+    // Recovery drops deleted keys, so we only ever have to retire InMemoryPages
+    return false;
+  }
+
+  @Override
+  public Collection<ByteArray> getKeys() {
+    Set<ByteArray> keys = new HashSet<>(records.keySet());
+    keys.addAll(deltas.keySet());
+
+    return keys;
+  }
+
+  /**
+   * Returns the lowest file offset of all records of this page.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Returns the newest record of the key or null if the page has no record of it.
+   */
+  public OnDiskRecord getRecord(ByteArray key) {
+    if (key == null) throw new IllegalArgumentException();
+
+    OnDiskRecord record = deltas.get(key);
+    if (record == null) {
+      record = records.get(key);
+    }
+
+    return record;
+  }
+
+  /**
+   * Returns the newest record of every key.
+   */
+  public Collection<OnDiskRecord> getRecords() {
+    Collection<OnDiskRecord> collection = new ArrayList<>(deltas.values());
+
+    for (OnDiskPageRecord record : records.values()) {
+      if (!deltas.containsKey(record.getKey())) {
+        collection.add(record);
+      }
+    }
+
+    return collection;
+  }
+
+  /**
+   * Drops all records of the key.
+   */
+  public void remove(ByteArray key) {
+    if (key == null) throw new IllegalArgumentException();
+
+    records.remove(key);
+    deltas.remove(key);
+  }
+
+  public boolean isEmpty() {
+    return records.isEmpty() && deltas.isEmpty();
+  }
+
   public Collection<OnDiskPageRecord> getPageRecords() {
     return records.values();
   }
@@ -52,28 +126,54 @@ public class OnDiskPage extends Page {
     return deltas.values();
   }
 
+  /**
+   * Adds a page record unless the page has a newer record of the key already. Records can be added in any order,
+   * the one with the highest sequence number wins.
+   */
   public void add(OnDiskPageRecord record) {
-    records.put(record.getKey(), record);
+    OnDiskPageRecord pageRecord = records.get(record.getKey());
+    if (pageRecord == null || pageRecord.getSequence() < record.getSequence()) {
+      records.put(record.getKey(), record);
+      position = Math.min(position, record.getPosition());
+
+      // A delta is only kept if it is newer than the page record
+      OnDiskRecord delta = deltas.get(record.getKey());
+      if (delta != null && delta.getSequence() < record.getSequence()) {
+        deltas.remove(record.getKey());
+      }
+    }
   }
 
-  public void add(OnDiskInsertRecord insertRecord) {
-    OnDiskRecord record = deltas.get(insertRecord.getKey());
-    if (record == null) {
-      deltas.put(insertRecord.getKey(), insertRecord);
+  /**
+   * Adds a record of any type.
+   */
+  public void add(OnDiskRecord record) {
+    if (record instanceof OnDiskPageRecord) {
+      add((OnDiskPageRecord) record);
+    } else {
+      addDelta(record);
     }
   }
 
+  public void add(OnDiskInsertRecord insertRecord) {
+    addDelta(insertRecord);
+  }
+
   public void add(OnDiskModifyRecord modifyRecord) {
-    OnDiskRecord record = deltas.get(modifyRecord.getKey());
-    if (record == null) {
-      deltas.put(modifyRecord.getKey(), modifyRecord);
-    }
+    addDelta(modifyRecord);
   }
 
   public void add(OnDiskDeleteRecord deleteRecord) {
-    OnDiskRecord record = deltas.get(deleteRecord.getKey());
-    if (record == null) {
-      deltas.put(deleteRecord.getKey(), deleteRecord);
+    addDelta(deleteRecord);
+  }
+
+  private void addDelta(OnDiskRecord delta) {
+    OnDiskRecord record = deltas.get(delta.getKey());
+    OnDiskPageRecord pageRecord = records.get(delta.getKey());
+    if ((record == null || record.getSequence() < delta.getSequence())
+        && (pageRecord == null || pageRecord.getSequence() < delta.getSequence())) {
+      deltas.put(delta.getKey(), delta);
+      position = Math.min(position, delta.getPosition());
     }
   }
 
@@ -20,8 +20,13 @@ import java.util.UUID;
 
 public class OnDiskPageRecord extends OnDiskRecord {
 
-  public OnDiskPageRecord(long position, UUID pageId, ByteArray key) {
-    super(position, pageId, key);
+  public OnDiskPageRecord(long position, int valueLength, UUID pageId, ByteArray key, long sequence) {
+    super(position, valueLength, pageId, key, sequence, false);
+  }
+
+  public OnDiskPageRecord(
+      long position, int valueLength, UUID pageId, ByteArray key, long sequence, boolean hasValuePointer) {
+    super(position, valueLength, pageId, key, sequence, hasValuePointer);
   }
 
   @Override
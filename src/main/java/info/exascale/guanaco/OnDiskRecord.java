@@ -23,16 +23,34 @@ public abstract class OnDiskRecord {
   private final UUID pid;
   private final ByteArray key;
 
+  // The value starts at position
   private final long position;
+  private final int valueLength;
+  private final long sequence;
 
-  protected OnDiskRecord(long position, UUID pid, ByteArray key) {
+  // Whether the value on disk is a ValuePointer into the ValueLog
+  private final boolean hasValuePointer;
+
+  protected OnDiskRecord(long position, UUID pid, ByteArray key, long sequence) {
+    this(position, 0, pid, key, sequence, false);
+  }
+
+  protected OnDiskRecord(
+      long position, int valueLength, UUID pid, ByteArray key, long sequence, boolean hasValuePointer) {
     this.position = position;
+    this.valueLength = valueLength;
     this.pid = pid;
     this.key = key;
+    this.sequence = sequence;
+    this.hasValuePointer = hasValuePointer;
   }
 
   public abstract InMemoryRecord accept(StorageManager storageManager) throws IOException;
 
+  public boolean isTombstone() {
+    return false;
+  }
+
   public UUID getPid() {
     return pid;
   }
@@ -45,4 +63,16 @@ public abstract class OnDiskRecord {
     return position;
   }
 
+  public int getValueLength() {
+    return valueLength;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public boolean hasValuePointer() {
+    return hasValuePointer;
+  }
+
 }
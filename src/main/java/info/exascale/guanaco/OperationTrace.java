@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An OperationTrace breaks the time of a single get, put or delete down into phases. Every thread has its own trace,
+ * which is reused, so tracing does not allocate. The components mark their phases with enter() and exit(). Phases
+ * nest, the time of an inner phase is not counted in the outer one.
+ * <p>
+ * While no engine traces, enter() and exit() only read a volatile counter.
+ */
+public class OperationTrace {
+
+  public enum Phase {
+    INDEX("index"),
+    PAGE_RESOLVE("page resolve"),
+    DISK_READ("disk read"),
+    DELTA_APPLY("delta apply"),
+    FLUSH_WAIT("flush wait"),
+    // Everything outside a phase, like GC pauses and lock waits
+    OTHER("other");
+
+    private final String name;
+
+    Phase(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private static final Phase[] phases = Phase.values();
+
+  // Number of engines which trace
+  private static final AtomicInteger tracers = new AtomicInteger();
+  private static volatile boolean isEnabled = false;
+
+  private static final ThreadLocal<OperationTrace> traces = new ThreadLocal<OperationTrace>() {
+    @Override
+    protected OperationTrace initialValue() {
+      return new OperationTrace();
+    }
+  };
+
+  private final long[] times = new long[phases.length];
+  private boolean isActive = false;
+  private long startTime;
+  private Phase current;
+  private long currentSince;
+  private long bytesRead;
+  private int seeks;
+  private long nextReadPosition;
+
+  static void enable() {
+    tracers.incrementAndGet();
+    isEnabled = true;
+  }
+
+  static void disable() {
+    isEnabled = tracers.decrementAndGet() > 0;
+  }
+
+  /**
+   * Starts the trace of this thread. Returns null if tracing is disabled or the thread is already traced.
+   */
+  static OperationTrace begin() {
+    OperationTrace trace = traces.get();
+    if (trace.isActive) {
+      return null;
+    }
+
+    trace.isActive = true;
+    trace.startTime = System.nanoTime();
+    trace.current = Phase.OTHER;
+    trace.currentSince = trace.startTime;
+    for (int i = 0; i < trace.times.length; ++i) {
+      trace.times[i] = 0;
+    }
+    trace.bytesRead = 0;
+    trace.seeks = 0;
+    trace.nextReadPosition = -1;
+
+    return trace;
+  }
+
+  /**
+   * Stops the trace and returns the total time in nanoseconds.
+   */
+  long end() {
+    long now = System.nanoTime();
+    times[current.ordinal()] += now - currentSince;
+    isActive = false;
+
+    return now - startTime;
+  }
+
+  private static OperationTrace current() {
+    if (!isEnabled) {
+      return null;
+    }
+
+    OperationTrace trace = traces.get();
+    return trace.isActive ? trace : null;
+  }
+
+  /**
+   * Enters the phase. Pass the result to exit() when the phase is done.
+   */
+  public static Phase enter(Phase phase) {
+    OperationTrace trace = current();
+    if (trace == null) {
+      return null;
+    }
+
+    Phase previous = trace.current;
+    trace.switchTo(phase);
+
+    return previous;
+  }
+
+  /**
+   * Returns to the phase which was current before the matching enter().
+   */
+  public static void exit(Phase previous) {
+    if (previous == null) {
+      return;
+    }
+
+    OperationTrace trace = current();
+    if (trace != null) {
+      trace.switchTo(previous);
+    }
+  }
+
+  private void switchTo(Phase phase) {
+    long now = System.nanoTime();
+    times[current.ordinal()] += now - currentSince;
+    current = phase;
+    currentSince = now;
+  }
+
+  /**
+   * Counts a read from the file. A read which does not continue the previous one counts as a seek.
+   */
+  public static void read(long position, long length) {
+    OperationTrace trace = current();
+    if (trace == null) {
+      return;
+    }
+
+    if (position != trace.nextReadPosition) {
+      ++trace.seeks;
+    }
+    trace.nextReadPosition = position + length;
+    trace.bytesRead += length;
+  }
+
+  public long getTime(Phase phase) {
+    return times[phase.ordinal()];
+  }
+
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  public int getSeeks() {
+    return seeks;
+  }
+
+}
@@ -15,7 +15,11 @@
  */
 package info.exascale.guanaco;
 
+import com.google.common.hash.Hashing;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.UUID;
 
 public abstract class Page {
@@ -32,6 +36,17 @@ public abstract class Page {
     this.pid = pid;
   }
 
+  /**
+   * Returns the pid a page of the key gets unless it is taken. A page holds a single key, so the v2 file format
+   * does not store pids but derives them from the keys.
+   */
+  public static UUID getDefaultPid(ByteArray key) {
+    if (key == null) throw new IllegalArgumentException();
+
+    ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128().hashBytes(key.get()).asBytes());
+    return new UUID(hash.getLong(), hash.getLong());
+  }
+
   public UUID getPid() {
     return pid;
   }
@@ -42,4 +57,17 @@ public abstract class Page {
 
   public abstract void flush(StorageManager storageManager) throws IOException;
 
+  /**
+   * Drops the versions which are no longer visible to any snapshot.
+   */
+  public abstract void prune(SnapshotManager snapshotManager);
+
+  /**
+   * Retires the page if all its keys are deleted for good. A retired page accepts no more writes and can be removed
+   * from the MappingTable and the index.
+   */
+  public abstract boolean retire(SnapshotManager snapshotManager);
+
+  public abstract Collection<ByteArray> getKeys();
+
 }
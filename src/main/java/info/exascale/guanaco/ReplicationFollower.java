@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A ReplicationFollower applies the records shipped by a ReplicationServer to its own GuanacoStorageEngine and
+ * serves read-only traffic from it. The offset up to which the primary's records are applied is kept in
+ * "<database>.replica", so a restarted follower catches up from there.
+ * <p>
+ * Every frame is flushed to the follower's database before its offset is stored. A frame which is applied twice
+ * after a crash does no harm, as it only repeats the same puts and deletes.
+ */
+public class ReplicationFollower implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReplicationFollower.class);
+
+  private static final String suffix = ".replica";
+
+  // How long we wait before reconnecting to the primary
+  private static final long RETRY_INTERVAL = 1000;
+
+  private final GuanacoStorageEngine engine;
+  private final File file;
+  private final Object offsetLock = new Object();
+
+  private long offset;
+  private Thread thread = null;
+  private volatile Socket socket = null;
+  private volatile boolean isClosed = false;
+
+  public static ReplicationFollower open(File database) throws IOException {
+    return open(database, new GuanacoOptions());
+  }
+
+  /**
+   * Opens the follower's database or creates it if it does not exist.
+   */
+  public static ReplicationFollower open(File database, GuanacoOptions options) throws IOException {
+    if (database == null) throw new IllegalArgumentException();
+    if (options == null) throw new IllegalArgumentException();
+
+    File file = getFile(database);
+    long offset = 0;
+    if (database.exists()) {
+      if (file.exists()) {
+        offset = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).getLong();
+      }
+    } else if (file.exists() && !file.delete()) {
+      // A new database has applied nothing
+      throw new IOException(String.format("Cannot delete replica offset %s", file));
+    }
+
+    return new ReplicationFollower(GuanacoStorageEngine.openDatabase(database, options), file, offset);
+  }
+
+  public static File getFile(File database) {
+    if (database == null) throw new IllegalArgumentException();
+
+    return new File(database.getPath() + suffix);
+  }
+
+  private ReplicationFollower(GuanacoStorageEngine engine, File file, long offset) {
+    this.engine = engine;
+    this.file = file;
+    this.offset = offset;
+  }
+
+  public ByteArray get(ByteArray key) throws IOException {
+    return engine.get(key);
+  }
+
+  public ByteArray get(ByteArray key, Snapshot snapshot) throws IOException {
+    return engine.get(key, snapshot);
+  }
+
+  public Snapshot snapshot() {
+    return engine.snapshot();
+  }
+
+  public StorageIterator iterator() {
+    return engine.iterator();
+  }
+
+  /**
+   * Returns the offset in the primary's database file up to which records have been applied.
+   */
+  public long getOffset() {
+    synchronized (offsetLock) {
+      return offset;
+    }
+  }
+
+  /**
+   * Waits until the records up to the offset have been applied or the timeout in milliseconds elapses. Returns
+   * whether they have.
+   */
+  public boolean awaitOffset(long offset, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (offsetLock) {
+      long remaining = timeout;
+      while (this.offset < offset && remaining > 0) {
+        offsetLock.wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+
+      return this.offset >= offset;
+    }
+  }
+
+  /**
+   * Follows the primary over TCP on a background thread. A lost connection is reestablished until the follower is
+   * closed.
+   */
+  public synchronized void connect(final String host, final int port) {
+    if (host == null) throw new IllegalArgumentException();
+    if (port < 1) throw new IllegalArgumentException();
+    if (thread != null || isClosed) throw new IllegalStateException();
+
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!isClosed) {
+          try (Socket connection = new Socket(host, port)) {
+            socket = connection;
+            if (isClosed) {
+              break;
+            }
+            connection.setTcpNoDelay(true);
+            follow(connection.getInputStream(), connection.getOutputStream());
+          } catch (IOException e) {
+            if (!isClosed) {
+              LOG.warn("Lost the primary {}:{}: {}", host, port, e.toString());
+            }
+          }
+
+          // Don't interrupt, an interrupt would close the channels of the database
+          synchronized (ReplicationFollower.this) {
+            try {
+              if (!isClosed) {
+                ReplicationFollower.this.wait(RETRY_INTERVAL);
+              }
+            } catch (InterruptedException e) {
+              break;
+            }
+          }
+        }
+      }
+    }, "guanaco-follower");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Follows the primary over the streams until the follower is closed or the streams fail.
+   */
+  public void follow(InputStream input, OutputStream output) throws IOException {
+    if (input == null) throw new IllegalArgumentException();
+    if (output == null) throw new IllegalArgumentException();
+
+    DataOutputStream out = new DataOutputStream(output);
+    out.writeLong(getOffset());
+    out.flush();
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+    while (!isClosed) {
+      long start = in.readLong();
+      long end = in.readLong();
+      if (start != getOffset() || end < start) {
+        throw new IOException(String.format("Unexpected frame from %d to %d", start, end));
+      }
+
+      while (true) {
+        byte type = in.readByte();
+        if (type == ReplicationServer.END_RECORD) {
+          break;
+        }
+
+        ByteArray key = read(in);
+        switch (type) {
+          case ReplicationServer.PUT_RECORD:
+            engine.put(key, read(in));
+            break;
+          case ReplicationServer.DELETE_RECORD:
+            engine.delete(key);
+            break;
+          default:
+            // Something's not right
+            throw new IOException(String.format("Unknown record type %d in the frame from %d", type, start));
+        }
+      }
+
+      if (end > start) {
+        // The records must be durable before we skip them on the next catch-up
+        engine.flush();
+        setOffset(end);
+      }
+    }
+  }
+
+  private static ByteArray read(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+
+    return new ByteArray(bytes);
+  }
+
+  private void setOffset(long offset) throws IOException {
+    File temporary = new File(file.getPath() + ".tmp");
+    Files.write(temporary.toPath(), ByteBuffer.allocate(8).putLong(offset).array());
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    synchronized (offsetLock) {
+      this.offset = offset;
+      offsetLock.notifyAll();
+    }
+  }
+
+  /**
+   * Disconnects from the primary and closes the database.
+   */
+  @Override
+  public void close() throws IOException {
+    Thread current;
+    synchronized (this) {
+      isClosed = true;
+      current = thread;
+      notifyAll();
+    }
+
+    if (current != null) {
+      Socket connection = socket;
+      if (connection != null) {
+        connection.close();
+      }
+      try {
+        current.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+
+    engine.close();
+  }
+
+}
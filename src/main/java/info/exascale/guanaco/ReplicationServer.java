@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ReplicationServer ships the records the StorageManager appends to ReplicationFollowers. A follower sends the
+ * offset in the database file it has applied up to and receives every synced write after it, oldest first. Records
+ * which are not synced yet might be lost in a crash of the primary, so they are held back.
+ * Values in the ValueLog are sent inline, so the follower does not need the primary's value log.
+ * <p>
+ * The stream is a sequence of frames: long start, long end, then records of byte type, int keyLength, key and for
+ * a put int valueLength, value, and a terminating byte END_RECORD. A frame without records is a heartbeat.
+ * Any pair of streams will do as a transport, listen() serves them over TCP.
+ */
+public class ReplicationServer implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReplicationServer.class);
+
+  static final byte END_RECORD = 0;
+  static final byte PUT_RECORD = 1;
+  static final byte DELETE_RECORD = 2;
+
+  // How long an idle follower waits for a frame, so a dead connection is noticed
+  private static final long HEARTBEAT_INTERVAL = 1000;
+
+  private final StorageManager storageManager;
+  private final ValueLog valueLog;
+  private final ExecutorService sessions = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("guanaco-replication-%d").setDaemon(true).build());
+  private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+  private ServerSocket serverSocket = null;
+  private volatile boolean isClosed = false;
+
+  ReplicationServer(StorageManager storageManager, ValueLog valueLog) {
+    if (storageManager == null) throw new IllegalArgumentException();
+    if (valueLog == null) throw new IllegalArgumentException();
+
+    this.storageManager = storageManager;
+    this.valueLog = valueLog;
+  }
+
+  /**
+   * Returns the offset up to which records can be shipped. A follower has caught up once it has applied this offset.
+   */
+  public long getOffset() {
+    return storageManager.getSyncedLength();
+  }
+
+  /**
+   * Accepts followers on the port and serves each of them on its own thread. Returns the local port, so 0 picks a
+   * free one.
+   */
+  public synchronized int listen(int port) throws IOException {
+    if (port < 0) throw new IllegalArgumentException();
+    if (serverSocket != null || isClosed) throw new IllegalStateException();
+
+    final ServerSocket socket = new ServerSocket(port);
+    serverSocket = socket;
+    sessions.submit(new Runnable() {
+      @Override
+      public void run() {
+        while (!socket.isClosed()) {
+          try {
+            accept(socket.accept());
+          } catch (IOException e) {
+            if (!socket.isClosed()) {
+              LOG.warn("Cannot accept a follower", e);
+            }
+          }
+        }
+      }
+    });
+
+    return socket.getLocalPort();
+  }
+
+  private void accept(final Socket connection) {
+    connections.add(connection);
+    sessions.submit(new Runnable() {
+      @Override
+      public void run() {
+        try (Socket socket = connection) {
+          socket.setTcpNoDelay(true);
+          serve(socket.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+          if (!isClosed) {
+            LOG.info("Follower {} has disconnected: {}", connection.getRemoteSocketAddress(), e.toString());
+          }
+        } finally {
+          connections.remove(connection);
+        }
+      }
+    });
+  }
+
+  /**
+   * Serves a single follower over the streams until the server is closed or the streams fail.
+   */
+  public void serve(InputStream input, OutputStream output) throws IOException {
+    if (input == null) throw new IllegalArgumentException();
+    if (output == null) throw new IllegalArgumentException();
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+
+    long offset = new DataInputStream(input).readLong();
+    if (!storageManager.isRecordBoundary(offset)) {
+      throw new IOException(String.format("The follower is at offset %d which is no record boundary of ours", offset));
+    }
+
+    while (!isClosed) {
+      long end;
+      try {
+        end = storageManager.awaitSync(offset, HEARTBEAT_INTERVAL);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+
+      writeFrame(out, offset, end);
+      out.flush();
+      offset = end;
+    }
+  }
+
+  private void writeFrame(DataOutputStream out, long start, long end) throws IOException {
+    out.writeLong(start);
+    out.writeLong(end);
+    if (storageManager.getVersion() == StorageManager.VERSION_1) {
+      // The file can only be decoded backwards, so lets collect the keys first and send the records oldest first
+      List<OnDiskRecord> records = new ArrayList<>();
+      StorageManager.RecordReader reader = storageManager.reader(start, end);
+      while (reader.hasNext()) {
+        records.add(reader.next());
+      }
+      Collections.reverse(records);
+
+      for (OnDiskRecord record : records) {
+        writeRecord(out, record);
+      }
+    } else {
+      StorageManager.RecordReader reader = storageManager.forwardReader(start, end);
+      while (reader.hasNext()) {
+        writeRecord(out, reader.next());
+      }
+    }
+    out.writeByte(END_RECORD);
+  }
+
+  private void writeRecord(DataOutputStream out, OnDiskRecord record) throws IOException {
+    if (record.isTombstone()) {
+      out.writeByte(DELETE_RECORD);
+      write(out, record.getKey());
+      return;
+    }
+
+    ByteArray value = storageManager.read(record);
+    if (value instanceof ValuePointer) {
+      ValuePointer pointer = (ValuePointer) value;
+      if (!valueLog.contains(pointer.getSegment())) {
+        // The garbage collector has moved the value, so a newer record of the key follows
+        return;
+      }
+      value = valueLog.get(pointer);
+    }
+    out.writeByte(PUT_RECORD);
+    write(out, record.getKey());
+    write(out, value);
+  }
+
+  private static void write(DataOutputStream out, ByteArray bytes) throws IOException {
+    out.writeInt(bytes.length());
+    out.write(bytes.get());
+  }
+
+  /**
+   * Stops accepting followers and disconnects the connected ones.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      isClosed = true;
+      if (serverSocket != null) {
+        serverSocket.close();
+      }
+    }
+
+    for (Socket connection : connections) {
+      connection.close();
+    }
+
+    sessions.shutdown();
+    try {
+      if (!sessions.awaitTermination(1, TimeUnit.MINUTES)) {
+        throw new IOException("Cannot stop the replication sessions");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ShardedGuanacoEngine splits the key space by hash across independent GuanacoStorageEngines. Every shard has its
+ * own file "<database>.<shard>", its own cache and index, and its own thread which executes all requests of the
+ * shard. Requests to different shards run in parallel.
+ * <p>
+ * A database must always be opened with the number of shards it was created with.
+ */
+public class ShardedGuanacoEngine implements Closeable {
+
+  private final GuanacoStorageEngine[] engines;
+  private final ExecutorService[] executors;
+
+  public static ShardedGuanacoEngine createDatabase(File file, int shards) throws IOException {
+    return createDatabase(file, shards, new GuanacoOptions());
+  }
+
+  public static ShardedGuanacoEngine createDatabase(File file, int shards, GuanacoOptions options)
+      throws IOException {
+    if (file == null) throw new IllegalArgumentException();
+    if (shards < 1) throw new IllegalArgumentException();
+    if (options == null) throw new IllegalArgumentException();
+
+    // Shards of a former database with more shards would make openDatabase() fail
+    for (int i = shards; getShardFile(file, i).exists(); ++i) {
+      GuanacoStorageEngine.deleteDatabase(getShardFile(file, i));
+    }
+
+    return new ShardedGuanacoEngine(file, shards, options, true);
+  }
+
+  public static ShardedGuanacoEngine openDatabase(File file, int shards) throws IOException {
+    return openDatabase(file, shards, new GuanacoOptions());
+  }
+
+  public static ShardedGuanacoEngine openDatabase(File file, int shards, GuanacoOptions options) throws IOException {
+    if (file == null) throw new IllegalArgumentException();
+    if (shards < 1) throw new IllegalArgumentException();
+    if (options == null) throw new IllegalArgumentException();
+
+    // Keys would be routed to the wrong shards, and a missing shard would be created empty
+    for (int i = 0; i < shards; ++i) {
+      if (!getShardFile(file, i).exists()) {
+        throw new IOException(String.format("%s has fewer than %d shards", file, shards));
+      }
+    }
+    if (getShardFile(file, shards).exists()) {
+      throw new IOException(String.format("%s has more than %d shards", file, shards));
+    }
+
+    return new ShardedGuanacoEngine(file, shards, options, false);
+  }
+
+  public static File getShardFile(File database, int shard) {
+    if (database == null) throw new IllegalArgumentException();
+    if (shard < 0) throw new IllegalArgumentException();
+
+    return new File(database.getPath() + "." + shard);
+  }
+
+  private ShardedGuanacoEngine(File file, int shards, GuanacoOptions options, boolean create) throws IOException {
+    engines = new GuanacoStorageEngine[shards];
+    executors = new ExecutorService[shards];
+
+    try {
+      for (int i = 0; i < shards; ++i) {
+        File shardFile = getShardFile(file, i);
+        engines[i] = create
+            ? GuanacoStorageEngine.createDatabase(shardFile, options)
+            : GuanacoStorageEngine.openDatabase(shardFile, options);
+        executors[i] = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("guanaco-shard-" + i + "-%d").setDaemon(true).build());
+      }
+    } catch (IOException e) {
+      try {
+        close();
+      } catch (IOException ignored) {
+        // Report the original exception
+      }
+      throw e;
+    }
+  }
+
+  public int getShardCount() {
+    return engines.length;
+  }
+
+  public ByteArray get(final ByteArray key) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+
+    final int shard = getShard(key);
+    return await(executors[shard].submit(new Callable<ByteArray>() {
+      @Override
+      public ByteArray call() throws IOException {
+        return engines[shard].get(key);
+      }
+    }));
+  }
+
+  public void put(final ByteArray key, final ByteArray value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    final int shard = getShard(key);
+    await(executors[shard].submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        engines[shard].put(key, value);
+        return null;
+      }
+    }));
+  }
+
+  public void delete(final ByteArray key) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+
+    final int shard = getShard(key);
+    await(executors[shard].submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        engines[shard].delete(key);
+        return null;
+      }
+    }));
+  }
+
+  public boolean putIfAbsent(final ByteArray key, final ByteArray value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    final int shard = getShard(key);
+    return await(executors[shard].submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException {
+        return engines[shard].putIfAbsent(key, value);
+      }
+    }));
+  }
+
+  public boolean replace(final ByteArray key, final ByteArray expected, final ByteArray value) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (expected == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    final int shard = getShard(key);
+    return await(executors[shard].submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException {
+        return engines[shard].replace(key, expected, value);
+      }
+    }));
+  }
+
+  public void merge(final ByteArray key, final ByteArray operand) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (operand == null) throw new IllegalArgumentException();
+
+    final int shard = getShard(key);
+    await(executors[shard].submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        engines[shard].merge(key, operand);
+        return null;
+      }
+    }));
+  }
+
+  public ByteArray getAndDelete(final ByteArray key) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+
+    final int shard = getShard(key);
+    return await(executors[shard].submit(new Callable<ByteArray>() {
+      @Override
+      public ByteArray call() throws IOException {
+        return engines[shard].getAndDelete(key);
+      }
+    }));
+  }
+
+  /**
+   * Flushes all shards in parallel.
+   */
+  public void flush() throws IOException {
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < engines.length; ++i) {
+      final GuanacoStorageEngine engine = engines[i];
+      futures.add(executors[i].submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          engine.flush();
+          return null;
+        }
+      }));
+    }
+
+    for (Future<Void> future : futures) {
+      await(future);
+    }
+  }
+
+  private int getShard(ByteArray key) {
+    // Don't use ByteArray.hashCode(), its low bits are poorly distributed for short keys
+    return Hashing.consistentHash(Hashing.murmur3_32().hashBytes(key.get()), engines.length);
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      // Interrupting the shard thread could leave its engine half way through a write
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    }
+  }
+
+  /**
+   * Finishes the pending requests and closes all shards.
+   */
+  @Override
+  public void close() throws IOException {
+    IOException exception = null;
+
+    for (int i = 0; i < engines.length; ++i) {
+      if (executors[i] != null) {
+        executors[i].shutdown();
+        try {
+          if (!executors[i].awaitTermination(1, TimeUnit.MINUTES)) {
+            exception = new IOException(String.format("Cannot stop shard %d", i));
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          exception = new InterruptedIOException();
+        }
+      }
+
+      if (engines[i] != null) {
+        try {
+          engines[i].close();
+        } catch (IOException e) {
+          if (exception == null) {
+            exception = e;
+          }
+        }
+      }
+    }
+
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The SlowOperationLog logs every operation which takes longer than the threshold together with the time spent in
+ * each phase. At most one operation per second is logged, the others are counted and reported with the next one.
+ */
+public class SlowOperationLog implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SlowOperationLog.class);
+
+  private static final long logInterval = TimeUnit.SECONDS.toNanos(1);
+
+  private final long threshold;
+  private final AtomicLong nextLogTime = new AtomicLong(Long.MIN_VALUE);
+  private final AtomicInteger suppressed = new AtomicInteger();
+  private boolean isClosed = false;
+
+  /**
+   * Creates a log for operations which take longer than the threshold in milliseconds. A threshold of 0 disables it.
+   */
+  public SlowOperationLog(long threshold) {
+    if (threshold < 0) throw new IllegalArgumentException();
+
+    this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+    if (threshold > 0) {
+      OperationTrace.enable();
+    }
+  }
+
+  /**
+   * Starts tracing an operation of the current thread. Returns null if there is nothing to trace.
+   */
+  public OperationTrace begin() {
+    if (threshold == 0) {
+      return null;
+    }
+
+    return OperationTrace.begin();
+  }
+
+  /**
+   * Stops tracing the operation and logs it if it was slow.
+   */
+  public void end(OperationTrace trace, String operation) {
+    if (trace == null) {
+      return;
+    }
+
+    long time = trace.end();
+    if (time < threshold) {
+      return;
+    }
+
+    // Lets not flood the log if the disk stalls
+    long now = System.nanoTime();
+    long next = nextLogTime.get();
+    if (next != Long.MIN_VALUE && now - next < 0 || !nextLogTime.compareAndSet(next, now + logInterval)) {
+      suppressed.incrementAndGet();
+      return;
+    }
+
+    StringBuilder message = new StringBuilder();
+    message.append(String.format("Slow %s took %.3f ms:", operation, toMillis(time)));
+    for (OperationTrace.Phase phase : OperationTrace.Phase.values()) {
+      message.append(String.format(" %s %.3f ms", phase, toMillis(trace.getTime(phase))));
+      if (phase == OperationTrace.Phase.DISK_READ) {
+        message.append(String.format(" (%d bytes, %d seeks)", trace.getBytesRead(), trace.getSeeks()));
+      }
+      message.append(phase == OperationTrace.Phase.OTHER ? "" : ",");
+    }
+    int count = suppressed.getAndSet(0);
+    if (count > 0) {
+      message.append(String.format("; %d more slow operations not logged", count));
+    }
+    LOG.warn(message.toString());
+  }
+
+  private static double toMillis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!isClosed && threshold > 0) {
+      OperationTrace.disable();
+    }
+    isClosed = true;
+  }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.io.Closeable;
+
+/**
+ * A Snapshot pins a sequence number. Reads through a snapshot see the newest version of each key at or below
+ * that sequence number. Older versions are kept in memory until the snapshot is closed, so don't keep snapshots
+ * open longer than needed.
+ */
+public class Snapshot implements Closeable {
+
+  private final SnapshotManager snapshotManager;
+  private final long sequence;
+
+  private boolean isClosed = false;
+
+  Snapshot(SnapshotManager snapshotManager, long sequence) {
+    if (snapshotManager == null) throw new IllegalArgumentException();
+
+    this.snapshotManager = snapshotManager;
+    this.sequence = sequence;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public synchronized boolean isClosed() {
+    return isClosed;
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (isClosed) {
+        return;
+      }
+      isClosed = true;
+    }
+
+    snapshotManager.release(this);
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The SnapshotManager hands out the global sequence numbers and keeps track of the live snapshots.
+ * <p>
+ * Writers draw a sequence number and install their record while holding the shared side of a lock. Taking a
+ * snapshot briefly holds the exclusive side, so every sequence number at or below a snapshot has been installed
+ * when the snapshot is handed out. Readers never lock.
+ */
+public class SnapshotManager {
+
+  private final AtomicLong sequence = new AtomicLong();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // Number of live snapshots per sequence number
+  private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+  private volatile long oldestSequence = Long.MAX_VALUE;
+
+  /**
+   * Returns the sequence number of the last write.
+   */
+  public long getSequence() {
+    return sequence.get();
+  }
+
+  /**
+   * Moves the sequence number forward, for example to the highest one found during recovery.
+   */
+  public void advance(long newSequence) {
+    long current = sequence.get();
+    while (current < newSequence && !sequence.compareAndSet(current, newSequence)) {
+      current = sequence.get();
+    }
+  }
+
+  /**
+   * Returns the next sequence number for a write which is not made visible record by record, like a bulk load.
+   */
+  public long nextSequence() {
+    return sequence.incrementAndGet();
+  }
+
+  /**
+   * Returns the next sequence number for a write. The write must be installed before calling endWrite().
+   */
+  public long beginWrite() {
+    lock.readLock().lock();
+
+    return sequence.incrementAndGet();
+  }
+
+  public void endWrite() {
+    lock.readLock().unlock();
+  }
+
+  /**
+   * Returns the sequence number of the oldest live snapshot or Long.MAX_VALUE if there is none. Versions which are
+   * hidden behind the newest version at or below this sequence number can be dropped.
+   */
+  public long getOldestSequence() {
+    return oldestSequence;
+  }
+
+  /**
+   * Returns the sequence number of the oldest live snapshot like getOldestSequence(), but holds off new snapshots
+   * until endPrune(). A snapshot taken while a page is pruned would otherwise read a version the prune drops.
+   */
+  public long beginPrune() {
+    lock.readLock().lock();
+
+    return oldestSequence;
+  }
+
+  public void endPrune() {
+    lock.readLock().unlock();
+  }
+
+  /**
+   * Waits until every write which has drawn a sequence number is installed.
+   */
+  public void awaitWrites() {
+    lock.writeLock().lock();
+    lock.writeLock().unlock();
+  }
+
+  public Snapshot snapshot() {
+    lock.writeLock().lock();
+    try {
+      long current = sequence.get();
+      synchronized (snapshots) {
+        Integer count = snapshots.get(current);
+        snapshots.put(current, count == null ? 1 : count + 1);
+        oldestSequence = snapshots.firstKey();
+      }
+
+      return new Snapshot(this, current);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  void release(Snapshot snapshot) {
+    if (snapshot == null) throw new IllegalArgumentException();
+
+    synchronized (snapshots) {
+      Integer count = snapshots.get(snapshot.getSequence());
+      if (count == null) throw new IllegalStateException();
+
+      if (count > 1) {
+        snapshots.put(snapshot.getSequence(), count - 1);
+      } else {
+        snapshots.remove(snapshot.getSequence());
+      }
+
+      Map.Entry<Long, Integer> oldest = snapshots.firstEntry();
+      oldestSequence = oldest != null ? oldest.getKey() : Long.MAX_VALUE;
+    }
+  }
+
+}
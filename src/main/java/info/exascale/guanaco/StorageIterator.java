@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/**
+ * StorageIterator streams all live key/value pairs of the database as of the snapshot it was opened with. It walks
+ * the MappingTable page by page and never installs a page in the cache. At most bufferSize entries are held at a
+ * time. Records of OnDiskPages are read in file order within each buffer, so the reads are mostly sequential.
+ * <p>
+ * The order of the entries is unspecified. Close the iterator if it is not read to the end, as it holds a snapshot.
+ */
+public class StorageIterator implements Iterator<Map.Entry<ByteArray, ByteArray>>, Closeable {
+
+  private final CacheManager cacheManager;
+  private final ValueLog valueLog;
+  private final Snapshot snapshot;
+  private final int bufferSize;
+  private final Iterator<Page> pages;
+
+  private final Queue<Map.Entry<ByteArray, ByteArray>> buffer = new ArrayDeque<>();
+  private final List<OnDiskRecord> records = new ArrayList<>();
+
+  public StorageIterator(CacheManager cacheManager, ValueLog valueLog, Snapshot snapshot, int bufferSize) {
+    if (cacheManager == null) throw new IllegalArgumentException();
+    if (valueLog == null) throw new IllegalArgumentException();
+    if (snapshot == null) throw new IllegalArgumentException();
+    if (bufferSize < 1) throw new IllegalArgumentException();
+
+    this.cacheManager = cacheManager;
+    this.valueLog = valueLog;
+    this.snapshot = snapshot;
+    this.bufferSize = bufferSize;
+    this.pages = cacheManager.getPages();
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (buffer.isEmpty() && !snapshot.isClosed()) {
+      try {
+        fill();
+      } catch (IOException e) {
+        close();
+        throw new RuntimeException("Cannot read the next entries", e);
+      }
+
+      if (buffer.isEmpty()) {
+        // We're done, release the snapshot
+        close();
+      }
+    }
+
+    return !buffer.isEmpty();
+  }
+
+  @Override
+  public Map.Entry<ByteArray, ByteArray> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    Map.Entry<ByteArray, ByteArray> entry = buffer.remove();
+    if (entry.getValue() instanceof ValuePointer) {
+      // Large values are only read when they are returned
+      try {
+        ByteArray value = valueLog.get((ValuePointer) entry.getValue());
+        entry = new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), value);
+      } catch (IOException e) {
+        close();
+        throw new RuntimeException("Cannot read the next value", e);
+      }
+    }
+
+    return entry;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() {
+    buffer.clear();
+    snapshot.close();
+  }
+
+  private void fill() throws IOException {
+    while (buffer.isEmpty() && pages.hasNext()) {
+      // Collect the next pages until the buffer is full
+      while (buffer.size() + records.size() < bufferSize && pages.hasNext()) {
+        Page page = pages.next();
+        OnDiskPage onDiskPage = page.getOnDiskPage(cacheManager);
+        if (onDiskPage == null) {
+          page.getInMemoryPage(cacheManager).getEntries(snapshot.getSequence(), buffer);
+        } else {
+          records.addAll(onDiskPage.getRecords());
+        }
+      }
+
+      // Read the records of the OnDiskPages in file order
+      Collections.sort(records, new Comparator<OnDiskRecord>() {
+        @Override
+        public int compare(OnDiskRecord o1, OnDiskRecord o2) {
+          return Long.compare(o1.getPosition(), o2.getPosition());
+        }
+      });
+      for (OnDiskRecord record : records) {
+        ByteArray value = cacheManager.read(record);
+        if (value != null) {
+          buffer.add(new AbstractMap.SimpleImmutableEntry<>(record.getKey(), value));
+        }
+      }
+      records.clear();
+    }
+  }
+
+}
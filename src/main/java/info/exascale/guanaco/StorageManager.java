@@ -19,9 +19,47 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.UUID;
 
+/**
+ * The StorageManager appends records to the end of the database file and reads them back starting from the end.
+ * <p>
+ * A version 2 file starts with "GUANACO" and the version. A record is laid out as type, varint sequence number,
+ * varint key length, varint value length, key, value and the varint length of all that with its bytes reversed, so
+ * the record can be read forwards and backwards. Delete records have no value length and no value. The pid is not
+ * stored, a page holds a single key and its pid is derived from the key.
+ * <p>
+ * A version 3 file has the records of version 2. Its header adds the synced length, the end of the records which
+ * are known to be on the device, and it may hold padding records.
+ * <p>
+ * A version 1 file is the original layout without a header. A record is laid out as value, value length, key, key
+ * length, pid and type, so it can only be read backwards. It has no sequence number, the end offset of a record
+ * stands in for it, as a newer record always comes later in the file. Version 1 files are read-only, FormatConverter
+ * converts them to version 3. Version 2 files are still read and appended to.
+ * <p>
+ * If the type has the VALUE_POINTER bit set, the value is a ValuePointer into the ValueLog.
+ * <p>
+ * Writers reserve a range at the end of the file and write it with a positional write, so pages can be flushed by
+ * several threads at once. A crash may leave torn records and holes after the synced length, which are dropped on
+ * open. The range of a failed write is handed back if it is the last one, otherwise it is filled with padding
+ * records, laid out like delete records, which readers skip. Version 1 and 2 files have no synced length and are
+ * only written by one thread at a time.
+ * <p>
+ * Writes are serialized. Reads are positional and don't touch the file pointer, so any number of readers can run
+ * in parallel with each other and with a flush.
+ */
 public class StorageManager implements Closeable {
 
   private static final Logger LOG = LoggerFactory.getLogger(StorageManager.class);
@@ -30,13 +68,193 @@ public class StorageManager implements Closeable {
   private static final byte INSERT_RECORD = 2;
   private static final byte MODIFY_RECORD = 3;
   private static final byte DELETE_RECORD = 4;
+  // Fills the range of a failed write, readers skip it
+  private static final byte PADDING_RECORD = 5;
+
+  public static final int VERSION_1 = 1;
+  public static final int VERSION_2 = 2;
+  public static final int VERSION_3 = 3;
+
+  // The magic is followed by the version and, since version 3, the synced length
+  private static final byte[] MAGIC = {'G', 'U', 'A', 'N', 'A', 'C', 'O'};
+  private static final int SYNCED_LENGTH_OFFSET = MAGIC.length + 1;
+  static final int HEADER_SIZE = SYNCED_LENGTH_OFFSET + 8;
+
+  // Type, sequence number, key length and value length
+  private static final int MAX_RECORD_HEADER_SIZE = 1 + 10 + 5 + 5;
+  private static final int MAX_TRAILER_SIZE = 10;
+  private static final int MIN_PADDING_SIZE = 4;
+
+  // A RecordWriter keeps its buffer for the next write unless it has grown beyond this
+  private static final int WRITER_BUFFER_SIZE = 4096;
+  private static final int MAX_REUSED_BUFFER_SIZE = 1 << 20;
+
+  // Set in the type if the value is a ValuePointer
+  private static final byte VALUE_POINTER = 0x40;
+
+  // Mapping k covers the file from k * regionSize to (k + 2) * regionSize, so a value of up to regionSize bytes
+  // always lies within a single mapping
+  private static final long regionSize = 1 << 29;
 
   private final RandomAccessFile db;
+  private final FileChannel channel;
+  private final IoScheduler ioScheduler;
+  private final int version;
+  private final boolean isReadOnly;
+
+  // Read-only mappings by region. The file is append-only, so a mapping never goes stale, it might only be short.
+  private final Object mappingLock = new Object();
+  private volatile MappedByteBuffer[] mappings = new MappedByteBuffer[0];
+
+  // Writers reserve their range at appendOffset. The written length is the start of the oldest range which is still
+  // being written, so readers of new records never see half a batch or a hole. The synced length is the written
+  // length of the last sync, so everything before it survives a crash.
+  private final Object writtenLock = new Object();
+  private final TreeSet<Long> pendingWrites = new TreeSet<>();
+  private long appendOffset;
+  private long writtenLength;
+  private long syncedLength;
+  private IOException writeFailure = null;
+
+  // Every flushing thread encodes into its own RecordWriter, so pages are written without allocating a buffer each
+  private final ThreadLocal<RecordWriter> writers = new ThreadLocal<RecordWriter>() {
+    @Override
+    protected RecordWriter initialValue() {
+      return new RecordWriter();
+    }
+  };
+
+  public StorageManager(File file) throws IOException {
+    this(file, new IoScheduler());
+  }
+
+  public StorageManager(File file, IoScheduler ioScheduler) throws IOException {
+    this(file, ioScheduler, VERSION_3);
+  }
+
+  /**
+   * Opens the file. An empty file is initialized with the given version, otherwise the version of the file is used.
+   * Version 1 files can't be created any more.
+   */
+  StorageManager(File file, IoScheduler ioScheduler, int version) throws IOException {
+    this(file, ioScheduler, version, false);
+  }
+
+  private StorageManager(File file, IoScheduler ioScheduler, int version, boolean isReadOnly) throws IOException {
+    if (file == null) throw new IllegalArgumentException();
+    if (ioScheduler == null) throw new IllegalArgumentException();
+    if (version != VERSION_2 && version != VERSION_3) throw new IllegalArgumentException();
 
-  public StorageManager(File file) throws FileNotFoundException {
+    db = new RandomAccessFile(file, isReadOnly ? "r" : "rw");
+    channel = db.getChannel();
+    this.ioScheduler = ioScheduler;
+    this.isReadOnly = isReadOnly;
+
+    try {
+      if (db.length() == 0 && !isReadOnly) {
+        ByteBuffer header = ByteBuffer.allocate(getStart(version));
+        header.put(MAGIC);
+        header.put((byte) version);
+        if (version == VERSION_3) {
+          header.putLong(HEADER_SIZE);
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+          channel.write(header, header.position());
+        }
+        this.version = version;
+      } else {
+        this.version = readVersion(channel);
+      }
+      appendOffset = db.length();
+      writtenLength = appendOffset;
+      syncedLength = appendOffset;
+    } catch (IOException e) {
+      db.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens an existing file for reading only, for example to inspect it while it is in use. Torn records at the end
+   * are not dropped, getRecordsEnd() tells where they start.
+   */
+  public static StorageManager openReadOnly(File file) throws IOException {
+    return new StorageManager(file, new IoScheduler(), VERSION_3, true);
+  }
+
+  /**
+   * Returns the version of an existing database file without opening it for writing.
+   */
+  public static int getVersion(File file) throws IOException {
     if (file == null) throw new IllegalArgumentException();
 
-    db = new RandomAccessFile(file, "rw");
+    try (RandomAccessFile db = new RandomAccessFile(file, "r")) {
+      return readVersion(db.getChannel());
+    }
+  }
+
+  private static int readVersion(FileChannel channel) throws IOException {
+    long length = channel.size();
+    if (length < SYNCED_LENGTH_OFFSET) {
+      return VERSION_1;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(SYNCED_LENGTH_OFFSET);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) {
+        throw new EOFException("Error reading bytes");
+      }
+    }
+    for (int i = 0; i < MAGIC.length; ++i) {
+      if (header.get(i) != MAGIC[i]) {
+        // Version 1 files have no header
+        return VERSION_1;
+      }
+    }
+
+    int version = header.get(MAGIC.length);
+    if (version != VERSION_2 && version != VERSION_3) {
+      throw new IOException(String.format("Unsupported file format version %d", version));
+    }
+    if (length < getStart(version)) {
+      throw new IOException("Truncated file header");
+    }
+
+    return version;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns whether several threads may write at once. Only a version 3 file can drop a hole left by a crash.
+   */
+  public boolean isParallelWritable() {
+    return version == VERSION_3;
+  }
+
+  IoScheduler getIoScheduler() {
+    return ioScheduler;
+  }
+
+  /**
+   * Returns where the first record starts.
+   */
+  public long getStart() {
+    return getStart(version);
+  }
+
+  private static int getStart(int version) {
+    switch (version) {
+      case VERSION_1:
+        return 0;
+      case VERSION_2:
+        return SYNCED_LENGTH_OFFSET;
+      default:
+        return HEADER_SIZE;
+    }
   }
 
   @Override
@@ -44,68 +262,423 @@ public class StorageManager implements Closeable {
     db.close();
   }
 
-  public void initialize(CacheManager cacheManager, IIndex index) throws IOException {
-    // Reset position so we're reading from the end
-    long position = db.length();
-    db.seek(position);
+  /**
+   * Reads all records from the end of the file and returns the highest sequence number found.
+   */
+  public long initialize(CacheManager cacheManager, IIndex index) throws IOException {
+    if (version == VERSION_3) {
+      recover();
+    }
+
+    long maxSequence = 0;
+
+    // Lets remember the newest record of every key, a key might have moved to a new page after a delete
+    Map<ByteArray, OnDiskRecord> newest = new HashMap<>();
+
+    RecordReader reader = reader();
+    while (reader.hasNext()) {
+      OnDiskRecord record = reader.next();
+      maxSequence = Math.max(maxSequence, record.getSequence());
+
+      OnDiskPage page = cacheManager.getOnDiskPage(record.getPid());
+      if (page == null) {
+        page = cacheManager.createOnDiskPage(record.getPid());
+      }
+      page.add(record);
+
+      OnDiskRecord current = newest.get(record.getKey());
+      if (current == null || current.getSequence() < record.getSequence()) {
+        newest.put(record.getKey(), record);
+      }
+    }
+
+    // Drop deleted keys and stale copies of moved keys, so they take neither memory nor an index entry
+    List<UUID> emptyPages = new ArrayList<>();
+    Iterator<Page> iterator = cacheManager.getPages();
+    while (iterator.hasNext()) {
+      OnDiskPage page = iterator.next().getOnDiskPage(cacheManager);
+      for (ByteArray key : page.getKeys()) {
+        OnDiskRecord record = newest.get(key);
+        if (record.isTombstone() || !record.getPid().equals(page.getPid())) {
+          page.remove(key);
+        }
+      }
+      if (page.isEmpty()) {
+        emptyPages.add(page.getPid());
+      }
+    }
+    for (UUID pid : emptyPages) {
+      cacheManager.remove(pid);
+    }
+
+    for (OnDiskRecord record : newest.values()) {
+      if (!record.isTombstone()) {
+        index.add(record.getKey(), cacheManager.getOnDiskPage(record.getPid()));
+      }
+    }
+
+    return maxSequence;
+  }
+
+  /**
+   * Returns a reader which decodes the records from the end of the file to the beginning. Only the keys are held in
+   * memory, the values stay on disk.
+   */
+  public RecordReader reader() throws IOException {
+    return reader(0, db.length());
+  }
+
+  /**
+   * Returns a reader which decodes the records between start and end backwards. Both must be record boundaries,
+   * like the values returned by getWrittenLength().
+   */
+  public RecordReader reader(long start, long end) {
+    if (start < 0) throw new IllegalArgumentException();
+    if (end < start) throw new IllegalArgumentException();
+
+    return new RecordReader(Math.max(start, getStart()), end, false);
+  }
+
+  /**
+   * Returns a reader which decodes the records between start and end in file order. Version 1 files can't be read
+   * forwards.
+   */
+  public RecordReader forwardReader(long start, long end) {
+    if (start < 0) throw new IllegalArgumentException();
+    if (end < start) throw new IllegalArgumentException();
+    if (version == VERSION_1) throw new IllegalStateException("Version 1 files can only be read backwards");
+
+    return new RecordReader(Math.max(start, getStart()), end, true);
+  }
+
+  /**
+   * A RecordReader walks the file one record at a time, backwards unless it is a forward reader.
+   */
+  public class RecordReader {
+
+    private final long start;
+    private final long end;
+    private final boolean isForward;
+    private long position;
+    private long recordSize = 0;
+    private OnDiskRecord next = null;
+
+    private RecordReader(long start, long end, boolean isForward) {
+      this.start = start;
+      this.end = end;
+      this.isForward = isForward;
+      this.position = isForward ? start : end;
+    }
+
+    /**
+     * Returns whether there is another record. The padding of a failed write is skipped, so this decodes the next
+     * record already.
+     */
+    public boolean hasNext() throws IOException {
+      while (next == null && (isForward ? position < end : position > start)) {
+        if (isForward) {
+          next = decode(position, end);
+          position += recordSize;
+        } else if (version != VERSION_1) {
+          next = decodeBackwards(position, start);
+          position -= recordSize;
+        } else {
+          next = nextVersion1();
+        }
+      }
+
+      return next != null;
+    }
+
+    public OnDiskRecord next() throws IOException {
+      if (!hasNext()) throw new IllegalStateException();
+
+      OnDiskRecord record = next;
+      next = null;
+
+      return record;
+    }
+
+    /**
+     * Returns the position right after the record returned by the last call to next() when reading forwards, or
+     * right before it when reading backwards.
+     */
+    public long getPosition() {
+      return position;
+    }
+
+    private OnDiskRecord nextVersion1() throws IOException {
+      long end = position;
 
-    while (position > 0) {
       // Read the type of the next bytes
       --position;
-      db.seek(position);
-      byte type = db.readByte();
-      db.seek(position);
+      byte type = readByte(position);
 
       // Read the UUID of the page
       UUID pid = readUUID(position);
-      position = db.getFilePointer();
-      OnDiskPage page = cacheManager.getOnDiskPage(pid);
-      if (page == null) {
-        page = cacheManager.createOnDiskPage(pid);
-      }
+      position -= 16;
 
       ByteArray key = readByteArray(position);
-      position = db.getFilePointer();
+      position -= 4 + key.length();
 
-      index.add(key, page);
+      int valueLength = 0;
+      if (type != DELETE_RECORD) {
+        position -= 4;
+        valueLength = readInt(position);
+        position -= valueLength;
+      }
 
-      switch (type) {
-        case PAGE_RECORD:
-          OnDiskPageRecord record = new OnDiskPageRecord(position, pid, key);
-          page.add(record);
-          skipByteArray(position);
-          position = db.getFilePointer();
-          break;
-        case INSERT_RECORD:
-          OnDiskInsertRecord insertRecord = new OnDiskInsertRecord(position, pid, key);
-          page.add(insertRecord);
-          skipByteArray(position);
-          position = db.getFilePointer();
-          break;
-        case MODIFY_RECORD:
-          OnDiskModifyRecord modifyRecord = new OnDiskModifyRecord(position, pid, key);
-          page.add(modifyRecord);
-          skipByteArray(position);
-          position = db.getFilePointer();
-          break;
-        case DELETE_RECORD:
-          OnDiskDeleteRecord deleteRecord = new OnDiskDeleteRecord(position, pid, key);
-          page.add(deleteRecord);
+      // The end offset orders the records like a sequence number would
+      OnDiskRecord record = createRecord(type, position, valueLength, pid, key, end, false);
+      if (record == null) {
+        // Something's not right
+        throw new IOException(String.format("Unknown record type %d at position %d", type, end - 1));
+      }
+      recordSize = end - position;
+
+      return record;
+    }
+
+    /**
+     * Decodes the version 2 record which starts at the position and ends at or before the limit. Returns null for
+     * padding.
+     */
+    private OnDiskRecord decode(long position, long limit) throws IOException {
+      ByteBuffer header = read(position, (int) Math.min(MAX_RECORD_HEADER_SIZE, limit - position));
+      try {
+        byte type = header.get();
+        boolean hasValuePointer = (type & VALUE_POINTER) != 0;
+        type &= ~VALUE_POINTER;
+
+        long sequence = getVarLong(header);
+        int keyLength = (int) getVarLong(header);
+        int valueLength = type != DELETE_RECORD && type != PADDING_RECORD ? (int) getVarLong(header) : 0;
+
+        long keyPosition = position + header.position();
+        long valuePosition = keyPosition + keyLength;
+        long length = valuePosition + valueLength - position;
+        if (keyLength < 0 || valueLength < 0 || position + length + getVarLongSize(length) > limit) {
+          throw new IOException(String.format("Corrupt record at position %d", position));
+        }
+        if (type == PADDING_RECORD) {
+          recordSize = length + getVarLongSize(length);
+          return null;
+        }
+        ByteArray key = new ByteArray(read(keyPosition, keyLength).array());
+
+        OnDiskRecord record = createRecord(
+            type, valuePosition, valueLength, Page.getDefaultPid(key), key, sequence, hasValuePointer);
+        if (record == null) {
+          throw new IOException(String.format("Unknown record type %d at position %d", type, position));
+        }
+        recordSize = length + getVarLongSize(length);
+
+        return record;
+      } catch (BufferUnderflowException e) {
+        throw new IOException(String.format("Corrupt record at position %d", position));
+      }
+    }
+
+    /**
+     * Decodes the version 2 record which ends at the position and starts at or after the limit. Returns null for
+     * padding.
+     */
+    private OnDiskRecord decodeBackwards(long position, long limit) throws IOException {
+      int trailerSize = (int) Math.min(MAX_TRAILER_SIZE, position - limit);
+      ByteBuffer trailer = read(position - trailerSize, trailerSize);
+
+      // The varint is stored with its bytes reversed
+      long length = 0;
+      int size = 0;
+      while (true) {
+        if (size == trailerSize) {
+          throw new IOException(String.format("Corrupt record before position %d", position));
+        }
+        byte b = trailer.get(trailerSize - 1 - size);
+        length |= (long) (b & 0x7F) << (7 * size);
+        ++size;
+        if ((b & 0x80) == 0) {
           break;
-        default:
-          // Something's not right
-          throw new IOException();
+        }
+      }
+
+      long start = position - size - length;
+      if (start < limit) {
+        throw new IOException(String.format("Corrupt record before position %d", position));
+      }
+
+      OnDiskRecord record = decode(start, position);
+      if (recordSize != position - start) {
+        throw new IOException(String.format("Corrupt record before position %d", position));
       }
+
+      return record;
+    }
+
+    /**
+     * Returns the size in bytes of the record returned by the last call to next(), including its value.
+     */
+    public long getRecordSize() {
+      return recordSize;
+    }
+
+  }
+
+  private static OnDiskRecord createRecord(
+      byte type, long position, int valueLength, UUID pid, ByteArray key, long sequence, boolean hasValuePointer) {
+    switch (type) {
+      case PAGE_RECORD:
+        return new OnDiskPageRecord(position, valueLength, pid, key, sequence, hasValuePointer);
+      case INSERT_RECORD:
+        return new OnDiskInsertRecord(position, valueLength, pid, key, sequence, hasValuePointer);
+      case MODIFY_RECORD:
+        return new OnDiskModifyRecord(position, valueLength, pid, key, sequence, hasValuePointer);
+      case DELETE_RECORD:
+        return new OnDiskDeleteRecord(position, pid, key, sequence);
+      default:
+        return null;
     }
   }
 
-  private void skipByteArray(long position) throws IOException {
-    position -= 4;
-    db.seek(position);
-    int length = db.readInt();
-    db.seek(position);
-    position -= length;
-    db.seek(position);
+  /**
+   * Returns the end of the complete records. A crash may leave torn records and holes after the synced length of a
+   * version 3 file, or a torn record at the end of a version 2 file, which start here. Version 1 files can't tell
+   * a torn record from a complete one.
+   */
+  public long getRecordsEnd() throws IOException {
+    long length = db.length();
+    if (version == VERSION_1) {
+      return length;
+    }
+
+    long end = getStart();
+    if (version == VERSION_3) {
+      end = read(SYNCED_LENGTH_OFFSET, 8).getLong();
+      if (end < HEADER_SIZE || end > length) {
+        throw new IOException(String.format("Invalid synced length %d", end));
+      }
+    }
+
+    RecordReader reader = forwardReader(end, length);
+    try {
+      while (reader.hasNext()) {
+        reader.next();
+        end = reader.getPosition();
+      }
+      // There may be padding after the last record
+      end = length;
+    } catch (IOException e) {
+      // This is where the torn record or the hole starts
+    }
+
+    return end;
+  }
+
+  /**
+   * Drops torn records and holes which a crash left after the synced length of a version 3 file. Everything after
+   * the synced length is still in the WriteAheadLog, as the log is only deleted once the file is synced.
+   */
+  private void recover() throws IOException {
+    long length = db.length();
+    long end = getRecordsEnd();
+    if (end == length) {
+      return;
+    }
+
+    LOG.warn("Dropping {} bytes of unsynced records at the end of the database", length - end);
+    db.setLength(end);
+    synchronized (writtenLock) {
+      appendOffset = end;
+      writtenLength = end;
+      syncedLength = end;
+    }
+  }
+
+  private static long getVarLong(ByteBuffer buffer) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+
+    throw new IOException("Malformed varint");
+  }
+
+  private static void putVarLong(ByteBuffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * Puts the varint with its bytes reversed, so it can be read backwards from its end.
+   */
+  private static void putReversedVarLong(ByteBuffer buffer, long value) {
+    int size = getVarLongSize(value);
+    int end = buffer.position() + size;
+    for (int i = 1; i <= size; ++i) {
+      byte b = (byte) (value & 0x7F);
+      value >>>= 7;
+      buffer.put(end - i, i < size ? (byte) (b | 0x80) : b);
+    }
+    buffer.position(end);
+  }
+
+  /**
+   * Encodes padding records which fill the rest of the buffer. The trailer holds the length, so a few sizes can't be
+   * a single record. These are split into the smallest padding and the rest.
+   */
+  private static void encodePadding(ByteBuffer buffer) {
+    if (!encodePadding(buffer, buffer.remaining())) {
+      encodePadding(buffer, MIN_PADDING_SIZE);
+      encodePadding(buffer, buffer.remaining());
+    }
+  }
+
+  /**
+   * Encodes a padding record of the given size if there is one. Its key is the filler. Where the varint sizes skip
+   * the size, the sequence number is encoded with a redundant byte.
+   */
+  private static boolean encodePadding(ByteBuffer buffer, int size) {
+    for (int trailerSize = 1; trailerSize <= 5; ++trailerSize) {
+      long length = size - trailerSize;
+      if (getVarLongSize(length) != trailerSize) {
+        continue;
+      }
+      for (int sequenceSize = 1; sequenceSize <= 2; ++sequenceSize) {
+        for (int keyLengthSize = 1; keyLengthSize <= 5; ++keyLengthSize) {
+          long keyLength = length - 1 - sequenceSize - keyLengthSize;
+          if (keyLength >= 0 && getVarLongSize(keyLength) == keyLengthSize) {
+            buffer.put(PADDING_RECORD);
+            if (sequenceSize == 2) {
+              buffer.put((byte) 0x80);
+            }
+            buffer.put((byte) 0);
+            putVarLong(buffer, keyLength);
+            buffer.position(buffer.position() + (int) keyLength);
+            putReversedVarLong(buffer, length);
+            return true;
+          }
+        }
+      }
+    }
+
+    return false;
+  }
+
+  private static int getVarLongSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      ++size;
+      value >>>= 7;
+    }
+
+    return size;
   }
 
   public InMemoryPage read(OnDiskPage page) throws IOException {
@@ -113,123 +686,563 @@ public class StorageManager implements Closeable {
 
     InMemoryPage inMemoryPage = new InMemoryPage(page.getPid());
 
+    // The records are already on disk, so don't write them again on the next flush
     for (OnDiskPageRecord record : page.getPageRecords()) {
       InMemoryPageRecord pageRecord = read(record);
+      pageRecord.setFlushed();
       inMemoryPage.add(pageRecord);
     }
 
     for (OnDiskRecord record : page.getDeltas()) {
       InMemoryRecord inMemoryRecord = record.accept(this);
+      inMemoryRecord.setFlushed();
       inMemoryPage.add(inMemoryRecord);
     }
 
     return inMemoryPage;
   }
 
+  /**
+   * Reads the value of a single key without loading the whole page.
+   */
+  public ByteArray read(OnDiskPage page, ByteArray key) throws IOException {
+    if (page == null) throw new IllegalArgumentException();
+    if (key == null) throw new IllegalArgumentException();
+
+    OnDiskRecord record = page.getRecord(key);
+    if (record != null) {
+      return read(record);
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the value of a single record. Returns null for delete records.
+   */
+  public ByteArray read(OnDiskRecord record) throws IOException {
+    if (record == null) throw new IllegalArgumentException();
+
+    return record.accept(this).getValue();
+  }
+
   public InMemoryPageRecord read(OnDiskPageRecord record) throws IOException {
-    ByteArray value = readByteArray(record.getPosition());
+    ByteArray value = readValue(record);
 
-    return new InMemoryPageRecord(record.getPid(), record.getKey(), value);
+    return new InMemoryPageRecord(record.getPid(), record.getKey(), value, record.getSequence());
   }
 
   public InMemoryRecord read(OnDiskInsertRecord record) throws IOException {
-    ByteArray value = readByteArray(record.getPosition());
+    ByteArray value = readValue(record);
 
-    return new InMemoryInsertRecord(record.getPid(), record.getKey(), value);
+    return new InMemoryInsertRecord(record.getPid(), record.getKey(), value, record.getSequence());
   }
 
   public InMemoryRecord read(OnDiskModifyRecord record) throws IOException {
-    ByteArray value = readByteArray(record.getPosition());
+    ByteArray value = readValue(record);
 
-    return new InMemoryModifyRecord(record.getPid(), record.getKey(), value);
+    return new InMemoryModifyRecord(record.getPid(), record.getKey(), value, record.getSequence());
   }
 
   public InMemoryRecord read(OnDiskDeleteRecord record) throws IOException {
-    return new InMemoryDeleteRecord(record.getPid(), record.getKey());
+    return new InMemoryDeleteRecord(record.getPid(), record.getKey(), record.getSequence());
+  }
+
+  /**
+   * Returns a read-only view of the value of the record in a memory-mapped region of the file. Neither the value
+   * nor the length is copied, the OS page cache serves the bytes. A value which is too large for a single mapping
+   * is read into the heap instead.
+   */
+  public ByteBuffer map(OnDiskRecord record) throws IOException {
+    if (record == null) throw new IllegalArgumentException();
+    if (record.isTombstone() || record.hasValuePointer()) throw new IllegalArgumentException();
+
+    long start = record.getPosition();
+    long end = start + record.getValueLength();
+    int region = (int) (start / regionSize);
+    if (end - region * regionSize > 2 * regionSize) {
+      return ByteBuffer.wrap(readValue(record).get()).asReadOnlyBuffer();
+    }
+
+    ByteBuffer view = getMapping(region, end).duplicate();
+    view.limit((int) (end - region * regionSize));
+    view.position((int) (start - region * regionSize));
+
+    return view;
   }
 
+  private MappedByteBuffer getMapping(int region, long end) throws IOException {
+    MappedByteBuffer[] current = mappings;
+    if (region < current.length) {
+      MappedByteBuffer mapping = current[region];
+      if (mapping != null && region * regionSize + mapping.capacity() >= end) {
+        return mapping;
+      }
+    }
+
+    synchronized (mappingLock) {
+      // Look again, another reader might have mapped the region in the meantime
+      current = mappings;
+      if (region < current.length) {
+        MappedByteBuffer mapping = current[region];
+        if (mapping != null && region * regionSize + mapping.capacity() >= end) {
+          return mapping;
+        }
+      }
+
+      long offset = region * regionSize;
+      long size = Math.min(2 * regionSize, channel.size() - offset);
+      if (offset + size < end) {
+        throw new EOFException(String.format("Cannot map position %d", end));
+      }
+
+      MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+      MappedByteBuffer[] updated = Arrays.copyOf(current, Math.max(current.length, region + 1));
+      updated[region] = mapping;
+      mappings = updated;
+
+      return mapping;
+    }
+  }
+
+  private ByteArray readValue(OnDiskRecord record) throws IOException {
+    ByteArray value = new ByteArray(read(record.getPosition(), record.getValueLength()).array());
+
+    return record.hasValuePointer() ? ValuePointer.decode(value) : value;
+  }
+
+  /**
+   * Reads the byte array which ends with its length right before the position.
+   */
   private ByteArray readByteArray(long position) throws IOException {
     position -= 4;
-    db.seek(position);
-    int length = db.readInt();
-    db.seek(position);
+    int length = readInt(position);
     position -= length;
-    db.seek(position);
-    byte[] bytes = new byte[length];
-    int read = db.read(bytes);
-    db.seek(position);
-
-    if (read != length) {
-      throw new IOException("Error reading bytes");
-    }
 
-    return new ByteArray(bytes);
+    return new ByteArray(read(position, length).array());
   }
 
+  /**
+   * Reads the UUID which ends right before the position.
+   */
   private UUID readUUID(long position) throws IOException {
-    position -= 8;
-    db.seek(position);
-    long leastSignificantBits = db.readLong();
-    db.seek(position);
-    position -= 8;
-    db.seek(position);
-    long mostSignificantBits = db.readLong();
-    db.seek(position);
+    ByteBuffer buffer = read(position - 16, 16);
+    long mostSignificantBits = buffer.getLong();
+    long leastSignificantBits = buffer.getLong();
 
     return new UUID(mostSignificantBits, leastSignificantBits);
   }
 
-  public void write(InMemoryPage page) throws IOException {
-    db.seek(db.length());
+  private byte readByte(long position) throws IOException {
+    return read(position, 1).get();
+  }
+
+  private int readInt(long position) throws IOException {
+    return read(position, 4).getInt();
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    if (position < 0) throw new IOException(String.format("Invalid position %d", position));
+
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.DISK_READ);
+    try {
+      OperationTrace.read(position, length);
+
+      boolean isForeground = ioScheduler.isForeground();
+      if (!isForeground) {
+        ioScheduler.acquire(length);
+      }
+      long start = System.nanoTime();
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException("Error reading bytes");
+        }
+      }
+      if (isForeground) {
+        ioScheduler.completeRead(System.nanoTime() - start);
+      }
+    } finally {
+      OperationTrace.exit(previous);
+    }
+    buffer.flip();
+
+    return buffer;
+  }
+
+  public long length() throws IOException {
+    return db.length();
+  }
+
+  /**
+   * Returns the end of the last completed write. Unlike length() it never points into a batch which is still being
+   * written.
+   */
+  public long getWrittenLength() {
+    synchronized (writtenLock) {
+      return writtenLength;
+    }
+  }
+
+  /**
+   * Returns the written length of the last sync. Records before it are on the device, the ones after it may still
+   * be lost in a crash.
+   */
+  public long getSyncedLength() {
+    synchronized (writtenLock) {
+      return syncedLength;
+    }
+  }
+
+  /**
+   * Waits until a sync ends beyond the offset or the timeout in milliseconds elapses and returns the synced length.
+   */
+  public long awaitSync(long offset, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (writtenLock) {
+      long remaining = timeout;
+      while (syncedLength <= offset && remaining > 0) {
+        writtenLock.wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+
+      return syncedLength;
+    }
+  }
+
+  /**
+   * Returns whether a record ends at the offset or records start there. The offset must not be beyond the synced
+   * length.
+   */
+  public boolean isRecordBoundary(long offset) {
+    if (offset == 0 || offset == getStart()) {
+      return true;
+    }
+    if (offset < getStart() || offset > getSyncedLength()) {
+      return false;
+    }
+
+    // A record can be decoded backwards from its end, its length is stored at both ends
+    try {
+      reader(getStart(), offset).hasNext();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Forces all written records to the device.
+   */
+  public void sync() throws IOException {
+    if (isReadOnly) {
+      return;
+    }
+
+    long length = getWrittenLength();
+    channel.force(false);
+    synchronized (writtenLock) {
+      if (length > syncedLength) {
+        syncedLength = length;
+        writtenLock.notifyAll();
+      }
+    }
+
+    if (version == VERSION_3) {
+      // The synced length reaches the device with the next sync. Until then the old one is still a valid bound.
+      ByteBuffer buffer = ByteBuffer.allocate(8).putLong(0, length);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, SYNCED_LENGTH_OFFSET + buffer.position());
+      }
+    }
+  }
+
+  /**
+   * Reserves size bytes at the end of the file and returns their offset. Pass it to complete() once the range has
+   * been written.
+   */
+  private long reserve(long size) throws IOException {
+    if (version == VERSION_1) {
+      throw new IOException("Version 1 files are read-only, convert them with FormatConverter");
+    }
+    if (isReadOnly) {
+      throw new IOException("The file is opened read-only");
+    }
+
+    synchronized (writtenLock) {
+      if (writeFailure != null) {
+        // A later range would end up behind a hole, which is dropped on open even after a sync
+        throw new IOException("A previous write has failed", writeFailure);
+      }
+
+      long start = appendOffset;
+      appendOffset += size;
+      pendingWrites.add(start);
+
+      return start;
+    }
+  }
+
+  private void complete(long start) {
+    synchronized (writtenLock) {
+      pendingWrites.remove(start);
+      writtenLength = pendingWrites.isEmpty() ? appendOffset : pendingWrites.first();
+      writtenLock.notifyAll();
+    }
+  }
+
+  /**
+   * Gives up the range of a failed write, so the next write can succeed. The last range is handed back and the next
+   * write starts there. A range with later ones behind it is filled with padding which readers skip. Only if that
+   * fails as well, later writes fail too, as they would end up behind a hole.
+   */
+  private void abort(long start, long size, IOException e) {
+    synchronized (writtenLock) {
+      if (start + size == appendOffset) {
+        appendOffset = start;
+        try {
+          // Lets not leave the torn bytes behind, a version 1 file cannot tell them from records
+          if (channel.size() > start) {
+            channel.truncate(start);
+          }
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+        complete(start);
+        return;
+      }
+    }
+
+    if (version == VERSION_3 && size >= MIN_PADDING_SIZE) {
+      try {
+        ByteBuffer padding = ByteBuffer.allocate((int) size);
+        encodePadding(padding);
+        padding.flip();
+        writeAt(padding, start);
+        complete(start);
+        return;
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+    }
+
+    synchronized (writtenLock) {
+      if (writeFailure == null) {
+        writeFailure = e;
+      }
+    }
+  }
+
+  /**
+   * Writes the buffer into a reserved range.
+   */
+  private void write(ByteBuffer buffer, long start, boolean isThrottled) throws IOException {
+    long size = buffer.remaining();
+    try {
+      if (isThrottled) {
+        ioScheduler.acquire(size);
+      }
+      writeAt(buffer, start);
+    } catch (IOException e) {
+      abort(start, size, e);
+      throw e;
+    }
+    complete(start);
+  }
 
-    Collection<InMemoryPageRecord> pageRecords = page.getPageRecords();
-    for (InMemoryPageRecord record : pageRecords) {
-      record.write(this);
-      record.setFlushed();
+  /**
+   * Writes the whole buffer at the position.
+   */
+  void writeAt(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
     }
+  }
+
+  /**
+   * Returns the number of bytes a page record takes on disk.
+   */
+  public int getPageRecordSize(ByteArray key, ByteArray value, long sequence) {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    return getRecordSize(value, key, sequence);
+  }
+
+  /**
+   * Encodes a page record into the buffer and returns the offset of the value from the start of the record.
+   */
+  public int encodePageRecord(ByteBuffer buffer, UUID pid, ByteArray key, ByteArray value, long sequence) {
+    if (buffer == null) throw new IllegalArgumentException();
+    if (pid == null) throw new IllegalArgumentException();
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    return encode(buffer, value, key, pid, sequence, PAGE_RECORD);
+  }
+
+  /**
+   * Appends the encoded records in the buffer to the end of the file and returns the offset they were written at.
+   */
+  public long append(ByteBuffer buffer) throws IOException {
+    if (buffer == null) throw new IllegalArgumentException();
+
+    long start = reserve(buffer.remaining());
+    write(buffer, start, false);
 
-    Collection<InMemoryRecord> records = page.getDeltasToFlush();
+    return start;
+  }
+
+  /**
+   * Appends the records to the end of the file. The caller marks them flushed. Several threads may write at once
+   * if the file is parallel writable.
+   */
+  public void write(Collection<? extends InMemoryRecord> records) throws IOException {
+    if (records == null) throw new IllegalArgumentException();
+
+    RecordWriter writer = getWriter();
     for (InMemoryRecord record : records) {
-      record.write(this);
-      record.setFlushed();
+      record.write(writer);
     }
+    write(writer);
+  }
+
+  /**
+   * Returns the empty RecordWriter of the current thread, which collects the records of several pages, so they can
+   * be written as one range. It is reused by the next write of the thread.
+   */
+  public RecordWriter getWriter() {
+    RecordWriter writer = writers.get();
+    writer.clear();
+
+    return writer;
   }
 
-  public void write(InMemoryPageRecord record) throws IOException {
-    write(record.getValue());
-    write(record.getKey());
-    write(record.getPid());
-    db.writeByte(PAGE_RECORD);
+  /**
+   * Appends the records of the writer to the end of the file in a single range.
+   */
+  public void write(RecordWriter writer) throws IOException {
+    write(writer, reserve(writer));
   }
 
-  public void write(InMemoryInsertRecord record) throws IOException {
-    write(record.getValue());
-    write(record.getKey());
-    write(record.getPid());
-    db.writeByte(INSERT_RECORD);
+  /**
+   * Reserves the range for the records of the writer at the end of the file and returns its offset. The records are
+   * written by write(RecordWriter, long), so several threads can take their ranges in a fixed order and still write
+   * in parallel.
+   */
+  public long reserve(RecordWriter writer) throws IOException {
+    if (writer == null) throw new IllegalArgumentException();
+
+    ByteBuffer buffer = writer.buffer;
+    buffer.flip();
+    return reserve(buffer.remaining());
+  }
+
+  /**
+   * Writes the records of the writer into the range reserved for them.
+   */
+  public void write(RecordWriter writer, long start) throws IOException {
+    if (writer == null) throw new IllegalArgumentException();
+
+    write(writer.buffer, start, true);
   }
 
-  public void write(InMemoryModifyRecord record) throws IOException {
-    write(record.getValue());
-    write(record.getKey());
-    write(record.getPid());
-    db.writeByte(MODIFY_RECORD);
+  /**
+   * A RecordWriter encodes the records of one write into its own buffer, so writers don't share any state until
+   * they reserve their range. Each thread has one.
+   */
+  public class RecordWriter {
+
+    private ByteBuffer buffer = ByteBuffer.allocate(WRITER_BUFFER_SIZE);
+
+    private RecordWriter() {
+    }
+
+    private void clear() {
+      if (buffer.capacity() > MAX_REUSED_BUFFER_SIZE) {
+        // Lets not hold on to the buffer of a huge page
+        buffer = ByteBuffer.allocate(WRITER_BUFFER_SIZE);
+      } else {
+        buffer.clear();
+      }
+    }
+
+    public void write(InMemoryPageRecord record) {
+      encode(record.getValue(), record.getKey(), record.getPid(), record.getSequence(), PAGE_RECORD);
+    }
+
+    public void write(InMemoryInsertRecord record) {
+      encode(record.getValue(), record.getKey(), record.getPid(), record.getSequence(), INSERT_RECORD);
+    }
+
+    public void write(InMemoryModifyRecord record) {
+      encode(record.getValue(), record.getKey(), record.getPid(), record.getSequence(), MODIFY_RECORD);
+    }
+
+    public void write(InMemoryMergeRecord record) {
+      // The operands are folded before the flush, so on disk a merge is a plain modify record
+      if (!record.isConsolidated()) throw new IllegalStateException();
+
+      encode(record.getValue(), record.getKey(), record.getPid(), record.getSequence(), MODIFY_RECORD);
+    }
+
+    public void write(InMemoryDeleteRecord record) {
+      encode(null, record.getKey(), record.getPid(), record.getSequence(), DELETE_RECORD);
+    }
+
+    private void encode(ByteArray value, ByteArray key, UUID pid, long sequence, byte type) {
+      int size = getRecordSize(value, key, sequence);
+      if (buffer.remaining() < size) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+      }
+
+      StorageManager.this.encode(buffer, value, key, pid, sequence, type);
+    }
+
   }
 
-  public void write(InMemoryDeleteRecord record) throws IOException {
-    write(record.getKey());
-    write(record.getPid());
-    db.writeByte(DELETE_RECORD);
+  private int getRecordSize(ByteArray value, ByteArray key, long sequence) {
+    long length = getRecordLength(value, key, sequence);
+    return (int) (length + getVarLongSize(length));
   }
 
-  private void write(ByteArray byteArray) throws IOException {
-    db.write(byteArray.get());
-    db.writeInt(byteArray.length());
+  /**
+   * Returns the size of a version 2 record without its trailer.
+   */
+  private static long getRecordLength(ByteArray value, ByteArray key, long sequence) {
+    long length = 1 + getVarLongSize(sequence) + getVarLongSize(key.length()) + key.length();
+    if (value != null) {
+      length += getVarLongSize(value.length()) + value.length();
+    }
+
+    return length;
   }
 
-  private void write(UUID uuid) throws IOException {
-    db.writeLong(uuid.getMostSignificantBits());
-    db.writeLong(uuid.getLeastSignificantBits());
+  /**
+   * Encodes the record and returns the offset of the value from the start of the record.
+   */
+  private int encode(ByteBuffer buffer, ByteArray value, ByteArray key, UUID pid, long sequence, byte type) {
+    if (version == VERSION_1) throw new IllegalStateException("Version 1 files are read-only");
+
+    byte flaggedType = value instanceof ValuePointer ? (byte) (type | VALUE_POINTER) : type;
+    int start = buffer.position();
+    buffer.put(flaggedType);
+    putVarLong(buffer, sequence);
+    putVarLong(buffer, key.length());
+    if (value != null) {
+      putVarLong(buffer, value.length());
+    }
+    buffer.put(key.get());
+    int valueOffset = buffer.position() - start;
+    if (value != null) {
+      buffer.put(value.get());
+    }
+    putReversedVarLong(buffer, getRecordLength(value, key, sequence));
+
+    return valueOffset;
   }
 
 }
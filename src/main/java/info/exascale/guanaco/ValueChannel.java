@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A ValueChannel reads a single value of the ValueLog with positional reads. Closing it does not close the log.
+ */
+public class ValueChannel implements ReadableByteChannel {
+
+  private final FileChannel channel;
+  private final long end;
+
+  private long position;
+  private boolean isOpen = true;
+
+  public ValueChannel(FileChannel channel, long offset, long size) {
+    if (channel == null) throw new IllegalArgumentException();
+    if (offset < 0) throw new IllegalArgumentException();
+    if (size < 0) throw new IllegalArgumentException();
+
+    this.channel = channel;
+    this.position = offset;
+    this.end = offset + size;
+  }
+
+  /**
+   * Returns the number of bytes left.
+   */
+  public long remaining() {
+    return end - position;
+  }
+
+  @Override
+  public int read(ByteBuffer destination) throws IOException {
+    if (destination == null) throw new IllegalArgumentException();
+    if (!isOpen) throw new ClosedChannelException();
+
+    if (position >= end) {
+      return -1;
+    }
+
+    int limit = destination.limit();
+    if (destination.remaining() > end - position) {
+      destination.limit(destination.position() + (int) (end - position));
+    }
+    try {
+      int read = channel.read(destination, position);
+      if (read < 0) {
+        throw new EOFException("Value log is truncated");
+      }
+      position += read;
+
+      return read;
+    } finally {
+      destination.limit(limit);
+    }
+  }
+
+  /**
+   * Copies the rest of the value to the target. The file system may do this without passing the bytes through
+   * the heap.
+   */
+  public long transferTo(WritableByteChannel target) throws IOException {
+    if (target == null) throw new IllegalArgumentException();
+    if (!isOpen) throw new ClosedChannelException();
+
+    long start = position;
+    while (position < end) {
+      long transferred = channel.transferTo(position, end - position, target);
+      if (transferred <= 0) {
+        throw new EOFException("Value log is truncated");
+      }
+      position += transferred;
+    }
+
+    return position - start;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  @Override
+  public void close() {
+    isOpen = false;
+  }
+
+}
@@ -0,0 +1,718 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ValueLog stores large values outside of the database file in segments "<database>.vlog.<segment>". Values are
+ * streamed in and out in chunks, so they never have to fit into a byte[]. Segments are append-only. Once an active
+ * segment is full, a new one is started and the old one is sealed, so the garbage collector can rewrite its live
+ * values and delete it.
+ * <p>
+ * Values of frequently updated keys go to the hot active segment and all others to the cold one. Hot segments
+ * die quickly and are collected cheaply, cold segments stay mostly live and are rarely rewritten. Values copied by
+ * the garbage collector have survived a segment, so they go to the cold segment.
+ * <p>
+ * A segment starts with a byte which is 1 for a hot segment and 0 for a cold one, so the newest segment of each
+ * kind is continued after a restart. An entry is laid out as int keyLength, key, long valueSize, value. A
+ * ValuePointer points to the value. The size is -1 until the value is complete, so a torn entry at the end of a
+ * segment is recognized and cut off on open.
+ * <p>
+ * Readers enter an epoch before they look up a ValuePointer and exit it once they are done with the value. A deleted
+ * segment stays on disk until every reader which has entered before the deletion has exited.
+ */
+public class ValueLog implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ValueLog.class);
+
+  private static final String suffix = ".vlog.";
+  private static final String stagingSuffix = ".vlog-staging.";
+
+  // How much we copy per transfer
+  private static final long CHUNK_SIZE = 1 << 20;
+
+  private static final int SEGMENT_HEADER_SIZE = 1;
+  private static final byte HOT_SEGMENT = 1;
+  private static final byte COLD_SEGMENT = 0;
+  // The size of an entry until its value is complete
+  private static final long INCOMPLETE = -1;
+
+  private final File database;
+  private final long segmentSize;
+  private final IoScheduler ioScheduler;
+
+  // The existing segments and the channels opened so far. Readers look them up without taking the lock, so they
+  // never wait for an append.
+  private final ConcurrentSkipListSet<Integer> segments = new ConcurrentSkipListSet<>();
+  private final ConcurrentHashMap<Integer, FileChannel> channels = new ConcurrentHashMap<>();
+
+  // Only changed while holding the lock
+  private volatile int hotSegment = -1;
+  private volatile int coldSegment = -1;
+  private int nextSegment;
+
+  // The number of readers per epoch and the epoch at which a deleted segment was deleted, guarded by readers
+  private final TreeMap<Long, Integer> readers = new TreeMap<>();
+  private final Map<Integer, Long> deleted = new HashMap<>();
+  private long epoch;
+
+  public ValueLog(File database, long segmentSize) throws IOException {
+    this(database, segmentSize, new IoScheduler());
+  }
+
+  public ValueLog(File database, long segmentSize, IoScheduler ioScheduler) throws IOException {
+    if (database == null) throw new IllegalArgumentException();
+    if (segmentSize < 1) throw new IllegalArgumentException();
+    if (ioScheduler == null) throw new IllegalArgumentException();
+
+    this.database = database;
+    this.segmentSize = segmentSize;
+    this.ioScheduler = ioScheduler;
+
+    deleteStagingFiles(database);
+
+    List<Integer> existing = getSegments(database);
+    if (!existing.isEmpty()) {
+      nextSegment = existing.get(existing.size() - 1) + 1;
+    }
+    for (int segment : existing) {
+      File file = getFile(database, segment);
+      if (file.length() < SEGMENT_HEADER_SIZE) {
+        // A crash right after the segment was created, it holds no values
+        if (!file.delete()) {
+          throw new IOException(String.format("Cannot delete value log %s", file));
+        }
+      } else {
+        segments.add(segment);
+      }
+    }
+
+    // Lets continue with the newest segment of each kind, only those can end with a torn entry
+    try {
+      for (int segment : segments.descendingSet()) {
+        if (hotSegment >= 0 && coldSegment >= 0) {
+          break;
+        }
+        boolean isHot = read(getChannel(segment), 0, SEGMENT_HEADER_SIZE).get() == HOT_SEGMENT;
+        if (isHot && hotSegment < 0) {
+          hotSegment = segment;
+          recover(segment);
+        } else if (!isHot && coldSegment < 0) {
+          coldSegment = segment;
+          recover(segment);
+        }
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Cuts off a torn entry at the end of the segment.
+   */
+  private void recover(int segment) throws IOException {
+    FileChannel channel = getChannel(segment);
+    long size = channel.size();
+    long end = readEntries(segment, null);
+    if (end < size) {
+      LOG.warn("Dropping {} bytes of a torn entry at the end of value log {}", size - end, getFile(database, segment));
+      channel.truncate(end);
+    }
+  }
+
+  public static File getFile(File database, int segment) {
+    if (database == null) throw new IllegalArgumentException();
+    if (segment < 0) throw new IllegalArgumentException();
+
+    return new File(database.getPath() + suffix + segment);
+  }
+
+  /**
+   * Returns the existing segments of the database in ascending order.
+   */
+  private static List<Integer> getSegments(File database) {
+    List<Integer> segments = new ArrayList<>();
+
+    File directory = database.getAbsoluteFile().getParentFile();
+    String prefix = database.getName() + suffix;
+    String[] names = directory != null ? directory.list() : null;
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(prefix)) {
+          try {
+            segments.add(Integer.parseInt(name.substring(prefix.length())));
+          } catch (NumberFormatException e) {
+            // Not one of ours
+          }
+        }
+      }
+    }
+    Collections.sort(segments);
+
+    return segments;
+  }
+
+  public static void delete(File database) throws IOException {
+    if (database == null) throw new IllegalArgumentException();
+
+    for (int segment : getSegments(database)) {
+      File file = getFile(database, segment);
+      if (!file.delete()) {
+        throw new IOException(String.format("Cannot delete value log %s", file));
+      }
+    }
+    deleteStagingFiles(database);
+  }
+
+  /**
+   * Deletes the staged values a crash has left behind.
+   */
+  private static void deleteStagingFiles(File database) throws IOException {
+    File directory = database.getAbsoluteFile().getParentFile();
+    String prefix = database.getName() + stagingSuffix;
+    File[] files = directory != null ? directory.listFiles() : null;
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().startsWith(prefix) && !file.delete()) {
+          throw new IOException(String.format("Cannot delete staged value %s", file));
+        }
+      }
+    }
+  }
+
+  private FileChannel getChannel(int segment) throws IOException {
+    FileChannel channel = channels.get(segment);
+    if (channel != null) {
+      return channel;
+    }
+
+    synchronized (channels) {
+      channel = channels.get(segment);
+      if (channel == null) {
+        File file = getFile(database, segment);
+        if (!segments.contains(segment)) {
+          throw new IOException(String.format("Value log %s does not exist", file));
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channels.put(segment, channel);
+      }
+
+      return channel;
+    }
+  }
+
+  private boolean isActive(int segment) {
+    return segment == hotSegment || segment == coldSegment;
+  }
+
+  /**
+   * Returns the hot or the cold active segment, starting a new one if it is full.
+   */
+  private int getActiveSegment(boolean isHot) throws IOException {
+    int segment = isHot ? hotSegment : coldSegment;
+    if (segment >= 0) {
+      FileChannel channel = getChannel(segment);
+      if (channel.size() < segmentSize) {
+        return segment;
+      }
+
+      // Seal the segment
+      channel.force(false);
+    }
+
+    // The segment is active before it exists, so it never shows up as sealed
+    segment = nextSegment++;
+    if (isHot) {
+      hotSegment = segment;
+    } else {
+      coldSegment = segment;
+    }
+    segments.add(segment);
+    write(getChannel(segment), ByteBuffer.wrap(new byte[]{isHot ? HOT_SEGMENT : COLD_SEGMENT}), 0);
+
+    return segment;
+  }
+
+  /**
+   * Appends everything the source delivers until its end to the cold segment.
+   */
+  public ValuePointer append(ByteArray key, ReadableByteChannel source) throws IOException {
+    return append(key, source, false);
+  }
+
+  /**
+   * Appends everything the source delivers until its end. If the source is a FileChannel, the bytes are copied
+   * without passing through the heap. Any other source is staged in a temporary file first, so a slow caller does
+   * not hold up the other appends.
+   */
+  public ValuePointer append(ByteArray key, ReadableByteChannel source, boolean isHot) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (source == null) throw new IllegalArgumentException();
+
+    if (source instanceof FileChannel) {
+      return append(key, source, isHot, true);
+    }
+
+    try (FileChannel staged = stage(source)) {
+      return append(key, staged, isHot, false);
+    }
+  }
+
+  /**
+   * Copies everything the source delivers into a temporary file next to the segments and returns it positioned at
+   * the start. The file is deleted when the channel is closed.
+   */
+  private FileChannel stage(ReadableByteChannel source) throws IOException {
+    File file = File.createTempFile(database.getName() + stagingSuffix, "", database.getAbsoluteFile().getParentFile());
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(
+          file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    } catch (IOException | RuntimeException e) {
+      if (!file.delete()) {
+        LOG.warn("Cannot delete staged value {}", file);
+      }
+      throw e;
+    }
+
+    try {
+      long position = 0;
+      while (true) {
+        long transferred = channel.transferFrom(source, position, CHUNK_SIZE);
+        if (transferred <= 0) {
+          break;
+        }
+        position += transferred;
+
+        // Lets pay for the chunk afterwards, we don't know its size before
+        ioScheduler.acquire(transferred);
+      }
+      channel.position(0);
+
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      try {
+        channel.close();
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+  }
+
+  private synchronized ValuePointer append(ByteArray key, ReadableByteChannel source, boolean isHot,
+      boolean isThrottled) throws IOException {
+
+    int segment = getActiveSegment(isHot);
+    FileChannel channel = getChannel(segment);
+    long start = channel.size();
+    try {
+      long offset = writeHeader(channel, key, start);
+
+      long position = offset;
+      while (true) {
+        long transferred = channel.transferFrom(source, position, CHUNK_SIZE);
+        if (transferred <= 0) {
+          break;
+        }
+        position += transferred;
+
+        // Lets pay for the chunk afterwards, we don't know its size before
+        if (isThrottled) {
+          ioScheduler.acquire(transferred);
+        }
+      }
+
+      // Now we know the size of the value
+      write(channel, ByteBuffer.allocate(8).putLong(0, position - offset), offset - 8);
+
+      return new ValuePointer(segment, offset, position - offset);
+    } catch (IOException | RuntimeException e) {
+      abort(channel, start, isHot, e);
+      throw e;
+    }
+  }
+
+  public ValuePointer append(ByteArray key, ByteArray value) throws IOException {
+    return append(key, value, false);
+  }
+
+  /**
+   * Appends the value to the hot or the cold segment.
+   */
+  public ValuePointer append(ByteArray key, ByteArray value, boolean isHot) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    // Lets pay before taking the lock, so a throttled append doesn't hold up the others
+    ioScheduler.acquire(value.length());
+
+    synchronized (this) {
+      int segment = getActiveSegment(isHot);
+      FileChannel channel = getChannel(segment);
+      long start = channel.size();
+      try {
+        long offset = writeHeader(channel, key, start);
+        write(channel, ByteBuffer.allocate(8).putLong(0, value.length()), offset - 8);
+        write(channel, ByteBuffer.wrap(value.get()), offset);
+
+        return new ValuePointer(segment, offset, value.length());
+      } catch (IOException | RuntimeException e) {
+        abort(channel, start, isHot, e);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Copies the value to the cold segment. Used by the garbage collector.
+   */
+  public ValuePointer copy(ByteArray key, ValuePointer pointer) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (pointer == null) throw new IllegalArgumentException();
+
+    // The size is known, so the throttled collector pays before it takes the lock
+    ioScheduler.acquire(pointer.getSize());
+
+    try (ValueChannel source = read(pointer)) {
+      return append(key, source, false, false);
+    }
+  }
+
+  private long writeHeader(FileChannel channel, ByteArray key, long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + key.length() + 8);
+    buffer.putInt(key.length());
+    buffer.put(key.get());
+    buffer.putLong(INCOMPLETE);
+    buffer.flip();
+    write(channel, buffer, position);
+
+    return position + buffer.limit();
+  }
+
+  /**
+   * Cuts a failed append off the segment. If that fails as well, the segment is sealed, so the torn entry stays the
+   * last one and getEntries() stops there.
+   */
+  private void abort(FileChannel channel, long start, boolean isHot, Exception cause) {
+    try {
+      channel.truncate(start);
+    } catch (IOException e) {
+      cause.addSuppressed(e);
+      if (isHot) {
+        hotSegment = -1;
+      } else {
+        coldSegment = -1;
+      }
+    }
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  /**
+   * Returns a channel which reads the value straight from the file.
+   */
+  public ValueChannel read(ValuePointer pointer) throws IOException {
+    if (pointer == null) throw new IllegalArgumentException();
+
+    return new ValueChannel(getChannel(pointer.getSegment()), pointer.getOffset(), pointer.getSize());
+  }
+
+  /**
+   * Returns a channel like read(ValuePointer) which exits the epoch when it is closed. The caller hands its epoch
+   * over to the channel.
+   */
+  public ValueChannel read(ValuePointer pointer, final long epoch) throws IOException {
+    if (pointer == null) throw new IllegalArgumentException();
+
+    return new ValueChannel(getChannel(pointer.getSegment()), pointer.getOffset(), pointer.getSize()) {
+      @Override
+      public void close() {
+        if (isOpen()) {
+          super.close();
+          exit(epoch);
+        }
+      }
+    };
+  }
+
+  /**
+   * Enters the current epoch. The segments the reader finds pointers to are not deleted before it calls exit().
+   */
+  public long enter() {
+    synchronized (readers) {
+      Integer count = readers.get(epoch);
+      readers.put(epoch, count == null ? 1 : count + 1);
+
+      return epoch;
+    }
+  }
+
+  public void exit(long epoch) {
+    List<Integer> removable;
+    synchronized (readers) {
+      Integer count = readers.get(epoch);
+      if (count == null) throw new IllegalStateException();
+
+      if (count > 1) {
+        readers.put(epoch, count - 1);
+      } else {
+        readers.remove(epoch);
+      }
+      if (deleted.isEmpty()) {
+        return;
+      }
+      removable = getRemovable();
+    }
+
+    try {
+      remove(removable);
+    } catch (IOException e) {
+      // The segment is left to the garbage collector after the next start
+      LOG.warn("Cannot delete value log segments {}", removable, e);
+    }
+  }
+
+  /**
+   * Returns the deleted segments which no reader can see anymore. Must hold the readers lock.
+   */
+  private List<Integer> getRemovable() {
+    long oldest = readers.isEmpty() ? Long.MAX_VALUE : readers.firstKey();
+
+    List<Integer> removable = new ArrayList<>();
+    for (Iterator<Map.Entry<Integer, Long>> iterator = deleted.entrySet().iterator(); iterator.hasNext();) {
+      Map.Entry<Integer, Long> entry = iterator.next();
+      if (entry.getValue() < oldest) {
+        removable.add(entry.getKey());
+        iterator.remove();
+      }
+    }
+
+    return removable;
+  }
+
+  /**
+   * Reads the whole value into memory.
+   */
+  public ByteArray get(ValuePointer pointer) throws IOException {
+    if (pointer == null) throw new IllegalArgumentException();
+    if (pointer.getSize() > Integer.MAX_VALUE) {
+      throw new IOException(String.format("Value of %d bytes is too large, read it as a stream", pointer.getSize()));
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) pointer.getSize());
+    OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.DISK_READ);
+    try (ValueChannel channel = read(pointer)) {
+      OperationTrace.read(pointer.getOffset(), pointer.getSize());
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new IOException("Value log is truncated");
+        }
+      }
+    } finally {
+      OperationTrace.exit(previous);
+    }
+
+    return new ByteArray(buffer.array());
+  }
+
+  /**
+   * Returns whether the segment exists. A segment is gone once the garbage collector has deleted it.
+   */
+  public boolean contains(int segment) {
+    return segments.contains(segment) && !isDeleted(segment);
+  }
+
+  private boolean isDeleted(int segment) {
+    synchronized (readers) {
+      return deleted.containsKey(segment);
+    }
+  }
+
+  /**
+   * Returns the segments which are no longer written to, oldest first.
+   */
+  public List<Integer> getSealedSegments() {
+    List<Integer> sealed = new ArrayList<>();
+    for (int segment : segments) {
+      if (!isActive(segment) && !isDeleted(segment)) {
+        sealed.add(segment);
+      }
+    }
+
+    return sealed;
+  }
+
+  public long getSize(int segment) throws IOException {
+    return getChannel(segment).size();
+  }
+
+  /**
+   * Returns the keys and value pointers of all complete entries in the segment in file order.
+   */
+  public List<Map.Entry<ByteArray, ValuePointer>> getEntries(int segment) throws IOException {
+    List<Map.Entry<ByteArray, ValuePointer>> entries = new ArrayList<>();
+    readEntries(segment, entries);
+
+    return entries;
+  }
+
+  /**
+   * Adds the entries of the segment to the list, which may be null, up to the first torn one. Returns the end of
+   * the last complete entry.
+   */
+  private long readEntries(int segment, List<Map.Entry<ByteArray, ValuePointer>> entries) throws IOException {
+    FileChannel channel = getChannel(segment);
+    long size = channel.size();
+    long end = SEGMENT_HEADER_SIZE;
+    while (end + 4 + 8 <= size) {
+      long position = end;
+      int keyLength = read(channel, position, 4).getInt();
+      position += 4;
+      if (keyLength < 0 || position + keyLength + 8 > size) {
+        break;
+      }
+      ByteArray key = new ByteArray(read(channel, position, keyLength).array());
+      position += keyLength;
+      long valueSize = read(channel, position, 8).getLong();
+      position += 8;
+      if (valueSize < 0 || position + valueSize > size) {
+        break;
+      }
+
+      if (entries != null) {
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(key, new ValuePointer(segment, position, valueSize)));
+      }
+      end = position + valueSize;
+    }
+
+    return end;
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Value log is truncated");
+      }
+    }
+    buffer.flip();
+
+    return buffer;
+  }
+
+  /**
+   * Deletes a sealed segment. The file is removed once all readers which have entered before have exited, until then
+   * they can still read from it.
+   */
+  public void delete(int segment) throws IOException {
+    synchronized (this) {
+      if (isActive(segment) || segment >= nextSegment) throw new IllegalArgumentException();
+    }
+
+    List<Integer> removable;
+    synchronized (readers) {
+      if (deleted.containsKey(segment)) {
+        return;
+      }
+
+      // Readers entering from now on can't find a pointer to the segment anymore
+      deleted.put(segment, epoch++);
+      removable = getRemovable();
+    }
+
+    remove(removable);
+  }
+
+  private void remove(List<Integer> removable) throws IOException {
+    for (int segment : removable) {
+      FileChannel channel;
+      synchronized (channels) {
+        segments.remove(segment);
+        channel = channels.remove(segment);
+      }
+      if (channel != null) {
+        channel.close();
+      }
+
+      File file = getFile(database, segment);
+      if (file.exists() && !file.delete()) {
+        throw new IOException(String.format("Cannot delete value log %s", file));
+      }
+    }
+  }
+
+  /**
+   * Forces all appended values to the device.
+   */
+  public synchronized void sync() throws IOException {
+    for (int segment : new int[]{hotSegment, coldSegment}) {
+      FileChannel channel = segment >= 0 ? channels.get(segment) : null;
+      if (channel != null) {
+        channel.force(false);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    // Nobody reads a closed log, so the deleted segments can go
+    List<Integer> removable;
+    synchronized (readers) {
+      removable = new ArrayList<>(deleted.keySet());
+      deleted.clear();
+    }
+    try {
+      remove(removable);
+    } finally {
+      synchronized (channels) {
+        for (FileChannel channel : channels.values()) {
+          channel.close();
+        }
+        channels.clear();
+        segments.clear();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ValuePointer stands in for a value which is stored in the ValueLog. It is stored in place of the value, so
+ * records, deltas and the write-ahead log only carry its segment, offset and size.
+ */
+public class ValuePointer extends ByteArray {
+
+  static final int SIZE = 4 + 8 + 8;
+
+  private final int segment;
+  private final long offset;
+  private final long size;
+
+  public ValuePointer(int segment, long offset, long size) {
+    super(ByteBuffer.allocate(SIZE).putInt(segment).putLong(offset).putLong(size).array());
+
+    if (segment < 0) throw new IllegalArgumentException();
+    if (offset < 0) throw new IllegalArgumentException();
+    if (size < 0) throw new IllegalArgumentException();
+
+    this.segment = segment;
+    this.offset = offset;
+    this.size = size;
+  }
+
+  public static ValuePointer decode(ByteArray bytes) {
+    if (bytes == null) throw new IllegalArgumentException();
+    if (bytes.length() != SIZE) throw new IllegalArgumentException();
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.get());
+    int segment = buffer.getInt();
+    long offset = buffer.getLong();
+    long size = buffer.getLong();
+
+    return new ValuePointer(segment, offset, size);
+  }
+
+  public int getSegment() {
+    return segment;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * Returns the size of the value in bytes, which might exceed the size of a byte[].
+   */
+  public long getSize() {
+    return size;
+  }
+
+}
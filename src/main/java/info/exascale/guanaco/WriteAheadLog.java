@@ -0,0 +1,360 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The WriteAheadLog makes single writes durable without flushing pages. Every put, delete and merge is appended as
+ * a small record to "<database>.wal". Concurrent callers of sync() share a single fsync.
+ * <p>
+ * A checkpoint rotates the log to "<database>.wal.old", flushes the pages and deletes the old log. On open both
+ * logs are replayed in order on top of the page store. Every record carries the sequence number of its write, so
+ * the replay can skip the writes which already reached the page store before a crash.
+ * <p>
+ * The record layout is as follows:
+ * int length, int checksum, byte type, long sequence, int keyLength, key, value
+ * The value of a VALUE_POINTER_RECORD is a ValuePointer into the ValueLog.
+ * The length and the checksum cover everything after the checksum. A torn record at the end is ignored.
+ */
+public class WriteAheadLog implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+
+  private static final String suffix = ".wal";
+  private static final String oldSuffix = ".old";
+
+  private static final byte PUT_RECORD = 1;
+  private static final byte DELETE_RECORD = 2;
+  private static final byte VALUE_POINTER_RECORD = 3;
+  private static final byte MERGE_RECORD = 4;
+
+  private static final int HEADER_SIZE = 4 + 4;
+  private static final int MIN_RECORD_SIZE = 1 + 8 + 4;
+
+  private final File file;
+  private final File oldFile;
+  private final Object syncLock = new Object();
+  private final CRC32 crc = new CRC32();
+
+  private FileChannel channel = null;
+  private ByteBuffer buffer = ByteBuffer.allocate(4096);
+  private long appended = 0;
+  private volatile long synced = 0;
+
+  public WriteAheadLog(File database) {
+    if (database == null) throw new IllegalArgumentException();
+
+    this.file = getFile(database);
+    this.oldFile = new File(file.getPath() + oldSuffix);
+  }
+
+  public static File getFile(File database) {
+    if (database == null) throw new IllegalArgumentException();
+
+    return new File(database.getPath() + suffix);
+  }
+
+  /**
+   * Deletes the logs of the database.
+   */
+  public static void delete(File database) throws IOException {
+    File file = getFile(database);
+    deleteFiles(file, new File(file.getPath() + oldSuffix));
+  }
+
+  private static void deleteFiles(File... logs) throws IOException {
+    for (File log : logs) {
+      if (log.exists() && !log.delete()) {
+        throw new IOException(String.format("Cannot delete log %s", log));
+      }
+    }
+  }
+
+  /**
+   * Receives the logged writes in the order in which they were logged. A write might be handed over twice.
+   */
+  public interface Replayer {
+
+    void put(ByteArray key, ByteArray value, long sequence) throws IOException;
+
+    void merge(ByteArray key, ByteArray operand, long sequence) throws IOException;
+
+    void delete(ByteArray key, long sequence) throws IOException;
+
+  }
+
+  /**
+   * Hands all logged writes to the replayer. Nothing is logged until open() is called, so the replayed writes must
+   * be flushed to the page store before opening the log.
+   */
+  public synchronized void replay(Replayer replayer) throws IOException {
+    if (replayer == null) throw new IllegalArgumentException();
+    if (channel != null) throw new IllegalStateException();
+
+    int count = replay(oldFile, replayer) + replay(file, replayer);
+    if (count > 0) {
+      LOG.info("Replayed {} records from the log", count);
+    }
+  }
+
+  private int replay(File log, Replayer replayer) throws IOException {
+    if (!log.isFile()) {
+      return 0;
+    }
+
+    int count = 0;
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+      CRC32 crc = new CRC32();
+      while (true) {
+        int length;
+        int checksum;
+        byte[] payload;
+        try {
+          length = input.readInt();
+          checksum = input.readInt();
+          if (length < MIN_RECORD_SIZE) {
+            break;
+          }
+          payload = new byte[length];
+          input.readFully(payload);
+        } catch (EOFException e) {
+          break;
+        }
+
+        crc.reset();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+          // A write was torn by a crash, everything before it is intact
+          LOG.warn("Ignoring torn record at the end of the log {}", log);
+          break;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte[] value;
+        byte type = buffer.get();
+        long sequence = buffer.getLong();
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        switch (type) {
+          case PUT_RECORD:
+            value = new byte[buffer.remaining()];
+            buffer.get(value);
+            replayer.put(new ByteArray(key), new ByteArray(value), sequence);
+            break;
+          case DELETE_RECORD:
+            replayer.delete(new ByteArray(key), sequence);
+            break;
+          case VALUE_POINTER_RECORD:
+            value = new byte[buffer.remaining()];
+            buffer.get(value);
+            replayer.put(new ByteArray(key), ValuePointer.decode(new ByteArray(value)), sequence);
+            break;
+          case MERGE_RECORD:
+            value = new byte[buffer.remaining()];
+            buffer.get(value);
+            replayer.merge(new ByteArray(key), new ByteArray(value), sequence);
+            break;
+          default:
+            // Something's not right
+            throw new IOException(String.format("Unknown record type %d in the log %s", type, log));
+        }
+        ++count;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Drops the replayed logs and starts a new one.
+   */
+  public synchronized void open() throws IOException {
+    if (channel != null) throw new IllegalStateException();
+
+    deleteFiles(oldFile, file);
+    channel = new RandomAccessFile(file, "rw").getChannel();
+    appended = 0;
+    synced = 0;
+  }
+
+  /**
+   * Appends a put. The record is durable after the next sync().
+   */
+  public void appendPut(ByteArray key, ByteArray value, long sequence) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    append(value instanceof ValuePointer ? VALUE_POINTER_RECORD : PUT_RECORD, key, value, sequence);
+  }
+
+  /**
+   * Appends a merge operand. The record is durable after the next sync().
+   */
+  public void appendMerge(ByteArray key, ByteArray operand, long sequence) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+    if (operand == null) throw new IllegalArgumentException();
+
+    append(MERGE_RECORD, key, operand, sequence);
+  }
+
+  /**
+   * Appends a delete. The record is durable after the next sync().
+   */
+  public void appendDelete(ByteArray key, long sequence) throws IOException {
+    if (key == null) throw new IllegalArgumentException();
+
+    append(DELETE_RECORD, key, null, sequence);
+  }
+
+  private synchronized void append(byte type, ByteArray key, ByteArray value, long sequence) throws IOException {
+    if (channel == null) {
+      // We are replaying, the record is already in the log
+      return;
+    }
+
+    int length = MIN_RECORD_SIZE + key.length() + (value != null ? value.length() : 0);
+    if (buffer.capacity() < HEADER_SIZE + length) {
+      buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE + length, buffer.capacity() * 2));
+    }
+
+    // Lets reuse the buffer and the checksum, so an append does not allocate
+    buffer.clear();
+    buffer.putInt(length);
+    buffer.putInt(0);
+    buffer.put(type);
+    buffer.putLong(sequence);
+    buffer.putInt(key.length());
+    buffer.put(key.get());
+    if (value != null) {
+      buffer.put(value.get());
+    }
+
+    crc.reset();
+    crc.update(buffer.array(), HEADER_SIZE, length);
+    buffer.putInt(4, (int) crc.getValue());
+    buffer.flip();
+
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    appended += buffer.limit();
+  }
+
+  /**
+   * Makes all appended records durable. Callers which arrive while an fsync is running are served by the next one.
+   */
+  public void sync() throws IOException {
+    long target;
+    synchronized (this) {
+      target = appended;
+    }
+
+    synchronized (syncLock) {
+      if (synced >= target) {
+        // Another caller has synced our records
+        return;
+      }
+
+      FileChannel current;
+      synchronized (this) {
+        current = channel;
+        target = appended;
+      }
+      if (current != null) {
+        current.force(false);
+      }
+      synced = target;
+    }
+  }
+
+  /**
+   * Returns the number of bytes appended since the last rotation.
+   */
+  public synchronized long size() {
+    return appended;
+  }
+
+  /**
+   * Moves the current log aside and starts a new one. The caller has to delete the old log with
+   * deleteOldLog() once all writes in it have been flushed to the page store. If the old log is still there because
+   * a checkpoint has failed, the current log is appended to it.
+   */
+  public void rotate() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        if (channel == null) throw new IllegalStateException();
+
+        channel.force(false);
+        if (oldFile.exists()) {
+          // A crash before the current log is deleted leaves its records in both logs, the replay skips the copies
+          try (FileChannel old = new FileOutputStream(oldFile, true).getChannel()) {
+            long position = 0;
+            while (position < appended) {
+              position += channel.transferTo(position, appended - position, old);
+            }
+            old.force(false);
+          }
+          channel.close();
+          channel = null;
+          if (!file.delete()) {
+            throw new IOException(String.format("Cannot rotate log %s", file));
+          }
+        } else {
+          channel.close();
+          channel = null;
+          if (!file.renameTo(oldFile)) {
+            throw new IOException(String.format("Cannot rotate log %s", file));
+          }
+        }
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        appended = 0;
+        synced = 0;
+      }
+    }
+  }
+
+  public void deleteOldLog() throws IOException {
+    deleteFiles(oldFile);
+  }
+
+  /**
+   * Closes the log. An empty log is deleted.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        if (channel != null) {
+          channel.force(false);
+          channel.close();
+          channel = null;
+          if (appended == 0 && !file.delete()) {
+            throw new IOException(String.format("Cannot delete log %s", file));
+          }
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A WriteBatch collects puts and deletes which GuanacoStorageEngine.write() applies in order with a single commit,
+ * so synchronous writes share one sync of the log. The batch is not atomic, a crash may leave only a prefix of it.
+ */
+public class WriteBatch {
+
+  private final List<ByteArray> keys = new ArrayList<>();
+
+  // A null value stands for a delete
+  private final List<ByteArray> values = new ArrayList<>();
+
+  public WriteBatch put(ByteArray key, ByteArray value) {
+    if (key == null) throw new IllegalArgumentException();
+    if (value == null) throw new IllegalArgumentException();
+
+    keys.add(key);
+    values.add(value);
+    return this;
+  }
+
+  public WriteBatch delete(ByteArray key) {
+    if (key == null) throw new IllegalArgumentException();
+
+    keys.add(key);
+    values.add(null);
+    return this;
+  }
+
+  public int size() {
+    return keys.size();
+  }
+
+  public boolean isEmpty() {
+    return keys.isEmpty();
+  }
+
+  public void clear() {
+    keys.clear();
+    values.clear();
+  }
+
+  public ByteArray getKey(int index) {
+    return keys.get(index);
+  }
+
+  /**
+   * Returns the value of the write or null if it is a delete.
+   */
+  public ByteArray getValue(int index) {
+    return values.get(index);
+  }
+
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco.server;
+
+import com.google.common.base.Charsets;
+import info.exascale.guanaco.ByteArray;
+import info.exascale.guanaco.GuanacoStorageEngine;
+import info.exascale.guanaco.StorageIterator;
+import info.exascale.guanaco.WriteBatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Connection reads RESP requests from a socket and answers them in order. Responses are only flushed once no
+ * further request is buffered, so a pipeline is answered with few writes. SETs are collected in a WriteBatch until
+ * the pipeline ends or another command needs to see them.
+ */
+class Connection implements Closeable {
+
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  private static final int MAX_ARGUMENTS = 1024;
+  private static final int MAX_BULK_LENGTH = 512 << 20;
+  private static final long MAX_COMMAND_SIZE = 512 << 20;
+  // Arguments grow as their bytes arrive, so a declared length alone doesn't allocate much
+  private static final int READ_CHUNK_SIZE = 64 << 10;
+  private static final int MAX_BATCH_SIZE = 1024;
+  private static final int MAX_CURSORS = 16;
+  private static final int DEFAULT_SCAN_COUNT = 10;
+
+  private final GuanacoStorageEngine engine;
+  private final Socket socket;
+  private final InputStream in;
+  private final OutputStream out;
+
+  private final WriteBatch batch = new WriteBatch();
+
+  // The iterators of the open SCAN cursors, oldest first
+  private final Map<Long, StorageIterator> cursors = new LinkedHashMap<>();
+  private long lastCursor = 0;
+
+  private boolean isQuit = false;
+
+  Connection(GuanacoStorageEngine engine, Socket socket) throws IOException {
+    this.engine = engine;
+    this.socket = socket;
+    this.in = new BufferedInputStream(socket.getInputStream(), 64 << 10);
+    this.out = new BufferedOutputStream(socket.getOutputStream(), 64 << 10);
+  }
+
+  /**
+   * Serves requests until the client disconnects or quits.
+   */
+  public void run() throws IOException {
+    socket.setTcpNoDelay(true);
+
+    while (!isQuit) {
+      List<byte[]> command;
+      try {
+        command = readCommand();
+      } catch (ProtocolException e) {
+        // We cannot find the start of the next request
+        flushBatch();
+        writeError("ERR Protocol error: " + e.getMessage());
+        break;
+      }
+      if (command == null) {
+        break;
+      }
+
+      execute(command);
+
+      boolean isDrained = in.available() == 0;
+      if (isDrained || batch.size() >= MAX_BATCH_SIZE) {
+        flushBatch();
+      }
+      if (isDrained) {
+        out.flush();
+      }
+    }
+
+    flushBatch();
+    out.flush();
+  }
+
+  private void execute(List<byte[]> command) throws IOException {
+    String name = new String(command.get(0), Charsets.US_ASCII).toUpperCase();
+    int arguments = command.size() - 1;
+
+    if (name.equals("SET")) {
+      if (arguments != 2) {
+        flushBatch();
+        writeArityError(name);
+      } else {
+        // The reply is sent once the batch is written
+        batch.put(new ByteArray(command.get(1)), new ByteArray(command.get(2)));
+      }
+      return;
+    }
+
+    // Every other command sees the writes before it
+    flushBatch();
+    try {
+      switch (name) {
+        case "GET":
+          if (arguments != 1) {
+            writeArityError(name);
+          } else {
+            writeBulk(engine.get(new ByteArray(command.get(1))));
+          }
+          break;
+        case "DEL":
+          if (arguments < 1) {
+            writeArityError(name);
+          } else {
+            List<ByteArray> keys = new ArrayList<>(arguments);
+            for (int i = 1; i < command.size(); ++i) {
+              keys.add(new ByteArray(command.get(i)));
+            }
+            writeInteger(engine.delete(keys));
+          }
+          break;
+        case "SCAN":
+          scan(command);
+          break;
+        case "PING":
+          if (arguments == 0) {
+            writeSimple("PONG");
+          } else if (arguments == 1) {
+            writeBulk(command.get(1));
+          } else {
+            writeArityError(name);
+          }
+          break;
+        case "QUIT":
+          writeSimple("OK");
+          isQuit = true;
+          break;
+        case "COMMAND":
+          // Clients ask for the command table on startup, an empty one is fine
+          writeArrayHeader(0);
+          break;
+        default:
+          writeError(String.format("ERR unknown command '%s'", name));
+      }
+    } catch (IOException e) {
+      if (socket.isClosed()) {
+        throw e;
+      }
+      writeError("ERR " + e.getMessage());
+    }
+  }
+
+  /**
+   * SCAN cursor [COUNT count]. The cursor names an iterator of this connection, 0 starts a new one.
+   */
+  private void scan(List<byte[]> command) throws IOException {
+    int count = DEFAULT_SCAN_COUNT;
+    long cursor;
+    try {
+      if (command.size() == 4 && new String(command.get(2), Charsets.US_ASCII).equalsIgnoreCase("COUNT")) {
+        count = Integer.parseInt(new String(command.get(3), Charsets.US_ASCII));
+      } else if (command.size() != 2) {
+        writeError("ERR syntax error");
+        return;
+      }
+      cursor = Long.parseLong(new String(command.get(1), Charsets.US_ASCII));
+    } catch (NumberFormatException e) {
+      writeError("ERR value is not an integer or out of range");
+      return;
+    }
+    if (count < 1) {
+      writeError("ERR syntax error");
+      return;
+    }
+
+    StorageIterator iterator;
+    if (cursor == 0) {
+      iterator = engine.iterator();
+      cursor = ++lastCursor;
+    } else {
+      iterator = cursors.remove(cursor);
+      if (iterator == null) {
+        writeError("ERR invalid cursor");
+        return;
+      }
+    }
+
+    List<ByteArray> keys = new ArrayList<>();
+    boolean hasNext;
+    try {
+      while (keys.size() < count && iterator.hasNext()) {
+        keys.add(iterator.next().getKey());
+      }
+      hasNext = iterator.hasNext();
+    } catch (RuntimeException e) {
+      // The iterator wraps read failures, the cursor is gone
+      iterator.close();
+      writeError("ERR " + e.getMessage());
+      return;
+    }
+
+    if (hasNext) {
+      cursors.put(cursor, iterator);
+      if (cursors.size() > MAX_CURSORS) {
+        // Lets drop the oldest cursor, it holds a snapshot
+        Iterator<StorageIterator> oldest = cursors.values().iterator();
+        oldest.next().close();
+        oldest.remove();
+      }
+    } else {
+      iterator.close();
+      cursor = 0;
+    }
+
+    writeArrayHeader(2);
+    writeBulk(Long.toString(cursor).getBytes(Charsets.US_ASCII));
+    writeArrayHeader(keys.size());
+    for (ByteArray key : keys) {
+      writeBulk(key);
+    }
+  }
+
+  /**
+   * Writes the collected SETs with a single engine call and sends their replies.
+   */
+  private void flushBatch() throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    boolean isWritten;
+    try {
+      engine.write(batch);
+      isWritten = true;
+    } catch (IOException e) {
+      isWritten = false;
+    }
+
+    try {
+      for (int i = 0; i < batch.size(); ++i) {
+        String error = null;
+        if (!isWritten) {
+          // The batch may have been applied in part. A SET can be applied twice, so lets apply them one by one to
+          // find out which ones fail.
+          try {
+            engine.put(batch.getKey(i), batch.getValue(i));
+          } catch (IOException e) {
+            error = "ERR " + e.getMessage();
+          }
+        }
+
+        if (error == null) {
+          writeSimple("OK");
+        } else {
+          writeError(error);
+        }
+      }
+    } finally {
+      batch.clear();
+    }
+  }
+
+  /**
+   * Reads a request, which is an array of bulk strings. Returns null at the end of the stream.
+   */
+  private List<byte[]> readCommand() throws IOException {
+    int type = in.read();
+    if (type == -1) {
+      return null;
+    }
+    if (type != '*') {
+      throw new ProtocolException("expected '*', got '" + (char) type + "'");
+    }
+
+    long count = readNumber();
+    if (count < 1 || count > MAX_ARGUMENTS) {
+      throw new ProtocolException("invalid multibulk length");
+    }
+
+    List<byte[]> command = new ArrayList<>((int) count);
+    long size = 0;
+    for (int i = 0; i < count; ++i) {
+      if (readByte() != '$') {
+        throw new ProtocolException("expected '$'");
+      }
+      long length = readNumber();
+      if (length < 0 || length > MAX_BULK_LENGTH) {
+        throw new ProtocolException("invalid bulk length");
+      }
+      size += length;
+      if (size > MAX_COMMAND_SIZE) {
+        throw new ProtocolException("command too large");
+      }
+
+      byte[] argument = readBulk((int) length);
+      if (readByte() != '\r' || readByte() != '\n') {
+        throw new ProtocolException("expected CRLF");
+      }
+      command.add(argument);
+    }
+
+    return command;
+  }
+
+  /**
+   * Reads the bytes of a bulk string. The buffer doubles as the bytes arrive, so a client has to send the bytes it
+   * has announced before we allocate memory for them.
+   */
+  private byte[] readBulk(int length) throws IOException {
+    byte[] argument = new byte[Math.min(length, READ_CHUNK_SIZE)];
+    int offset = 0;
+    while (offset < length) {
+      if (offset == argument.length) {
+        argument = Arrays.copyOf(argument, (int) Math.min(length, 2L * argument.length));
+      }
+      int read = in.read(argument, offset, argument.length - offset);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+    }
+
+    return argument;
+  }
+
+  /**
+   * Reads a decimal number terminated by CRLF.
+   */
+  private long readNumber() throws IOException {
+    long number = 0;
+    boolean isNegative = false;
+    int digits = 0;
+
+    int b = readByte();
+    if (b == '-') {
+      isNegative = true;
+      b = readByte();
+    }
+    while (b != '\r') {
+      if (b < '0' || b > '9' || ++digits > 18) {
+        throw new ProtocolException("invalid number");
+      }
+      number = number * 10 + (b - '0');
+      b = readByte();
+    }
+    if (digits == 0 || readByte() != '\n') {
+      throw new ProtocolException("invalid number");
+    }
+
+    return isNegative ? -number : number;
+  }
+
+  private int readByte() throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new EOFException();
+    }
+
+    return b;
+  }
+
+  private void writeSimple(String message) throws IOException {
+    out.write('+');
+    out.write(message.getBytes(Charsets.US_ASCII));
+    out.write(CRLF);
+  }
+
+  private void writeError(String message) throws IOException {
+    out.write('-');
+    out.write(message.replace('\r', ' ').replace('\n', ' ').getBytes(Charsets.UTF_8));
+    out.write(CRLF);
+  }
+
+  private void writeArityError(String name) throws IOException {
+    writeError(String.format("ERR wrong number of arguments for '%s' command", name.toLowerCase()));
+  }
+
+  private void writeInteger(long number) throws IOException {
+    out.write(':');
+    out.write(Long.toString(number).getBytes(Charsets.US_ASCII));
+    out.write(CRLF);
+  }
+
+  private void writeArrayHeader(int size) throws IOException {
+    out.write('*');
+    out.write(Integer.toString(size).getBytes(Charsets.US_ASCII));
+    out.write(CRLF);
+  }
+
+  private void writeBulk(ByteArray value) throws IOException {
+    writeBulk(value != null ? value.get() : null);
+  }
+
+  private void writeBulk(byte[] value) throws IOException {
+    if (value == null) {
+      // The null bulk string
+      out.write(new byte[]{'$', '-', '1', '\r', '\n'});
+      return;
+    }
+
+    out.write('$');
+    out.write(Integer.toString(value.length).getBytes(Charsets.US_ASCII));
+    out.write(CRLF);
+    out.write(value);
+    out.write(CRLF);
+  }
+
+  /**
+   * Closes the open cursors and the socket.
+   */
+  @Override
+  public void close() throws IOException {
+    for (StorageIterator iterator : cursors.values()) {
+      iterator.close();
+    }
+    cursors.clear();
+
+    socket.close();
+  }
+
+}
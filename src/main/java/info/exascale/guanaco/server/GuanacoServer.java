@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import info.exascale.guanaco.GuanacoStorageEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GuanacoServer exposes a GuanacoStorageEngine over TCP with a subset of the Redis protocol (RESP), so existing
+ * Redis clients can talk to it: PING, GET, SET, DEL, SCAN and QUIT. Every connection is served by its own thread.
+ * Pipelined requests are answered in order, and the SETs of a pipeline are applied as one WriteBatch.
+ * <p>
+ * Usage: GuanacoServer <database> [port]
+ */
+public class GuanacoServer implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GuanacoServer.class);
+
+  public static final int DEFAULT_PORT = 6379;
+
+  private final GuanacoStorageEngine engine;
+  private final ExecutorService connections = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("guanaco-server-%d").setDaemon(true).build());
+  private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+  private ServerSocket serverSocket = null;
+  private volatile boolean isClosed = false;
+
+  public GuanacoServer(GuanacoStorageEngine engine) {
+    if (engine == null) throw new IllegalArgumentException();
+
+    this.engine = engine;
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 1 || args.length > 2) {
+      LOG.error("Usage: GuanacoServer <database> [port]");
+      return;
+    }
+
+    final GuanacoStorageEngine engine;
+    try {
+      engine = GuanacoStorageEngine.openDatabase(new File(args[0]));
+    } catch (IOException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+      return;
+    }
+
+    // The JVM halts once the hooks have finished, so the hook has to close the engine itself
+    final GuanacoServer server = new GuanacoServer(engine);
+    final CountDownLatch closed = new CountDownLatch(1);
+    Thread hook = new Thread("guanaco-shutdown") {
+      @Override
+      public void run() {
+        close(server, engine);
+        closed.countDown();
+      }
+    };
+
+    try {
+      int port = server.listen(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+      LOG.info("Serving {} on port {}", args[0], port);
+      Runtime.getRuntime().addShutdownHook(hook);
+    } catch (IOException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+      close(server, engine);
+      return;
+    }
+
+    // Lets keep the JVM alive until the hook has closed the engine
+    try {
+      closed.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void close(GuanacoServer server, GuanacoStorageEngine engine) {
+    try {
+      server.close();
+    } catch (IOException e) {
+      LOG.error("Cannot close the server", e);
+    } finally {
+      try {
+        engine.close();
+      } catch (IOException e) {
+        LOG.error("Cannot close the database", e);
+      }
+    }
+  }
+
+  /**
+   * Accepts connections on the port. Returns the local port, so 0 picks a free one.
+   */
+  public synchronized int listen(int port) throws IOException {
+    if (port < 0) throw new IllegalArgumentException();
+    if (serverSocket != null || isClosed) throw new IllegalStateException();
+
+    final ServerSocket socket = new ServerSocket(port);
+    serverSocket = socket;
+    connections.submit(new Runnable() {
+      @Override
+      public void run() {
+        while (!socket.isClosed()) {
+          try {
+            accept(socket.accept());
+          } catch (IOException e) {
+            if (!socket.isClosed()) {
+              LOG.warn("Cannot accept a connection", e);
+            }
+          }
+        }
+      }
+    });
+
+    return socket.getLocalPort();
+  }
+
+  private void accept(final Socket socket) {
+    sockets.add(socket);
+    connections.submit(new Runnable() {
+      @Override
+      public void run() {
+        try (Connection connection = new Connection(engine, socket)) {
+          connection.run();
+        } catch (IOException e) {
+          if (!isClosed) {
+            LOG.debug("Connection {} failed: {}", socket.getRemoteSocketAddress(), e.toString());
+          }
+        } finally {
+          sockets.remove(socket);
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops accepting connections and closes the open ones. The engine stays open.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      isClosed = true;
+      if (serverSocket != null) {
+        serverSocket.close();
+      }
+    }
+
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+
+    connections.shutdown();
+    try {
+      if (!connections.awaitTermination(1, TimeUnit.MINUTES)) {
+        throw new IOException("Cannot stop the connections");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+}
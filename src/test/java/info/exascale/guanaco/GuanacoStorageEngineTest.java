@@ -21,14 +21,43 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class GuanacoStorageEngineTest {
 
@@ -38,18 +67,32 @@ public class GuanacoStorageEngineTest {
 
   @Before
   public void setUp() {
-    if (file.exists() && !file.delete()) {
+    if (!delete(file) || !delete(CacheWarmer.getFile(file)) || !deleteLogs(file)) {
       LOG.error("Cannot delete database");
     }
   }
 
   @After
   public void tearDown() {
-    if (file.exists() && !file.delete()) {
+    if (!delete(file) || !delete(CacheWarmer.getFile(file)) || !deleteLogs(file)) {
       LOG.error("Cannot cleanup database");
     }
   }
 
+  private static boolean delete(File file) {
+    return !file.exists() || file.delete();
+  }
+
+  private static boolean deleteLogs(File file) {
+    try {
+      WriteAheadLog.delete(file);
+      ValueLog.delete(file);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   @Test
   public void testCreateDatabase() throws IOException {
     Random random = new Random();
@@ -151,4 +194,1818 @@ public class GuanacoStorageEngineTest {
     }
   }
 
+  @Test
+  public void testWarmUp() throws IOException, InterruptedException {
+    Random random = new Random();
+    Map<ByteArray, ByteArray> map = new HashMap<>();
+
+    // Create database
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      for (int i = 0; i < 100; ++i) {
+        byte[] keyBytes = new byte[16];
+        random.nextBytes(keyBytes);
+        ByteArray key = new ByteArray(keyBytes);
+
+        byte[] valueBytes = new byte[256];
+        random.nextBytes(valueBytes);
+        ByteArray value = new ByteArray(valueBytes);
+
+        engine.put(key, value);
+        map.put(key, value);
+      }
+    }
+    assertTrue(CacheWarmer.getFile(file).isFile());
+
+    // Reopen database, the hot pages should be prefetched
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      engine.awaitWarmUp();
+
+      List<UUID> hotPages = engine.getCacheManager().getHotPages();
+      assertEquals(map.size(), hotPages.size());
+      for (UUID pid : hotPages) {
+        assertTrue(engine.getCacheManager().isInMemory(pid));
+      }
+
+      for (ByteArray key : map.keySet()) {
+        assertEquals(map.get(key), engine.get(key));
+      }
+    }
+
+    // Reopen database without warm-up
+    GuanacoOptions options = new GuanacoOptions().setHotPageCount(0);
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      engine.awaitWarmUp();
+
+      for (ByteArray key : map.keySet()) {
+        assertEquals(map.get(key), engine.get(key));
+      }
+    }
+    assertFalse(CacheWarmer.getFile(file).exists());
+  }
+
+  @Test
+  public void testAdmissionPolicy() throws IOException {
+    Random random = new Random();
+    Map<ByteArray, ByteArray> map = new HashMap<>();
+
+    // Create database
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      for (int i = 0; i < 100; ++i) {
+        byte[] keyBytes = new byte[16];
+        random.nextBytes(keyBytes);
+        ByteArray key = new ByteArray(keyBytes);
+
+        byte[] valueBytes = new byte[256];
+        random.nextBytes(valueBytes);
+        ByteArray value = new ByteArray(valueBytes);
+
+        engine.put(key, value);
+        map.put(key, value);
+      }
+      engine.delete(map.keySet().iterator().next());
+      map.put(map.keySet().iterator().next(), null);
+    }
+
+    // The warm-up would prefetch the pages of the first session in the background
+    assertTrue(CacheWarmer.getFile(file).delete());
+
+    // Reading must never load a page
+    GuanacoOptions options = new GuanacoOptions().setHotPageCount(0).setAdmissionPolicy(AdmissionPolicy.NEVER);
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      for (ByteArray key : map.keySet()) {
+        assertEquals(map.get(key), engine.get(key));
+        assertEquals(map.get(key), engine.get(key));
+
+        // getHotPages() is capped by the hot page count, so lets ask the MappingTable directly
+        UUID pid = engine.getIndex().getPid(key);
+        assertTrue(pid == null || !engine.getCacheManager().isInMemory(pid));
+      }
+      assertEquals(0, countInMemoryPages(engine));
+    }
+
+    // The second read loads the page
+    options = new GuanacoOptions().setAdmissionPolicy(new FrequencyAdmissionPolicy(2));
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      ByteArray key = map.keySet().toArray(new ByteArray[0])[1];
+
+      assertEquals(map.get(key), engine.get(key));
+      assertTrue(engine.getCacheManager().getHotPages().isEmpty());
+
+      assertEquals(map.get(key), engine.get(key));
+      assertEquals(1, engine.getCacheManager().getHotPages().size());
+    }
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    Random random = new Random();
+    final Map<ByteArray, ByteArray> map = new HashMap<>();
+
+    // Create database
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      for (int i = 0; i < 1000; ++i) {
+        byte[] keyBytes = new byte[16];
+        random.nextBytes(keyBytes);
+        ByteArray key = new ByteArray(keyBytes);
+
+        byte[] valueBytes = new byte[256];
+        random.nextBytes(valueBytes);
+        ByteArray value = new ByteArray(valueBytes);
+
+        engine.put(key, value);
+        map.put(key, value);
+      }
+    }
+
+    // Readers go to disk for every key while a writer flushes
+    GuanacoOptions options = new GuanacoOptions().setHotPageCount(0).setAdmissionPolicy(AdmissionPolicy.NEVER);
+    try (final GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      List<Thread> readers = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        Thread reader = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < 5; ++j) {
+                for (Map.Entry<ByteArray, ByteArray> entry : map.entrySet()) {
+                  assertEquals(entry.getValue(), engine.get(entry.getKey()));
+                }
+              }
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        });
+        readers.add(reader);
+        reader.start();
+      }
+
+      for (int i = 0; i < 100; ++i) {
+        engine.put(new ByteArray((byte) i), new ByteArray((byte) i));
+        engine.flush();
+      }
+
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      assertNull(failure.get());
+    }
+  }
+
+  @Test
+  public void testPutDuringRetire() throws IOException {
+    ByteArray key = new ByteArray((byte) 1);
+    ByteArray value = new ByteArray((byte) 2);
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      engine.put(key, value);
+      engine.delete(key);
+
+      List<Page> retired = engine.getCacheManager().flush(new SnapshotManager());
+      assertEquals(1, retired.size());
+      Page page = retired.get(0);
+
+      // A put between the flush and the cleanup of its retired pages must keep its index entry
+      engine.put(key, value);
+      engine.getIndex().remove(key, page.getPid());
+      engine.getCacheManager().remove(page);
+      assertEquals(value, engine.get(key));
+    }
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(value, engine.get(key));
+    }
+  }
+
+  @Test
+  public void testFlushWithConcurrentWriters() throws Exception {
+    final Map<ByteArray, ByteArray> map = new HashMap<>();
+    final AtomicBoolean isRunning = new AtomicBoolean(true);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    try (final GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random();
+          try {
+            while (isRunning.get()) {
+              ByteArray key = new ByteArray((byte) random.nextInt(64));
+              if (random.nextInt(4) == 0) {
+                engine.delete(key);
+                map.remove(key);
+              } else {
+                ByteArray value = new ByteArray(ByteBuffer.allocate(4).putInt(random.nextInt()).array());
+                engine.put(key, value);
+                map.put(key, value);
+              }
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      });
+      writer.start();
+
+      // Writers must not wait for the flushes
+      for (int i = 0; i < 200; ++i) {
+        engine.flush();
+      }
+
+      isRunning.set(false);
+      writer.join();
+      assertNull(failure.get());
+    }
+
+    // Reopen database
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      for (int i = 0; i < 64; ++i) {
+        ByteArray key = new ByteArray((byte) i);
+        assertEquals(map.get(key), engine.get(key));
+      }
+    }
+  }
+
+  @Test
+  public void testWriterLatencyDuringFlush() throws Exception {
+    final ByteArray key = new ByteArray((byte) 1);
+    final ByteArray value = new ByteArray(new byte[32 << 10]);
+
+    // The throttled flush stalls for about a second on the page of the key
+    GuanacoOptions options = new GuanacoOptions().setFlushIoRate(16 << 10).setFlushThreads(1);
+    try (final GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      engine.put(key, value);
+
+      final AtomicBoolean isRunning = new AtomicBoolean(true);
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      final AtomicLong maxLatency = new AtomicLong();
+      final AtomicLong count = new AtomicLong();
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (isRunning.get()) {
+              long start = System.nanoTime();
+              engine.put(key, value);
+              long latency = System.nanoTime() - start;
+
+              if (latency > maxLatency.get()) {
+                maxLatency.set(latency);
+              }
+              count.incrementAndGet();
+              Thread.sleep(1);
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      });
+      writer.start();
+
+      long start = System.nanoTime();
+      try {
+        engine.flush();
+      } finally {
+        isRunning.set(false);
+        writer.join();
+      }
+      long duration = System.nanoTime() - start;
+      assertNull(failure.get());
+
+      // Writers must not wait for the flush, not even on the page being written
+      assertTrue(duration > TimeUnit.MILLISECONDS.toNanos(500));
+      assertTrue(count.get() > 10);
+      assertTrue(maxLatency.get() < duration / 4);
+
+      // Lets keep the flush on close short
+      engine.delete(key);
+    }
+  }
+
+  @Test
+  public void testSnapshot() throws IOException {
+    ByteArray key1 = new ByteArray((byte) 1);
+    ByteArray key2 = new ByteArray((byte) 2);
+    ByteArray key3 = new ByteArray((byte) 3);
+    ByteArray value1 = new ByteArray((byte) 1, (byte) 1);
+    ByteArray value2 = new ByteArray((byte) 2, (byte) 2);
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      engine.put(key1, value1);
+      engine.put(key2, value1);
+
+      try (Snapshot snapshot = engine.snapshot()) {
+        engine.put(key1, value2);
+        engine.delete(key2);
+        engine.put(key3, value2);
+        engine.flush();
+
+        assertEquals(value1, engine.get(key1, snapshot));
+        assertEquals(value1, engine.get(key2, snapshot));
+        assertNull(engine.get(key3, snapshot));
+      }
+
+      assertEquals(value2, engine.get(key1));
+      assertNull(engine.get(key2));
+      assertEquals(value2, engine.get(key3));
+    }
+
+    // The sequence numbers must continue after reopening
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      try (Snapshot snapshot = engine.snapshot()) {
+        engine.put(key1, value1);
+        engine.put(key2, value1);
+
+        assertEquals(value2, engine.get(key1, snapshot));
+        assertNull(engine.get(key2, snapshot));
+        assertEquals(value2, engine.get(key3, snapshot));
+      }
+
+      assertEquals(value1, engine.get(key1));
+      assertEquals(value1, engine.get(key2));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClosedSnapshot() throws IOException {
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      Snapshot snapshot = engine.snapshot();
+      snapshot.close();
+
+      engine.get(new ByteArray((byte) 1), snapshot);
+    }
+  }
+
+  @Test
+  public void testSnapshotWithConcurrentWriter() throws Exception {
+    final int size = 100;
+    final ByteArray[] keys = new ByteArray[size];
+    for (int i = 0; i < size; ++i) {
+      keys[i] = new ByteArray((byte) i);
+    }
+
+    try (final GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      for (ByteArray key : keys) {
+        engine.put(key, new ByteArray(ByteBuffer.allocate(4).putInt(0).array()));
+      }
+
+      final AtomicBoolean running = new AtomicBoolean(true);
+      final AtomicReference<Exception> failure = new AtomicReference<>();
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int generation = 1; running.get(); ++generation) {
+              for (ByteArray key : keys) {
+                engine.put(key, new ByteArray(ByteBuffer.allocate(4).putInt(generation).array()));
+              }
+            }
+          } catch (IOException e) {
+            failure.set(e);
+          }
+        }
+      });
+      writer.start();
+
+      try {
+        for (int i = 0; i < 50; ++i) {
+          try (Snapshot snapshot = engine.snapshot()) {
+            List<ByteArray> values = new ArrayList<>();
+            for (ByteArray key : keys) {
+              values.add(engine.get(key, snapshot));
+            }
+
+            // The writer updates the keys in order, so generations never go up in key order
+            for (int j = 1; j < size; ++j) {
+              int previous = ByteBuffer.wrap(values.get(j - 1).get()).getInt();
+              int current = ByteBuffer.wrap(values.get(j).get()).getInt();
+              assertTrue(previous >= current);
+            }
+
+            for (int j = 0; j < size; ++j) {
+              assertEquals(values.get(j), engine.get(keys[j], snapshot));
+            }
+          }
+        }
+      } finally {
+        running.set(false);
+        writer.join();
+      }
+      assertNull(failure.get());
+    }
+  }
+
+  @Test
+  public void testSnapshotDuringFlush() throws Exception {
+    final int size = 100;
+    final ByteArray[] keys = new ByteArray[size];
+    for (int i = 0; i < size; ++i) {
+      keys[i] = new ByteArray((byte) i);
+    }
+
+    // A throttled flush spends most of its time between two pages
+    GuanacoOptions options = new GuanacoOptions().setFlushIoRate(2 << 10).setFlushThreads(1);
+    try (final GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      for (ByteArray key : keys) {
+        engine.put(key, new ByteArray(ByteBuffer.allocate(4).putInt(0).array()));
+      }
+
+      final AtomicBoolean running = new AtomicBoolean(true);
+      final AtomicReference<Exception> failure = new AtomicReference<>();
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int generation = 1; running.get(); ++generation) {
+              for (ByteArray key : keys) {
+                engine.put(key, new ByteArray(ByteBuffer.allocate(4).putInt(generation).array()));
+              }
+            }
+          } catch (IOException e) {
+            failure.set(e);
+          }
+        }
+      });
+      Thread flusher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (running.get()) {
+              engine.flush();
+            }
+          } catch (IOException e) {
+            failure.set(e);
+          }
+        }
+      });
+      writer.start();
+      flusher.start();
+
+      try {
+        for (int i = 0; i < 100; ++i) {
+          // Lets give the flusher a chance to start without a snapshot, so the ones taken later are new to it
+          Thread.sleep(2);
+          try (Snapshot snapshot = engine.snapshot()) {
+            List<ByteArray> values = new ArrayList<>();
+            for (ByteArray key : keys) {
+              values.add(engine.get(key, snapshot));
+            }
+
+            Thread.sleep(2);
+
+            // Every version the snapshot has read must survive the prunes of the running flush
+            for (int j = 0; j < size; ++j) {
+              assertEquals(values.get(j), engine.get(keys[j], snapshot));
+            }
+          }
+        }
+      } finally {
+        running.set(false);
+        writer.join();
+        flusher.join();
+      }
+      assertNull(failure.get());
+    }
+  }
+
+  @Test
+  public void testIterator() throws IOException {
+    Random random = new Random();
+    Map<ByteArray, ByteArray> map = new HashMap<>();
+
+    // Create database
+    GuanacoOptions options = new GuanacoOptions().setHotPageCount(0).setIteratorBufferSize(16);
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      for (int i = 0; i < 1000; ++i) {
+        byte[] keyBytes = new byte[16];
+        random.nextBytes(keyBytes);
+        ByteArray key = new ByteArray(keyBytes);
+
+        byte[] valueBytes = new byte[256];
+        random.nextBytes(valueBytes);
+        ByteArray value = new ByteArray(valueBytes);
+
+        engine.put(key, value);
+        map.put(key, value);
+      }
+    }
+
+    // Reopen database and change some keys which are then in memory
+    options = new GuanacoOptions().setIteratorBufferSize(16);
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      Iterator<ByteArray> keys = map.keySet().iterator();
+      for (int i = 0; i < 100; ++i) {
+        ByteArray key = keys.next();
+        engine.delete(key);
+        keys.remove();
+      }
+      for (int i = 0; i < 100; ++i) {
+        ByteArray key = keys.next();
+        ByteArray value = new ByteArray((byte) i);
+        engine.put(key, value);
+        map.put(key, value);
+      }
+      int inMemoryPages = 200;
+
+      Map<ByteArray, ByteArray> entries = new HashMap<>();
+      try (StorageIterator iterator = engine.iterator()) {
+        // Changes after the iterator was opened are not visible
+        engine.put(new ByteArray((byte) 1, (byte) 2, (byte) 3), new ByteArray((byte) 4));
+        ++inMemoryPages;
+
+        while (iterator.hasNext()) {
+          Map.Entry<ByteArray, ByteArray> entry = iterator.next();
+          assertNull(entries.put(entry.getKey(), entry.getValue()));
+        }
+      }
+      assertEquals(map, entries);
+
+      // The iterator must not load any pages
+      assertEquals(inMemoryPages, engine.getCacheManager().getHotPages().size());
+    }
+  }
+
+  @Test
+  public void testBulkLoad() throws IOException {
+    Random random = new Random();
+    SortedMap<ByteArray, ByteArray> map = new TreeMap<>();
+
+    for (int i = 0; i < 10000; ++i) {
+      byte[] keyBytes = new byte[16];
+      random.nextBytes(keyBytes);
+      ByteArray key = new ByteArray(keyBytes);
+
+      byte[] valueBytes = new byte[256];
+      random.nextBytes(valueBytes);
+      ByteArray value = new ByteArray(valueBytes);
+
+      map.put(key, value);
+    }
+
+    // A value which doesn't fit into the buffer of the loader
+    map.put(new ByteArray((byte) 0), new ByteArray(new byte[2 << 20]));
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      engine.bulkLoad(map.entrySet().iterator());
+
+      for (ByteArray key : map.keySet()) {
+        assertEquals(map.get(key), engine.get(key));
+      }
+
+      // We can modify the loaded keys as usual
+      engine.put(map.firstKey(), new ByteArray((byte) 1));
+      map.put(map.firstKey(), new ByteArray((byte) 1));
+      engine.delete(map.lastKey());
+      map.remove(map.lastKey());
+    }
+
+    // Reopen database
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      Map<ByteArray, ByteArray> entries = new HashMap<>();
+      try (StorageIterator iterator = engine.iterator()) {
+        while (iterator.hasNext()) {
+          Map.Entry<ByteArray, ByteArray> entry = iterator.next();
+          entries.put(entry.getKey(), entry.getValue());
+        }
+      }
+      assertEquals(map, entries);
+    }
+  }
+
+  @Test
+  public void testBulkLoadLargeValues() throws IOException {
+    SortedMap<ByteArray, ByteArray> map = new TreeMap<>();
+    map.put(new ByteArray((byte) 1), new ByteArray(new byte[10]));
+    map.put(new ByteArray((byte) 2), new ByteArray(new byte[1000]));
+
+    GuanacoOptions options = new GuanacoOptions().setValueThreshold(64);
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      engine.bulkLoad(map.entrySet().iterator());
+
+      assertFalse(engine.getIndex().get(new ByteArray((byte) 1)) instanceof ValuePointer);
+      assertTrue(engine.getIndex().get(new ByteArray((byte) 2)) instanceof ValuePointer);
+    }
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      for (ByteArray key : map.keySet()) {
+        assertEquals(map.get(key), engine.get(key));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBulkLoadUnsorted() throws IOException {
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      try (BulkLoader loader = engine.bulkLoader()) {
+        loader.add(new ByteArray((byte) 2), new ByteArray((byte) 2));
+        loader.add(new ByteArray((byte) 1), new ByteArray((byte) 1));
+      }
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testBulkLoadNotEmpty() throws IOException {
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      engine.put(new ByteArray((byte) 1), new ByteArray((byte) 1));
+      engine.bulkLoader();
+    }
+  }
+
+  @Test
+  public void testDeleteReclaim() throws IOException {
+    ByteArray key1 = new ByteArray((byte) 1);
+    ByteArray key2 = new ByteArray((byte) 2);
+    ByteArray value1 = new ByteArray((byte) 1);
+    ByteArray value2 = new ByteArray((byte) 2);
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      // A key which never reached the disk leaves nothing behind
+      engine.put(key1, value1);
+      engine.delete(key1);
+      engine.flush();
+      assertEquals(StorageManager.HEADER_SIZE, file.length());
+      assertEquals(0, countPages(engine));
+
+      // A flushed key is reclaimed once its tombstone is durable
+      engine.put(key1, value1);
+      engine.put(key2, value1);
+      engine.flush();
+      engine.delete(key1);
+      engine.flush();
+      assertNull(engine.get(key1));
+      assertEquals(value1, engine.get(key2));
+      assertEquals(1, countPages(engine));
+
+      // We can put the key again
+      engine.put(key1, value2);
+      assertEquals(value2, engine.get(key1));
+      engine.delete(key2);
+    }
+
+    // Reopen database, recovery must skip the deleted key
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(value2, engine.get(key1));
+      assertNull(engine.get(key2));
+      assertEquals(1, countPages(engine));
+    }
+  }
+
+  @Test
+  public void testWriteAheadLog() throws IOException {
+    Random random = new Random();
+    Map<ByteArray, ByteArray> map = new HashMap<>();
+
+    GuanacoOptions options = new GuanacoOptions().setSyncWrites(true);
+    GuanacoStorageEngine crashed = GuanacoStorageEngine.createDatabase(file, options);
+    for (int i = 0; i < 100; ++i) {
+      byte[] keyBytes = new byte[16];
+      random.nextBytes(keyBytes);
+      ByteArray key = new ByteArray(keyBytes);
+
+      byte[] valueBytes = new byte[32];
+      random.nextBytes(valueBytes);
+      ByteArray value = new ByteArray(valueBytes);
+
+      crashed.put(key, value);
+      map.put(key, value);
+    }
+    crashed.flush();
+
+    // These writes are only in the log
+    ByteArray deleted = map.keySet().iterator().next();
+    crashed.delete(deleted);
+    map.remove(deleted);
+    ByteArray modified = map.keySet().iterator().next();
+    crashed.put(modified, new ByteArray((byte) 1));
+    map.put(modified, new ByteArray((byte) 1));
+    ByteArray inserted = new ByteArray((byte) 2);
+    crashed.put(inserted, new ByteArray((byte) 2));
+    map.put(inserted, new ByteArray((byte) 2));
+
+    assertTrue(WriteAheadLog.getFile(file).length() > 0);
+
+    // Reopen database without closing it, the log must be replayed
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      for (Map.Entry<ByteArray, ByteArray> entry : map.entrySet()) {
+        assertEquals(entry.getValue(), engine.get(entry.getKey()));
+      }
+      assertNull(engine.get(deleted));
+
+      // The replayed writes are in the pages now
+      assertEquals(0, WriteAheadLog.getFile(file).length());
+    }
+    assertFalse(WriteAheadLog.getFile(file).exists());
+  }
+
+  @Test
+  public void testStream() throws IOException {
+    Random random = new Random();
+
+    ByteArray key = new ByteArray((byte) 1);
+    byte[] bytes = new byte[3 << 20];
+    random.nextBytes(bytes);
+    ByteArray value = new ByteArray(bytes);
+
+    GuanacoStorageEngine crashed = GuanacoStorageEngine.createDatabase(file);
+    crashed.putStream(key, new ByteArrayInputStream(bytes));
+    crashed.put(new ByteArray((byte) 2), new ByteArray((byte) 2));
+    assertEquals(value, crashed.get(key));
+
+    // Reopen database without closing it, the log refers to the value
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(value, engine.get(key));
+    }
+
+    // Reopen database, the page refers to the value
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      try (ValueChannel channel = (ValueChannel) engine.getStream(key)) {
+        assertEquals(bytes.length, channel.remaining());
+        assertEquals(bytes.length, channel.transferTo(Channels.newChannel(output)));
+      }
+      assertArrayEquals(bytes, output.toByteArray());
+
+      // Small values are streamed from memory
+      ByteBuffer buffer = ByteBuffer.allocate(2);
+      try (ReadableByteChannel channel = engine.getStream(new ByteArray((byte) 2))) {
+        assertEquals(1, channel.read(buffer));
+        assertEquals(-1, channel.read(buffer));
+      }
+      assertNull(engine.getStream(new ByteArray((byte) 3)));
+
+      Map<ByteArray, ByteArray> entries = new HashMap<>();
+      try (StorageIterator iterator = engine.iterator()) {
+        while (iterator.hasNext()) {
+          Map.Entry<ByteArray, ByteArray> entry = iterator.next();
+          entries.put(entry.getKey(), entry.getValue());
+        }
+      }
+      assertEquals(value, entries.get(key));
+
+      engine.put(key, new ByteArray((byte) 3));
+      assertEquals(new ByteArray((byte) 3), engine.get(key));
+    }
+  }
+
+  @Test
+  public void testValueLogCollection() throws IOException {
+    GuanacoOptions options = new GuanacoOptions()
+        .setValueThreshold(64)
+        .setValueLogSegmentSize(4096)
+        .setValueLogGarbageRatio(0.5);
+    Random random = new Random();
+
+    Map<ByteArray, ByteArray> map = new HashMap<>();
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      // Lets overwrite the same keys until several segments are sealed
+      for (int i = 0; i < 200; ++i) {
+        ByteArray key = new ByteArray((byte) (i % 10));
+        byte[] bytes = new byte[256];
+        random.nextBytes(bytes);
+        ByteArray value = new ByteArray(bytes);
+
+        engine.put(key, value);
+        map.put(key, value);
+      }
+      engine.put(new ByteArray((byte) 100), new ByteArray((byte) 100));
+      map.put(new ByteArray((byte) 100), new ByteArray((byte) 100));
+      assertTrue(ValueLog.getFile(file, 0).exists());
+
+      engine.collectValueLog();
+
+      // The first segments held only overwritten values
+      assertFalse(ValueLog.getFile(file, 0).exists());
+      for (Map.Entry<ByteArray, ByteArray> entry : map.entrySet()) {
+        assertEquals(entry.getValue(), engine.get(entry.getKey()));
+      }
+
+      engine.delete(new ByteArray((byte) 0));
+      map.remove(new ByteArray((byte) 0));
+    }
+
+    // Reopen database
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      engine.collectValueLog();
+      for (Map.Entry<ByteArray, ByteArray> entry : map.entrySet()) {
+        assertEquals(entry.getValue(), engine.get(entry.getKey()));
+      }
+      assertNull(engine.get(new ByteArray((byte) 0)));
+    }
+  }
+
+  @Test
+  public void testValueLogCollectionWithReader() throws IOException {
+    GuanacoOptions options = new GuanacoOptions()
+        .setValueThreshold(64)
+        .setValueLogSegmentSize(4096)
+        .setValueLogGarbageRatio(0.5);
+    Random random = new Random();
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      ByteArray key = new ByteArray((byte) 0);
+      byte[] bytes = new byte[256];
+      random.nextBytes(bytes);
+      engine.put(key, new ByteArray(bytes));
+
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      try (ValueChannel channel = (ValueChannel) engine.getStream(key)) {
+        // Lets overwrite every value, so the first segment is garbage and collected while we read from it
+        for (int i = 0; i < 50; ++i) {
+          byte[] other = new byte[256];
+          random.nextBytes(other);
+          engine.put(new ByteArray((byte) (i % 10)), new ByteArray(other));
+        }
+        engine.collectValueLog();
+        assertTrue(ValueLog.getFile(file, 0).exists());
+
+        assertEquals(bytes.length, channel.transferTo(Channels.newChannel(output)));
+      }
+      assertArrayEquals(bytes, output.toByteArray());
+
+      // The last reader is gone, so is the segment
+      assertFalse(ValueLog.getFile(file, 0).exists());
+    }
+  }
+
+  @Test
+  public void testValueLogThrottledCopy() throws Exception {
+    final IoScheduler scheduler = new IoScheduler(0, 128 << 10, 0);
+    try (final ValueLog valueLog = new ValueLog(file, 1 << 20, scheduler)) {
+      final ByteArray key = new ByteArray((byte) 1);
+      final ByteArray value = new ByteArray(new byte[128 << 10]);
+      final ValuePointer pointer = valueLog.append(key, value);
+
+      // The first copy empties the bucket, the second one waits for about a second
+      final CountDownLatch copied = new CountDownLatch(1);
+      final AtomicReference<Exception> failure = new AtomicReference<>();
+      Thread collector = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          IoScheduler.IoClass previous = scheduler.enter(IoScheduler.IoClass.COMPACTION);
+          try {
+            valueLog.copy(key, pointer);
+            copied.countDown();
+            valueLog.copy(key, pointer);
+          } catch (IOException e) {
+            failure.set(e);
+          } finally {
+            scheduler.exit(previous);
+          }
+        }
+      });
+      collector.start();
+      copied.await();
+      Thread.sleep(100);
+
+      // Foreground reads don't wait for the throttled copy
+      long start = System.nanoTime();
+      assertEquals(value, valueLog.get(pointer));
+      assertTrue(valueLog.contains(pointer.getSegment()));
+      valueLog.getSealedSegments();
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+      collector.join();
+      assertNull(failure.get());
+    }
+  }
+
+  @Test
+  public void testHotColdValueLog() throws IOException {
+    GuanacoOptions options = new GuanacoOptions()
+        .setValueThreshold(64)
+        .setValueLogSegmentSize(4096)
+        .setHotUpdateThreshold(2);
+    Random random = new Random();
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      // Lets write some keys once and update others over and over
+      Map<ByteArray, ByteArray> cold = new HashMap<>();
+      for (int i = 0; i < 30; ++i) {
+        byte[] bytes = new byte[256];
+        random.nextBytes(bytes);
+        engine.put(new ByteArray((byte) i), new ByteArray(bytes));
+        cold.put(new ByteArray((byte) i), engine.getIndex().get(new ByteArray((byte) i)));
+      }
+
+      int firstHotSegment = -1;
+      for (int i = 0; i < 50; ++i) {
+        for (int j = 100; j < 105; ++j) {
+          byte[] bytes = new byte[256];
+          random.nextBytes(bytes);
+          engine.put(new ByteArray((byte) j), new ByteArray(bytes));
+        }
+        if (i == 5) {
+          firstHotSegment = ((ValuePointer) engine.getIndex().get(new ByteArray((byte) 100))).getSegment();
+        }
+      }
+
+      // Hot values don't share segments with cold ones
+      for (ByteArray pointer : cold.values()) {
+        assertTrue(((ValuePointer) pointer).getSegment() < firstHotSegment);
+      }
+
+      // The hot segments are collected and the cold values stay where they are
+      engine.collectValueLog();
+      assertFalse(ValueLog.getFile(file, firstHotSegment).exists());
+      for (Map.Entry<ByteArray, ByteArray> entry : cold.entrySet()) {
+        assertEquals(entry.getValue(), engine.getIndex().get(entry.getKey()));
+      }
+    }
+  }
+
+  @Test
+  public void testValueLogFailedAppend() throws IOException {
+    try (ValueLog valueLog = new ValueLog(file, 1 << 20)) {
+      ValuePointer first = valueLog.append(new ByteArray((byte) 1), new ByteArray(new byte[100]));
+
+      // The source fails after it has delivered some of the value
+      final ReadableByteChannel failing = Channels.newChannel(new ByteArrayInputStream(new byte[50]));
+      ReadableByteChannel source = new ReadableByteChannel() {
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+          int read = failing.read(dst);
+          if (read < 0) {
+            throw new IOException("Source failed");
+          }
+          return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+          return true;
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+      try {
+        valueLog.append(new ByteArray((byte) 2), source);
+        fail();
+      } catch (IOException e) {
+        // Expected
+      }
+
+      // The failed entry is gone, so the entries behind it stay readable
+      ValuePointer second = valueLog.append(new ByteArray((byte) 3), new ByteArray(new byte[10]));
+      List<Map.Entry<ByteArray, ValuePointer>> entries = valueLog.getEntries(first.getSegment());
+      assertEquals(2, entries.size());
+      assertEquals(new ByteArray((byte) 1), entries.get(0).getKey());
+      assertEquals(new ByteArray((byte) 3), entries.get(1).getKey());
+      assertEquals(second.getOffset(), entries.get(1).getValue().getOffset());
+    }
+  }
+
+  @Test
+  public void testValueLogSlowStream() throws Exception {
+    try (final ValueLog valueLog = new ValueLog(file, 1 << 20)) {
+      // The source stalls after the first chunk until it is released
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch released = new CountDownLatch(1);
+      final ReadableByteChannel source = new ReadableByteChannel() {
+        private int chunks = 0;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+          if (chunks == 2) {
+            return -1;
+          }
+          if (chunks++ == 1) {
+            started.countDown();
+            try {
+              released.await();
+            } catch (InterruptedException e) {
+              throw new InterruptedIOException();
+            }
+          }
+          dst.put((byte) chunks);
+          return 1;
+        }
+
+        @Override
+        public boolean isOpen() {
+          return true;
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+
+      final AtomicReference<ValuePointer> streamed = new AtomicReference<>();
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            streamed.set(valueLog.append(new ByteArray((byte) 1), source));
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      });
+      writer.start();
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+
+      // Other appends don't wait for the stalled stream
+      ValuePointer pointer = valueLog.append(new ByteArray((byte) 2), new ByteArray(new byte[10]));
+      assertEquals(new ByteArray(new byte[10]), valueLog.get(pointer));
+
+      released.countDown();
+      writer.join();
+      assertNull(failure.get());
+      assertEquals(new ByteArray(new byte[]{1, 2}), valueLog.get(streamed.get()));
+    }
+  }
+
+  @Test
+  public void testValueLogReopen() throws IOException {
+    ValuePointer hot;
+    ValuePointer cold;
+    try (ValueLog valueLog = new ValueLog(file, 1 << 20)) {
+      hot = valueLog.append(new ByteArray((byte) 1), new ByteArray(new byte[100]), true);
+      cold = valueLog.append(new ByteArray((byte) 2), new ByteArray(new byte[100]), false);
+    }
+
+    // A crash while the value of an entry was written, its size is still missing
+    try (RandomAccessFile segment = new RandomAccessFile(ValueLog.getFile(file, hot.getSegment()), "rw")) {
+      segment.seek(segment.length());
+      segment.writeInt(1);
+      segment.writeByte(3);
+      segment.writeLong(-1);
+      segment.write(new byte[50]);
+    }
+
+    try (ValueLog valueLog = new ValueLog(file, 1 << 20)) {
+      // Both segments are continued, the torn entry is gone
+      assertTrue(valueLog.getSealedSegments().isEmpty());
+      ValuePointer second = valueLog.append(new ByteArray((byte) 4), new ByteArray(new byte[10]), true);
+      assertEquals(hot.getSegment(), second.getSegment());
+      ValuePointer third = valueLog.append(new ByteArray((byte) 5), new ByteArray(new byte[10]));
+      assertEquals(cold.getSegment(), third.getSegment());
+
+      List<Map.Entry<ByteArray, ValuePointer>> entries = valueLog.getEntries(hot.getSegment());
+      assertEquals(2, entries.size());
+      assertEquals(new ByteArray((byte) 1), entries.get(0).getKey());
+      assertEquals(new ByteArray((byte) 4), entries.get(1).getKey());
+      assertEquals(second.getOffset(), entries.get(1).getValue().getOffset());
+    }
+  }
+
+  @Test
+  public void testSlowOperationLog() throws IOException {
+    try (SlowOperationLog slowOperationLog = new SlowOperationLog(1)) {
+      OperationTrace trace = slowOperationLog.begin();
+      assertNotNull(trace);
+
+      // Operations don't nest
+      assertNull(slowOperationLog.begin());
+
+      OperationTrace.Phase previous = OperationTrace.enter(OperationTrace.Phase.DISK_READ);
+      OperationTrace.read(0, 10);
+      OperationTrace.read(10, 10);
+      OperationTrace.read(100, 5);
+      OperationTrace.exit(previous);
+      slowOperationLog.end(trace, "get");
+
+      assertEquals(25, trace.getBytesRead());
+      assertEquals(2, trace.getSeeks());
+      assertTrue(trace.getTime(OperationTrace.Phase.DISK_READ) > 0);
+    }
+
+    // Tracing must not change the results
+    GuanacoOptions options = new GuanacoOptions().setSlowOperationThreshold(1);
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      engine.put(new ByteArray((byte) 1), new ByteArray((byte) 1));
+      assertEquals(new ByteArray((byte) 1), engine.get(new ByteArray((byte) 1)));
+      engine.delete(new ByteArray((byte) 1));
+      assertNull(engine.get(new ByteArray((byte) 1)));
+    }
+  }
+
+  @Test
+  public void testIoScheduler() throws IOException {
+    IoScheduler scheduler = new IoScheduler(0, 1 << 20, 1000);
+
+    // Foreground I/O is never throttled
+    long start = System.nanoTime();
+    scheduler.acquire(16 << 20);
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+
+    IoScheduler.IoClass previous = scheduler.enter(IoScheduler.IoClass.COMPACTION);
+    try {
+      // The bucket starts full, the next 256 KB have to wait for a quarter of a second
+      scheduler.acquire(1 << 20);
+      start = System.nanoTime();
+      scheduler.acquire(256 << 10);
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+
+      // Slow foreground reads halve the background rate
+      for (int i = 0; i < 20; ++i) {
+        scheduler.completeRead(TimeUnit.MILLISECONDS.toNanos(10));
+      }
+      scheduler.acquire(0);
+      assertEquals(0.5, scheduler.getFactor(), 0.0);
+    } finally {
+      scheduler.exit(previous);
+    }
+    assertTrue(scheduler.isForeground());
+  }
+
+  @Test
+  public void testGetBuffer() throws IOException {
+    GuanacoOptions options = new GuanacoOptions().setValueThreshold(64).setHotPageCount(0);
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      for (int i = 0; i < 100; ++i) {
+        engine.put(new ByteArray((byte) i), new ByteArray((byte) i, (byte) (i + 1)));
+      }
+      engine.put(new ByteArray((byte) 100), new ByteArray(new byte[128]));
+      engine.delete(new ByteArray((byte) 99));
+    }
+
+    // Reopen database
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      for (int i = 0; i < 99; ++i) {
+        ByteBuffer buffer = engine.getBuffer(new ByteArray((byte) i));
+        assertTrue(buffer.isReadOnly());
+        assertTrue(buffer.isDirect());
+        assertEquals(ByteBuffer.wrap(new byte[]{(byte) i, (byte) (i + 1)}), buffer);
+      }
+      assertNull(engine.getBuffer(new ByteArray((byte) 99)));
+      assertNull(engine.getBuffer(new ByteArray((byte) 101)));
+      assertEquals(128, engine.getBuffer(new ByteArray((byte) 100)).remaining());
+
+      // Mapped reads don't load pages
+      assertEquals(0, countInMemoryPages(engine));
+
+      // A view is a snapshot of the value
+      ByteBuffer buffer = engine.getBuffer(new ByteArray((byte) 1));
+      engine.put(new ByteArray((byte) 1), new ByteArray((byte) 42));
+      assertEquals(ByteBuffer.wrap(new byte[]{1, 2}), buffer);
+      assertEquals(ByteBuffer.wrap(new byte[]{42}), engine.getBuffer(new ByteArray((byte) 1)));
+      assertTrue(engine.getBuffer(new ByteArray((byte) 1)).isReadOnly());
+    }
+  }
+
+  private long getValueLogSize() {
+    long size = 0;
+    for (int segment = 0; ValueLog.getFile(file, segment).exists(); ++segment) {
+      size += ValueLog.getFile(file, segment).length();
+    }
+
+    return size;
+  }
+
+  @Test
+  public void testConditionalOperations() throws Exception {
+    GuanacoOptions options = new GuanacoOptions().setValueThreshold(64);
+    ByteArray key = new ByteArray((byte) 1);
+    ByteArray large = new ByteArray(new byte[128]);
+
+    GuanacoStorageEngine crashed = GuanacoStorageEngine.createDatabase(file, options);
+    assertTrue(crashed.putIfAbsent(key, new ByteArray((byte) 1)));
+    assertFalse(crashed.putIfAbsent(key, new ByteArray((byte) 2)));
+    assertEquals(new ByteArray((byte) 1), crashed.get(key));
+
+    assertFalse(crashed.replace(key, new ByteArray((byte) 2), new ByteArray((byte) 3)));
+    assertTrue(crashed.replace(key, new ByteArray((byte) 1), large));
+
+    // A failed replace leaves no garbage behind in the value log
+    long valueLogSize = getValueLogSize();
+    assertFalse(crashed.replace(key, new ByteArray((byte) 1), large));
+    assertEquals(valueLogSize, getValueLogSize());
+
+    // The expected value is compared with the content of the value log
+    assertTrue(crashed.replace(key, large, new ByteArray((byte) 4)));
+    assertFalse(crashed.replace(new ByteArray((byte) 2), new ByteArray((byte) 4), new ByteArray((byte) 5)));
+
+    assertEquals(new ByteArray((byte) 4), crashed.getAndDelete(key));
+    assertNull(crashed.getAndDelete(key));
+    assertTrue(crashed.putIfAbsent(key, new ByteArray((byte) 6)));
+
+    // Reopen database without closing it, the log holds the conditional writes
+    try (final GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      assertEquals(new ByteArray((byte) 6), engine.get(key));
+
+      // Only one of the racing writers wins every key
+      final AtomicInteger wins = new AtomicInteger();
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      List<Thread> writers = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        Thread writer = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < 1000; ++j) {
+                if (engine.putIfAbsent(new ByteArray((byte) 2, (byte) j, (byte) (j >> 8)), new ByteArray((byte) j))) {
+                  wins.incrementAndGet();
+                }
+              }
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        });
+        writers.add(writer);
+        writer.start();
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      assertNull(failure.get());
+      assertEquals(1000, wins.get());
+    }
+  }
+
+  @Test
+  public void testMergeOperator() throws Exception {
+    GuanacoOptions options = new GuanacoOptions().setValueThreshold(64).setMergeOperator(newCounterOperator());
+    final ByteArray key = new ByteArray((byte) 1);
+    ByteArray large = new ByteArray((byte) 2);
+    ByteArray deleted = new ByteArray((byte) 3);
+
+    GuanacoStorageEngine crashed = GuanacoStorageEngine.createDatabase(file, options);
+    crashed.put(key, toCounter(10));
+    crashed.merge(key, toCounter(5));
+    try (Snapshot snapshot = crashed.snapshot()) {
+      for (int i = 0; i < 100; ++i) {
+        crashed.merge(key, toCounter(1));
+      }
+      assertEquals(toCounter(10 + 5), crashed.get(key, snapshot));
+      assertEquals(toCounter(10 + 5 + 100), crashed.get(key));
+    }
+    crashed.flush();
+
+    // A value in the value log is folded by the engine
+    crashed.put(large, new ByteArray(new byte[128]));
+    crashed.merge(large, toCounter(7));
+    assertEquals(toCounter(7), crashed.get(large));
+
+    crashed.merge(deleted, toCounter(1));
+    crashed.delete(deleted);
+    crashed.merge(deleted, toCounter(2));
+    crashed.merge(key, toCounter(-15));
+
+    // Reopen database without closing it, the log holds the operands
+    try (final GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      assertEquals(toCounter(100), engine.get(key));
+      assertEquals(toCounter(7), engine.get(large));
+      assertEquals(toCounter(2), engine.get(deleted));
+
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      List<Thread> writers = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        Thread writer = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < 1000; ++j) {
+                engine.merge(key, toCounter(1));
+              }
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        });
+        writers.add(writer);
+        writer.start();
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      assertNull(failure.get());
+      assertEquals(toCounter(4100), engine.get(key));
+    }
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      assertEquals(toCounter(4100), engine.get(key));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testMergeWithoutOperator() throws IOException {
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      engine.merge(new ByteArray((byte) 1), new ByteArray((byte) 1));
+    }
+  }
+
+  @Test
+  public void testReplayFlushedLog() throws IOException {
+    GuanacoOptions options = new GuanacoOptions().setValueThreshold(64).setMergeOperator(newCounterOperator());
+    ByteArray key = new ByteArray((byte) 1);
+    ByteArray large = new ByteArray((byte) 2);
+    ByteArray largeValue = new ByteArray(new byte[128]);
+    File log = WriteAheadLog.getFile(file);
+    File oldLog = new File(log.getPath() + ".old");
+
+    GuanacoStorageEngine crashed = GuanacoStorageEngine.createDatabase(file, options);
+    crashed.put(key, toCounter(10));
+    crashed.put(large, toCounter(1));
+    crashed.flush();
+    crashed.merge(key, toCounter(5));
+    crashed.merge(large, toCounter(2));
+    crashed.put(large, largeValue);
+    crashed.merge(key, toCounter(1));
+    byte[] flushedLog = Files.readAllBytes(log.toPath());
+
+    // Crash after the pages are flushed, but before the old log is deleted. Replaying the operands again on top of
+    // the pages would count them twice and fold the operand of the large key into a value in the value log.
+    crashed.flush();
+    crashed.merge(key, toCounter(100));
+    Files.write(oldLog.toPath(), flushedLog);
+    byte[] unflushedLog = Files.readAllBytes(log.toPath());
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      assertEquals(toCounter(116), engine.get(key));
+      assertEquals(largeValue, engine.get(large));
+    }
+
+    // Crash after the replayed writes are flushed, but before the log is truncated
+    Files.write(oldLog.toPath(), flushedLog);
+    Files.write(log.toPath(), unflushedLog);
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      assertEquals(toCounter(116), engine.get(key));
+      assertEquals(largeValue, engine.get(large));
+    }
+
+    // Without the merge operator the operands in the log can't be replayed
+    crashed = GuanacoStorageEngine.openDatabase(file, options);
+    crashed.merge(key, toCounter(1));
+    try {
+      GuanacoStorageEngine.openDatabase(file).close();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      assertEquals(toCounter(117), engine.get(key));
+    }
+  }
+
+  @Test
+  public void testRotateWithOldLog() throws IOException {
+    GuanacoOptions options = new GuanacoOptions().setMergeOperator(newCounterOperator());
+    ByteArray key = new ByteArray((byte) 1);
+    File logFile = WriteAheadLog.getFile(file);
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      engine.put(key, toCounter(10));
+    }
+
+    // A checkpoint has failed, so the next rotation finds the old log
+    WriteAheadLog log = new WriteAheadLog(file);
+    log.open();
+    log.appendMerge(key, toCounter(1), 100);
+    log.rotate();
+    log.appendMerge(key, toCounter(2), 101);
+    log.sync();
+    byte[] rotated = Files.readAllBytes(logFile.toPath());
+    log.rotate();
+    log.close();
+
+    // Crash before the appended log is deleted
+    Files.write(logFile.toPath(), rotated);
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      assertEquals(toCounter(13), engine.get(key));
+    }
+  }
+
+  @Test
+  public void testRecordFormat() throws IOException {
+    Map<ByteArray, ByteArray> map = new HashMap<>();
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      for (int i = 0; i < 100; ++i) {
+        ByteArray key = new ByteArray(ByteBuffer.allocate(4).putInt(i).array());
+        ByteArray value = new ByteArray(new byte[i * 10]);
+        engine.put(key, value);
+        map.put(key, value);
+      }
+      engine.delete(new ByteArray(ByteBuffer.allocate(4).putInt(0).array()));
+      map.remove(new ByteArray(ByteBuffer.allocate(4).putInt(0).array()));
+      engine.flush();
+    }
+
+    try (StorageManager storageManager = new StorageManager(file)) {
+      assertEquals(StorageManager.VERSION_3, storageManager.getVersion());
+
+      // Both directions decode the same records, and a small record costs a few bytes on top of its key and value
+      List<OnDiskRecord> backwards = new ArrayList<>();
+      StorageManager.RecordReader reader = storageManager.reader();
+      while (reader.hasNext()) {
+        OnDiskRecord record = reader.next();
+        backwards.add(0, record);
+        assertTrue(reader.getRecordSize() - record.getKey().length() - record.getValueLength() <= 8);
+      }
+
+      reader = storageManager.forwardReader(0, file.length());
+      for (OnDiskRecord record : backwards) {
+        assertTrue(reader.hasNext());
+        OnDiskRecord next = reader.next();
+        assertEquals(record.getKey(), next.getKey());
+        assertEquals(record.getSequence(), next.getSequence());
+        assertEquals(record.getPosition(), next.getPosition());
+        assertEquals(record.isTombstone(), next.isTombstone());
+      }
+      assertFalse(reader.hasNext());
+    }
+
+    // A record torn by a crash is dropped
+    long length = file.length();
+    try (RandomAccessFile db = new RandomAccessFile(file, "rw")) {
+      db.seek(length);
+      db.write(new byte[]{2, 1, 4, 100, 0, 0});
+    }
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(length, file.length());
+      for (Map.Entry<ByteArray, ByteArray> entry : map.entrySet()) {
+        assertEquals(entry.getValue(), engine.get(entry.getKey()));
+      }
+    }
+  }
+
+  @Test
+  public void testParallelFlush() throws IOException {
+    GuanacoOptions options = new GuanacoOptions().setFlushThreads(4);
+    Random random = new Random();
+
+    Map<ByteArray, ByteArray> map = new HashMap<>();
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      for (int i = 0; i < 3; ++i) {
+        for (int j = 0; j < 2000; ++j) {
+          ByteArray key = new ByteArray(ByteBuffer.allocate(4).putInt(j).array());
+          byte[] bytes = new byte[random.nextInt(200)];
+          random.nextBytes(bytes);
+          ByteArray value = new ByteArray(bytes);
+          engine.put(key, value);
+          map.put(key, value);
+        }
+        engine.flush();
+      }
+    }
+
+    // The ranges of the workers leave no holes
+    long length = file.length();
+    try (StorageManager storageManager = new StorageManager(file)) {
+      int count = 0;
+      StorageManager.RecordReader reader = storageManager.forwardReader(0, length);
+      while (reader.hasNext()) {
+        reader.next();
+        ++count;
+      }
+      assertEquals(3 * 2000, count);
+    }
+
+    // A crash during a flush may leave a hole before records of other workers, which are still in the log
+    try (RandomAccessFile db = new RandomAccessFile(file, "rw")) {
+      db.setLength(length + 100);
+      db.seek(length + 100);
+      db.write(new byte[]{1, 1, 1, 1, 1, 1, 6});
+    }
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      assertEquals(length, file.length());
+      for (Map.Entry<ByteArray, ByteArray> entry : map.entrySet()) {
+        assertEquals(entry.getValue(), engine.get(entry.getKey()));
+      }
+    }
+  }
+
+  @Test
+  public void testWriteFailure() throws Exception {
+    // The next write fails, but only once the gate is open
+    final AtomicBoolean isFailing = new AtomicBoolean(false);
+    final CountDownLatch reached = new CountDownLatch(1);
+    final CountDownLatch gate = new CountDownLatch(1);
+    try (final StorageManager storageManager = new StorageManager(file) {
+      @Override
+      void writeAt(ByteBuffer buffer, long position) throws IOException {
+        if (isFailing.compareAndSet(true, false)) {
+          reached.countDown();
+          try {
+            gate.await();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+          throw new IOException("Injected failure");
+        }
+        super.writeAt(buffer, position);
+      }
+    }) {
+      append(storageManager, 0);
+
+      // The failed range has a later one behind it, so it is padded
+      isFailing.set(true);
+      final AtomicReference<Exception> failure = new AtomicReference<>();
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            append(storageManager, 1);
+          } catch (IOException e) {
+            failure.set(e);
+          }
+        }
+      });
+      writer.start();
+      reached.await();
+      append(storageManager, 2);
+      assertTrue(storageManager.getWrittenLength() < storageManager.length());
+      gate.countDown();
+      writer.join();
+      assertNotNull(failure.get());
+      assertEquals(storageManager.length(), storageManager.getWrittenLength());
+
+      // The failed range is the last one, so the next write takes its place
+      isFailing.set(true);
+      try {
+        append(storageManager, 3);
+        fail();
+      } catch (IOException e) {
+        // Expected
+      }
+      assertEquals(storageManager.length(), storageManager.getWrittenLength());
+      append(storageManager, 4);
+      assertEquals(storageManager.length(), storageManager.getWrittenLength());
+
+      assertEquals(Arrays.asList(0, 2, 4), getSequences(storageManager.forwardReader(0, storageManager.length())));
+      assertEquals(Arrays.asList(4, 2, 0), getSequences(storageManager.reader()));
+    }
+
+    // The padding is no torn record, so recovery keeps everything
+    long length = file.length();
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(length, file.length());
+      for (int i = 0; i < 5; ++i) {
+        assertEquals(i % 2 == 0, engine.get(new ByteArray((byte) i)) != null);
+      }
+    }
+
+    // The analyzer counts the padding as part of the file
+    DatabaseAnalyzer analyzer = new DatabaseAnalyzer();
+    analyzer.analyze(file);
+    assertEquals(3, analyzer.getRecords());
+    assertTrue(analyzer.getPaddingBytes() > 0);
+    assertEquals(0, analyzer.getTornBytes());
+  }
+
+  @Test
+  public void testDatabaseAnalyzer() throws IOException {
+    // The file is only read, so an empty file doesn't get a header
+    assertTrue(file.createNewFile());
+    DatabaseAnalyzer analyzer = new DatabaseAnalyzer();
+    analyzer.analyze(file);
+    assertEquals(0, analyzer.getRecords());
+    assertEquals(0, file.length());
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file)) {
+      for (int i = 0; i < 10; ++i) {
+        engine.put(new ByteArray((byte) i), new ByteArray(new byte[10]));
+      }
+    }
+
+    // A crash has torn the last record
+    long length = file.length();
+    try (RandomAccessFile db = new RandomAccessFile(file, "rw")) {
+      db.seek(length);
+      db.write(new byte[]{1, 5, 1});
+    }
+
+    analyzer = new DatabaseAnalyzer();
+    analyzer.analyze(file);
+    assertEquals(10, analyzer.getLiveRecords());
+    assertEquals(3, analyzer.getTornBytes());
+    assertEquals(0, analyzer.getPaddingBytes());
+    assertEquals(length + 3, file.length());
+  }
+
+  private static void append(StorageManager storageManager, int sequence) throws IOException {
+    ByteArray key = new ByteArray((byte) sequence);
+    ByteArray value = new ByteArray(new byte[10]);
+    ByteBuffer buffer = ByteBuffer.allocate(storageManager.getPageRecordSize(key, value, sequence));
+    storageManager.encodePageRecord(buffer, Page.getDefaultPid(key), key, value, sequence);
+    buffer.flip();
+    storageManager.append(buffer);
+  }
+
+  private static List<Integer> getSequences(StorageManager.RecordReader reader) throws IOException {
+    List<Integer> sequences = new ArrayList<>();
+    while (reader.hasNext()) {
+      sequences.add((int) reader.next().getSequence());
+    }
+
+    return sequences;
+  }
+
+  @Test
+  public void testFlushOrder() throws IOException {
+    testFlushOrder(1);
+  }
+
+  @Test
+  public void testParallelFlushOrder() throws IOException {
+    // The batches are written by several threads, but the file is still sorted as a whole
+    testFlushOrder(4);
+  }
+
+  private void testFlushOrder(int flushThreads) throws IOException {
+    GuanacoOptions options = new GuanacoOptions()
+        .setFlushOrder(GuanacoOptions.FLUSH_BY_KEY)
+        .setFlushThreads(flushThreads);
+
+    List<ByteArray> keys = new ArrayList<>();
+    for (int i = 0; i < 500; ++i) {
+      keys.add(new ByteArray(ByteBuffer.allocate(4).putInt(i).array()));
+    }
+    Collections.shuffle(keys);
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file, options)) {
+      for (ByteArray key : keys) {
+        engine.put(key, key);
+      }
+      engine.flush();
+    }
+
+    // The pages were written in key order, not in the order of the writes
+    try (StorageManager storageManager = new StorageManager(file)) {
+      StorageManager.RecordReader reader = storageManager.forwardReader(0, file.length());
+      for (int i = 0; i < 500; ++i) {
+        assertTrue(reader.hasNext());
+        assertEquals(new ByteArray(ByteBuffer.allocate(4).putInt(i).array()), reader.next().getKey());
+      }
+      assertFalse(reader.hasNext());
+    }
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file, options)) {
+      for (ByteArray key : keys) {
+        assertEquals(key, engine.get(key));
+      }
+    }
+  }
+
+  @Test
+  public void testLegacyFormat() throws IOException {
+    ByteArray key1 = new ByteArray((byte) 1);
+    ByteArray key2 = new ByteArray((byte) 2);
+    ByteArray key3 = new ByteArray((byte) 3);
+    ByteArray value1 = new ByteArray((byte) 1);
+    ByteArray value2 = new ByteArray((byte) 2);
+
+    // The converter reads the original layout
+    writeLegacyDatabase(key1, key2, key3, value1, value2);
+    assertEquals(StorageManager.VERSION_1, StorageManager.getVersion(file));
+    try (StorageManager storageManager = new StorageManager(file)) {
+      try {
+        storageManager.append(ByteBuffer.allocate(1));
+        fail();
+      } catch (IOException e) {
+        // Version 1 files are read-only
+      }
+    }
+
+    assertTrue(FormatConverter.convert(file));
+    assertFalse(FormatConverter.convert(file));
+    assertEquals(StorageManager.VERSION_3, StorageManager.getVersion(file));
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(value2, engine.get(key1));
+      assertEquals(value1, engine.get(key2));
+      assertNull(engine.get(key3));
+      assertEquals(2, countPages(engine));
+    }
+
+    // The engine converts a file of the original layout when it opens it
+    assertTrue(file.delete());
+    writeLegacyDatabase(key1, key2, key3, value1, value2);
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(value2, engine.get(key1));
+      assertEquals(value1, engine.get(key2));
+      assertNull(engine.get(key3));
+      engine.put(key3, value2);
+      engine.delete(key2);
+    }
+    assertEquals(StorageManager.VERSION_3, StorageManager.getVersion(file));
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(value2, engine.get(key1));
+      assertNull(engine.get(key2));
+      assertEquals(value2, engine.get(key3));
+    }
+  }
+
+  /**
+   * Writes records like the original StorageManager did: value, value length, key, key length, pid and type.
+   */
+  private void writeLegacyDatabase(ByteArray key1, ByteArray key2, ByteArray key3, ByteArray value1, ByteArray value2)
+      throws IOException {
+    UUID pid1 = UUID.randomUUID();
+    UUID pid2 = UUID.randomUUID();
+    UUID pid3 = UUID.randomUUID();
+
+    try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file))) {
+      writeLegacyRecord(output, 1, pid1, key1, value1);
+      writeLegacyRecord(output, 1, pid2, key2, value1);
+      writeLegacyRecord(output, 3, pid1, key1, value2);
+      writeLegacyRecord(output, 2, pid3, key3, value1);
+      writeLegacyRecord(output, 4, pid3, key3, null);
+    }
+  }
+
+  private static void writeLegacyRecord(DataOutputStream output, int type, UUID pid, ByteArray key, ByteArray value)
+      throws IOException {
+    if (value != null) {
+      output.write(value.get());
+      output.writeInt(value.length());
+    }
+    output.write(key.get());
+    output.writeInt(key.length());
+    output.writeLong(pid.getMostSignificantBits());
+    output.writeLong(pid.getLeastSignificantBits());
+    output.writeByte(type);
+  }
+
+  @Test
+  public void testVersion2Format() throws IOException {
+    ByteArray key1 = new ByteArray((byte) 1);
+    ByteArray key2 = new ByteArray((byte) 2);
+    ByteArray value1 = new ByteArray((byte) 1);
+    ByteArray value2 = new ByteArray((byte) 2);
+
+    // Version 2 files have no synced length, their records start right after the version
+    try (StorageManager storageManager = new StorageManager(file, new IoScheduler(), StorageManager.VERSION_2)) {
+      assertFalse(storageManager.isParallelWritable());
+      ByteBuffer buffer = ByteBuffer.allocate(1024);
+      storageManager.encodePageRecord(buffer, Page.getDefaultPid(key1), key1, value1, 1);
+      storageManager.encodePageRecord(buffer, Page.getDefaultPid(key1), key1, value2, 2);
+      buffer.flip();
+      storageManager.append(buffer);
+    }
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(value2, engine.get(key1));
+      engine.put(key2, value1);
+      engine.flush();
+    }
+    try (StorageManager storageManager = new StorageManager(file)) {
+      assertEquals(StorageManager.VERSION_2, storageManager.getVersion());
+    }
+
+    assertTrue(FormatConverter.convert(file));
+    try (StorageManager storageManager = new StorageManager(file)) {
+      assertEquals(StorageManager.VERSION_3, storageManager.getVersion());
+      assertTrue(storageManager.isParallelWritable());
+    }
+
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.openDatabase(file)) {
+      assertEquals(value2, engine.get(key1));
+      assertEquals(value1, engine.get(key2));
+    }
+  }
+
+  /**
+   * Returns a MergeOperator which adds up 8 byte counters.
+   */
+  private static MergeOperator newCounterOperator() {
+    return new MergeOperator() {
+      @Override
+      public ByteArray merge(ByteArray key, ByteArray value, List<ByteArray> operands) {
+        long sum = value != null ? ByteBuffer.wrap(value.get()).getLong() : 0;
+        for (ByteArray operand : operands) {
+          sum += ByteBuffer.wrap(operand.get()).getLong();
+        }
+        return toCounter(sum);
+      }
+    };
+  }
+
+  private static ByteArray toCounter(long value) {
+    return new ByteArray(ByteBuffer.allocate(8).putLong(value).array());
+  }
+
+  private static int countInMemoryPages(GuanacoStorageEngine engine) {
+    int count = 0;
+
+    Iterator<Page> iterator = engine.getCacheManager().getPages();
+    while (iterator.hasNext()) {
+      if (iterator.next() instanceof InMemoryPage) {
+        ++count;
+      }
+    }
+
+    return count;
+  }
+
+  private static int countPages(GuanacoStorageEngine engine) {
+    int count = 0;
+
+    Iterator<Page> iterator = engine.getCacheManager().getPages();
+    while (iterator.hasNext()) {
+      iterator.next();
+      ++count;
+    }
+
+    return count;
+  }
+
 }
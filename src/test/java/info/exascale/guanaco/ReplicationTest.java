@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplicationTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReplicationTest.class);
+
+  private File primaryFile = new File("guanaco-primary.db");
+  private File followerFile = new File("guanaco-follower.db");
+
+  @Before
+  public void setUp() {
+    if (!delete()) {
+      LOG.error("Cannot delete database");
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (!delete()) {
+      LOG.error("Cannot cleanup database");
+    }
+  }
+
+  private boolean delete() {
+    boolean deleted = true;
+    for (File file : new File[]{primaryFile, followerFile}) {
+      try {
+        WriteAheadLog.delete(file);
+        ValueLog.delete(file);
+      } catch (IOException e) {
+        deleted = false;
+      }
+      for (File f : new File[]{file, CacheWarmer.getFile(file), ReplicationFollower.getFile(file)}) {
+        deleted &= !f.exists() || f.delete();
+      }
+    }
+    return deleted;
+  }
+
+  @Test
+  public void testReplication() throws Exception {
+    Random random = new Random();
+    Map<ByteArray, ByteArray> map = new HashMap<>();
+    GuanacoOptions options = new GuanacoOptions().setValueThreshold(64);
+
+    try (GuanacoStorageEngine primary = GuanacoStorageEngine.createDatabase(primaryFile, options);
+         ReplicationServer server = primary.replicationServer()) {
+      int port = server.listen(0);
+
+      for (int i = 0; i < 100; ++i) {
+        byte[] keyBytes = new byte[16];
+        random.nextBytes(keyBytes);
+        ByteArray key = new ByteArray(keyBytes);
+
+        // Some values go to the value log
+        byte[] valueBytes = new byte[i % 10 == 0 ? 128 : 32];
+        random.nextBytes(valueBytes);
+        ByteArray value = new ByteArray(valueBytes);
+
+        primary.put(key, value);
+        map.put(key, value);
+      }
+      primary.flush();
+
+      try (ReplicationFollower follower = ReplicationFollower.open(followerFile, options)) {
+        follower.connect("localhost", port);
+        assertTrue(follower.awaitOffset(server.getOffset(), 10000));
+        for (Map.Entry<ByteArray, ByteArray> entry : map.entrySet()) {
+          assertEquals(entry.getValue(), follower.get(entry.getKey()));
+        }
+
+        // New writes are shipped as soon as they are flushed
+        ByteArray deleted = map.keySet().iterator().next();
+        primary.delete(deleted);
+        map.remove(deleted);
+        ByteArray modified = map.keySet().iterator().next();
+        primary.put(modified, new ByteArray((byte) 1));
+        map.put(modified, new ByteArray((byte) 1));
+        primary.flush();
+
+        assertTrue(follower.awaitOffset(server.getOffset(), 10000));
+        assertNull(follower.get(deleted));
+        assertEquals(new ByteArray((byte) 1), follower.get(modified));
+      }
+
+      // These writes happen while the follower is down
+      ByteArray inserted = new ByteArray((byte) 2);
+      primary.put(inserted, new ByteArray((byte) 2));
+      map.put(inserted, new ByteArray((byte) 2));
+      primary.flush();
+
+      // The follower catches up from its stored offset
+      try (ReplicationFollower follower = ReplicationFollower.open(followerFile, options)) {
+        assertTrue(follower.getOffset() > 0);
+        follower.connect("localhost", port);
+        assertTrue(follower.awaitOffset(server.getOffset(), 10000));
+        for (Map.Entry<ByteArray, ByteArray> entry : map.entrySet()) {
+          assertEquals(entry.getValue(), follower.get(entry.getKey()));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testUnsyncedWrites() throws Exception {
+    try (GuanacoStorageEngine primary = GuanacoStorageEngine.createDatabase(primaryFile);
+         ReplicationServer server = primary.replicationServer()) {
+      primary.put(new ByteArray((byte) 1), new ByteArray((byte) 1));
+      primary.flush();
+      long offset = server.getOffset();
+
+      // Written but not synced, a crash of the primary might lose the record
+      primary.put(new ByteArray((byte) 2), new ByteArray((byte) 2));
+      primary.getCacheManager().flush(new SnapshotManager());
+      assertEquals(offset, server.getOffset());
+
+      primary.flush();
+      assertTrue(server.getOffset() > offset);
+
+      // Only offsets between records can be served
+      for (long invalid : new long[]{-1, 1, offset - 1, offset + 1, server.getOffset() + 1}) {
+        try {
+          server.serve(new ByteArrayInputStream(ByteBuffer.allocate(8).putLong(invalid).array()),
+              new ByteArrayOutputStream());
+          fail();
+        } catch (IOException e) {
+          // Expected
+        }
+      }
+    }
+  }
+
+}
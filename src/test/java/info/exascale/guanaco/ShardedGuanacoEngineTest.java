@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardedGuanacoEngineTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ShardedGuanacoEngineTest.class);
+
+  private static final int shards = 4;
+
+  private File file = new File("guanaco-sharded.db");
+
+  @Before
+  public void setUp() {
+    if (!delete()) {
+      LOG.error("Cannot delete database");
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (!delete()) {
+      LOG.error("Cannot cleanup database");
+    }
+  }
+
+  private boolean delete() {
+    boolean deleted = true;
+    for (int i = 0; i <= shards; ++i) {
+      File shardFile = ShardedGuanacoEngine.getShardFile(file, i);
+      try {
+        WriteAheadLog.delete(shardFile);
+        ValueLog.delete(shardFile);
+      } catch (IOException e) {
+        deleted = false;
+      }
+      for (File f : new File[]{shardFile, CacheWarmer.getFile(shardFile)}) {
+        deleted &= !f.exists() || f.delete();
+      }
+    }
+    return deleted;
+  }
+
+  @Test
+  public void testShardedEngine() throws Exception {
+    final Map<ByteArray, ByteArray> map = new ConcurrentHashMap<>();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    try (final ShardedGuanacoEngine engine = ShardedGuanacoEngine.createDatabase(file, shards)) {
+      List<Thread> writers = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        Thread writer = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Random random = new Random();
+            try {
+              for (int j = 0; j < 500; ++j) {
+                byte[] keyBytes = new byte[16];
+                random.nextBytes(keyBytes);
+                ByteArray key = new ByteArray(keyBytes);
+
+                byte[] valueBytes = new byte[32];
+                random.nextBytes(valueBytes);
+                ByteArray value = new ByteArray(valueBytes);
+
+                engine.put(key, value);
+                map.put(key, value);
+              }
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        });
+        writers.add(writer);
+        writer.start();
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      assertNull(failure.get());
+
+      ByteArray deleted = map.keySet().iterator().next();
+      engine.delete(deleted);
+      map.remove(deleted);
+      assertNull(engine.get(deleted));
+
+      engine.flush();
+    }
+
+    // Every shard got some keys
+    for (int i = 0; i < shards; ++i) {
+      assertTrue(ShardedGuanacoEngine.getShardFile(file, i).length() > 0);
+    }
+
+    // Reopen database
+    try (ShardedGuanacoEngine engine = ShardedGuanacoEngine.openDatabase(file, shards)) {
+      for (Map.Entry<ByteArray, ByteArray> entry : map.entrySet()) {
+        assertEquals(entry.getValue(), engine.get(entry.getKey()));
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testShardCountMismatch() throws IOException {
+    ShardedGuanacoEngine.createDatabase(file, shards).close();
+    ShardedGuanacoEngine.openDatabase(file, shards - 1).close();
+  }
+
+  @Test
+  public void testMissingShards() throws IOException {
+    ShardedGuanacoEngine.createDatabase(file, shards - 1).close();
+    try {
+      ShardedGuanacoEngine.openDatabase(file, shards).close();
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+
+    // The missing shard has not been created
+    assertFalse(ShardedGuanacoEngine.getShardFile(file, shards - 1).exists());
+  }
+
+  @Test
+  public void testRecreateWithFewerShards() throws IOException {
+    ShardedGuanacoEngine.createDatabase(file, shards).close();
+    ShardedGuanacoEngine.createDatabase(file, shards - 1).close();
+
+    // The shard of the former database has been deleted
+    assertFalse(ShardedGuanacoEngine.getShardFile(file, shards - 1).exists());
+    ShardedGuanacoEngine.openDatabase(file, shards - 1).close();
+  }
+
+}
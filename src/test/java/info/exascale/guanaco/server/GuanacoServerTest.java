@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco.server;
+
+import com.google.common.base.Charsets;
+import info.exascale.guanaco.ByteArray;
+import info.exascale.guanaco.CacheWarmer;
+import info.exascale.guanaco.GuanacoStorageEngine;
+import info.exascale.guanaco.ValueLog;
+import info.exascale.guanaco.WriteAheadLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class GuanacoServerTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GuanacoServerTest.class);
+
+  private File file = new File("guanaco-server.db");
+
+  @Before
+  public void setUp() {
+    if (!delete()) {
+      LOG.error("Cannot delete database");
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (!delete()) {
+      LOG.error("Cannot cleanup database");
+    }
+  }
+
+  private boolean delete() {
+    try {
+      WriteAheadLog.delete(file);
+      ValueLog.delete(file);
+    } catch (IOException e) {
+      return false;
+    }
+    boolean deleted = true;
+    for (File f : new File[]{file, CacheWarmer.getFile(file)}) {
+      deleted &= !f.exists() || f.delete();
+    }
+    return deleted;
+  }
+
+  @Test
+  public void testPipeline() throws IOException {
+    try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase(file);
+         GuanacoServer server = new GuanacoServer(engine)) {
+      int port = server.listen(0);
+
+      try (Socket socket = new Socket("localhost", port)) {
+        OutputStream out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+
+        // The whole pipeline goes out in a single write
+        ByteArrayOutputStream pipeline = new ByteArrayOutputStream();
+        encode(pipeline, "SET", "a", "1");
+        encode(pipeline, "SET", "b", "2");
+        encode(pipeline, "GET", "a");
+        encode(pipeline, "DEL", "a", "c");
+        encode(pipeline, "GET", "a");
+        encode(pipeline, "SET", "a");
+        encode(pipeline, "PING");
+        out.write(pipeline.toByteArray());
+        out.flush();
+
+        assertEquals("+OK", readLine(in));
+        assertEquals("+OK", readLine(in));
+        assertEquals("$1", readLine(in));
+        assertEquals("1", readLine(in));
+        assertEquals(":1", readLine(in));
+        assertEquals("$-1", readLine(in));
+        assertEquals("-ERR wrong number of arguments for 'set' command", readLine(in));
+        assertEquals("+PONG", readLine(in));
+
+        assertNull(engine.get(bytes("a")));
+        assertEquals(bytes("2"), engine.get(bytes("b")));
+
+        // Scan all keys in pages of 10
+        for (int i = 0; i < 25; ++i) {
+          engine.put(bytes("key" + i), new ByteArray((byte) i));
+        }
+        Set<String> keys = new HashSet<>();
+        String cursor = "0";
+        do {
+          pipeline.reset();
+          encode(pipeline, "SCAN", cursor, "COUNT", "10");
+          out.write(pipeline.toByteArray());
+          out.flush();
+
+          assertEquals("*2", readLine(in));
+          readLine(in);
+          cursor = readLine(in);
+          int count = Integer.parseInt(readLine(in).substring(1));
+          for (int i = 0; i < count; ++i) {
+            readLine(in);
+            keys.add(readLine(in));
+          }
+        } while (!cursor.equals("0"));
+        assertEquals(26, keys.size());
+
+        pipeline.reset();
+        encode(pipeline, "QUIT");
+        out.write(pipeline.toByteArray());
+        out.flush();
+        assertEquals("+OK", readLine(in));
+        assertEquals(-1, in.read());
+      }
+    }
+  }
+
+  private static ByteArray bytes(String s) {
+    return new ByteArray(s.getBytes(Charsets.US_ASCII));
+  }
+
+  private static void encode(ByteArrayOutputStream out, String... arguments) throws IOException {
+    out.write(("*" + arguments.length + "\r\n").getBytes(Charsets.US_ASCII));
+    for (String argument : arguments) {
+      byte[] bytes = argument.getBytes(Charsets.US_ASCII);
+      out.write(("$" + bytes.length + "\r\n").getBytes(Charsets.US_ASCII));
+      out.write(bytes);
+      out.write("\r\n".getBytes(Charsets.US_ASCII));
+    }
+  }
+
+  private static String readLine(DataInputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\r') {
+      if (b < 0) {
+        throw new IOException("Unexpected end of stream");
+      }
+      line.append((char) b);
+    }
+    if (in.read() != '\n') {
+      throw new IOException("Missing line feed");
+    }
+
+    return line.toString();
+  }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco.testing;
+
+import info.exascale.guanaco.ByteArray;
+import info.exascale.guanaco.GuanacoStorageEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the bytes allocated per operation on the hot path. A steady-state update of an existing key and a read
+ * of an in-memory key should allocate nothing.
+ */
+public class AllocationTesting {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AllocationTesting.class);
+
+  private static final int keyCount = 10000;
+  private static final int operations = 1000000;
+
+  public static void main(String[] args) {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      LOG.error("Allocation counters are not supported by this JVM");
+      return;
+    }
+    com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    long threadId = Thread.currentThread().getId();
+
+    try (GuanacoStorageEngine db = GuanacoStorageEngine.createDatabase()) {
+      Random random = new Random();
+
+      List<ByteArray> keys = new ArrayList<>();
+      List<ByteArray> values = new ArrayList<>();
+      for (int i = 0; i < keyCount; ++i) {
+        byte[] keyBytes = new byte[16];
+        random.nextBytes(keyBytes);
+        keys.add(new ByteArray(keyBytes));
+
+        byte[] valueBytes = new byte[256];
+        random.nextBytes(valueBytes);
+        values.add(new ByteArray(valueBytes));
+      }
+
+      // Lets warm up, so pages, deltas and buffers exist and the JIT has compiled the hot path
+      for (int i = 0; i < keyCount; ++i) {
+        db.put(keys.get(i), values.get(i));
+      }
+      for (int i = 0; i < operations; ++i) {
+        db.put(keys.get(i % keyCount), values.get((i + 1) % keyCount));
+        db.get(keys.get(i % keyCount));
+      }
+
+      long before = threadBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < operations; ++i) {
+        db.put(keys.get(i % keyCount), values.get((i + 1) % keyCount));
+      }
+      long putBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+      before = threadBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < operations; ++i) {
+        db.get(keys.get(i % keyCount));
+      }
+      long getBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+      LOG.info(String.format(
+          "Put: %.2f bytes/operation%nGet: %.2f bytes/operation%n",
+          (double) putBytes / operations,
+          (double) getBytes / operations
+      ));
+    } catch (IOException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+    }
+  }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013-2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.exascale.guanaco.testing;
+
+import com.google.common.base.Charsets;
+import info.exascale.guanaco.GuanacoStorageEngine;
+import info.exascale.guanaco.server.GuanacoServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the throughput of a GuanacoServer. Every connection sends pipelines of SETs followed by pipelines of
+ * GETs and waits for the replies of a pipeline before sending the next one. Without a host an embedded server is
+ * started on a temporary database.
+ * <p>
+ * Usage: ServerBenchmark [connections] [pipeline depth] [host port]
+ */
+public class ServerBenchmark {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ServerBenchmark.class);
+
+  private static final int keyCount = 100000;
+  private static final int valueSize = 100;
+  private static final int operations = 1000000;
+
+  public static void main(String[] args) {
+    try {
+      int connections = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+      int depth = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+      if (args.length > 3) {
+        run(args[2], Integer.parseInt(args[3]), connections, depth);
+      } else {
+        try (GuanacoStorageEngine engine = GuanacoStorageEngine.createDatabase();
+             GuanacoServer server = new GuanacoServer(engine)) {
+          run("localhost", server.listen(0), connections, depth);
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      LOG.error(e.getLocalizedMessage(), e);
+    }
+  }
+
+  private static void run(final String host, final int port, int connections, final int depth)
+      throws IOException, InterruptedException {
+    final int operationsPerConnection = operations / connections;
+
+    for (final String command : new String[]{"SET", "GET"}) {
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      List<Thread> clients = new ArrayList<>();
+      long start = System.nanoTime();
+      for (int i = 0; i < connections; ++i) {
+        Thread client = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try (Socket socket = new Socket(host, port)) {
+              socket.setTcpNoDelay(true);
+              OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 << 10);
+              InputStream in = new BufferedInputStream(socket.getInputStream(), 64 << 10);
+              Random random = new Random();
+              byte[] value = new byte[valueSize];
+
+              for (int j = 0; j < operationsPerConnection; j += depth) {
+                for (int k = 0; k < depth; ++k) {
+                  byte[] key = ("key" + random.nextInt(keyCount)).getBytes(Charsets.US_ASCII);
+                  if (command.equals("SET")) {
+                    random.nextBytes(value);
+                    write(out, command.getBytes(Charsets.US_ASCII), key, value);
+                  } else {
+                    write(out, command.getBytes(Charsets.US_ASCII), key);
+                  }
+                }
+                out.flush();
+
+                for (int k = 0; k < depth; ++k) {
+                  skipReply(in);
+                }
+              }
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        });
+        clients.add(client);
+        client.start();
+      }
+      for (Thread client : clients) {
+        client.join();
+      }
+      long duration = System.nanoTime() - start;
+
+      if (failure.get() != null) {
+        throw new IOException(failure.get());
+      }
+      LOG.info(String.format(
+          "%s: %d connections, pipeline depth %d: %.0f operations/s",
+          command, connections, depth, (double) operationsPerConnection * connections * 1e9 / duration
+      ));
+    }
+  }
+
+  private static void write(OutputStream out, byte[]... arguments) throws IOException {
+    out.write(("*" + arguments.length + "\r\n").getBytes(Charsets.US_ASCII));
+    for (byte[] argument : arguments) {
+      out.write(("$" + argument.length + "\r\n").getBytes(Charsets.US_ASCII));
+      out.write(argument);
+      out.write('\r');
+      out.write('\n');
+    }
+  }
+
+  /**
+   * Skips a status, an integer, an error or a bulk string reply.
+   */
+  private static void skipReply(InputStream in) throws IOException {
+    int type = in.read();
+    String line = readLine(in);
+    if (type == '-') {
+      throw new IOException(line);
+    }
+    if (type == '$') {
+      int length = Integer.parseInt(line);
+      for (int i = 0; i < length + 2 && length >= 0; ++i) {
+        if (in.read() < 0) {
+          throw new IOException("Unexpected end of stream");
+        }
+      }
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int b;
+    while ((b = in.read()) != '\r') {
+      if (b < 0) {
+        throw new IOException("Unexpected end of stream");
+      }
+      line.append((char) b);
+    }
+    in.read();
+
+    return line.toString();
+  }
+
+}